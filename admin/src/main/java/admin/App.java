@@ -19,7 +19,7 @@ public class App {
      */
     static void tableMenu() {
         System.out.println("Select which table to work on");
-        System.out.println("  [+] Create tables");
+        System.out.println("  [+] Create tables / apply migrations");
         System.out.println("  [-] Drop table");
         System.out.println("  [U] Users");
         System.out.println("  [O] Ownerships");
@@ -441,7 +441,7 @@ public class App {
             } else if (tableAction == 'T') {
                 teamsTable(db, in);
             } else if (tableAction == '+') {
-                db.createTables();
+                System.out.println("  " + db.migrate() + " migrations applied");
             } else if (tableAction == '-') {
                 String name = getString(in, "Enter table name to drop");
                 db.dropTable(name);
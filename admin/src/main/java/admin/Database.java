@@ -11,6 +11,8 @@ import java.sql.SQLException;
 
 import java.util.ArrayList;
 
+import schema.Migrations;
+
 /**
  * This class represents the postgres database running on Heroku.
  * It uses prepared statements to query the database
@@ -28,14 +30,20 @@ public class Database {
      */
     private PreparedStatement mUsersSelectAll, mOwnershipsSelectAll, mTeamsSelectAll, mUsersDeleteOne, 
                     mOwnershipsDeleteOne, mTeamsDeleteOne, mUsersInsertOne, mOwnershipsInsertOne,
-                    mTeamsInsertOne, mUsersUpdateOne, mOwnershipsUpdateOne, mTeamsUpdateOne, mCreateUsers,
-                    mCreateTeams, mCreateOwnerships, mDropTables, mGetOwnerships, mGetTeam, mGetUser,
-                    mGetUserOwnership, mGetUserID, mCreateConfig, mAddConfig, mUpdateConfig, mDeleteConfig,
-                    mGetConfig;
+                    mTeamsInsertOne, mUsersUpdateOne, mOwnershipsUpdateOne, mTeamsUpdateOne, mDropTables,
+                    mGetOwnerships, mGetTeam, mGetUser,
+                    mGetUserOwnership, mGetUserID, mAddConfig, mUpdateConfig, mDeleteConfig,
+                    mGetConfig, mTeamsEdited;
+
+    private PreparedStatement mTransactionsInsert, mTransactionsUpdate, mTransactionsDelete, 
+                mTransactionsSelectOne, mTeamHistoryInsert, mTeamHistoryUpdate, mTeamHistoryDelete,
+                mTeamHistorySelectOne, mTeamCandlesDelete, mTeamCandlesRebuildDay, mTeamCandlesRebuildWeek;
 
-    private PreparedStatement mCreateTransactions, mTransactionsInsert, mTransactionsUpdate, mTransactionsDelete, 
-                mTransactionsSelectOne, mCreateTeamHistory, mTeamHistoryInsert, mTeamHistoryUpdate, mTeamHistoryDelete,
-                mTeamHistorySelectOne;
+    /**
+     * The Config row the server watches to know when teams were edited here.
+     * It has to match the server's Database.CONFIG_TEAMS_EDITED.
+     */
+    static final int CONFIG_TEAMS_EDITED = 5;
 
     /**
      * The Database constructor is private: we only create Database objects 
@@ -88,17 +96,8 @@ public class Database {
             //     as constants, and then build the strings for the statements
             //     from those constants.
 
-            // Note: no "IF NOT EXISTS" or "IF EXISTS" checks on table 
-            // creation/deletion, so multiple executions will cause an exception
-            db.mCreateUsers = db.mConnection.prepareStatement(
-                    "CREATE TABLE IF NOT EXISTS Users( uid SERIAL PRIMARY KEY, username VARCHAR(20) " + 
-                    "UNIQUE NOT NULL, password INTEGER NOT NULL, money INTEGER NOT NULL)");
+            // Note: tables are created by Migrations, not by statements here
             db.mDropTables = db.mConnection.prepareStatement("DROP TABLE ?");
-            db.mCreateTeams = db.mConnection.prepareStatement("CREATE TABLE IF NOT EXISTS Teams( tid SERIAL PRIMARY KEY, name VARCHAR(30), " + 
-            "price INTEGER NOT NULL, wins INTEGER NOT NULL, losses INTEGER NOT NULL, pointsfor INTEGER NOT NULL, pointsagainst INTEGER NOT NULL)");
-            //TODO make the ids foreign keys
-            db.mCreateOwnerships = db.mConnection.prepareStatement("CREATE TABLE IF NOT EXISTS Ownerships( uid INTEGER NOT NULL, tid INTEGER NOT NULL, count INTEGER NOT NULL)");
-            db.mCreateConfig = db.mConnection.prepareStatement("CREATE TABLE IF NOT EXISTS Config ( cid SERIAL PRIMARY KEY, val bigint NOT NULL )");
 
             // Delete prepared statements
             db.mUsersDeleteOne = db.mConnection.prepareStatement("DELETE FROM Users WHERE uid = ?");
@@ -132,16 +131,31 @@ public class Database {
             db.mUpdateConfig = db.mConnection.prepareStatement("UPDATE Config SET val=? WHERE cid=?");
             db.mDeleteConfig = db.mConnection.prepareStatement("DELETE FROM Config WHERE cid=?");
             db.mGetConfig = db.mConnection.prepareStatement("SELECT * FROM Config WHERE cid=?");
+            db.mTeamsEdited = db.mConnection.prepareStatement("INSERT INTO Config (cid, val) VALUES (" + CONFIG_TEAMS_EDITED
+                    + ", 1) ON CONFLICT (cid) DO UPDATE SET val = Config.val + 1");
 
             // TeamHistory
-            db.mCreateTeamHistory = db.mConnection.prepareStatement("CREATE TABLE IF NOT EXISTS TeamHistory ( tid INTEGER NOT NULL, date DATE, price INTEGER NOT NULL )");
             db.mTeamHistoryInsert = db.mConnection.prepareStatement("INSERT INTO TeamHistory (tid, date, price) VALUES (?, ?, ?)");
             db.mTeamHistoryUpdate = db.mConnection.prepareStatement("UPDATE TeamHistory SET price=? WHERE tid=? AND date=?");
             db.mTeamHistorySelectOne = db.mConnection.prepareStatement("SELECT * FROM TeamHistory WHERE tid=?");
             db.mTeamHistoryDelete = db.mConnection.prepareStatement("DELETE FROM TeamHistory WHERE tid=? AND date=?");
 
+            // TeamCandles: the day and week candles a date is in, built again
+            // from TeamHistory after a game in them is added or changed. Weeks
+            // start on Monday, as the server's do
+            db.mTeamCandlesDelete = db.mConnection.prepareStatement("DELETE FROM TeamCandles WHERE tid=? AND " +
+                    "((resolution=1 AND start=?) OR (resolution=7 AND start=date_trunc('week', ?::date)::date))");
+            db.mTeamCandlesRebuildDay = db.mConnection.prepareStatement("INSERT INTO TeamCandles " +
+                    "(tid, resolution, start, open, high, low, close, games) SELECT tid, 1, date, " +
+                    "(array_agg(price ORDER BY hid))[1], max(price), min(price), (array_agg(price ORDER BY hid DESC))[1], " +
+                    "count(*) FROM TeamHistory WHERE tid=? AND date=? GROUP BY tid, date");
+            db.mTeamCandlesRebuildWeek = db.mConnection.prepareStatement("INSERT INTO TeamCandles " +
+                    "(tid, resolution, start, open, high, low, close, games) SELECT tid, 7, date_trunc('week', date)::date, " +
+                    "(array_agg(price ORDER BY date, hid))[1], max(price), min(price), " +
+                    "(array_agg(price ORDER BY date DESC, hid DESC))[1], count(*) FROM TeamHistory WHERE tid=? " +
+                    "AND date_trunc('week', date) = date_trunc('week', ?::date) GROUP BY tid, date_trunc('week', date)");
+
             //Transactions
-            db.mCreateTransactions = db.mConnection.prepareStatement("CREATE TABLE IF NOT EXISTS Transactions ( uid INTEGER NOT NULL, tid INTEGER NOT NULL, change INTEGER NOT NULL, price INTEGER NOT NULL )");
             db.mTransactionsInsert = db.mConnection.prepareStatement("INSERT INTO Transactions (uid, tid, change, price) VALUES (?, ?, ?, ?)");
             //db.mTransactionsUpdate = db.mConnection.prepareStatement("");
             db.mTransactionsSelectOne = db.mConnection.prepareStatement("SELECT * FROM Transactions WHERE uid=?");
@@ -197,6 +211,7 @@ public class Database {
             mTeamsInsertOne.setInt(6, pointsfor);
             mTeamsInsertOne.setInt(7, poinstagainst);
             count += mTeamsInsertOne.executeUpdate();
+            teamsEdited();
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -345,6 +360,7 @@ public class Database {
         try {
             mTeamsDeleteOne.setInt(1, id);
             res = mTeamsDeleteOne.executeUpdate();
+            teamsEdited();
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -400,6 +416,7 @@ public class Database {
             mTeamsUpdateOne.setInt(5, pointsagainst);
             mTeamsUpdateOne.setInt(6, tid);
             res = mTeamsUpdateOne.executeUpdate();
+            teamsEdited();
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -475,10 +492,21 @@ public class Database {
 
     boolean TeamHistoryInsert(int tid, Date date, int price) {
         try {
-            mTeamHistoryInsert.setInt(1, tid);
-            mTeamHistoryInsert.setDate(2, date);
-            mTeamHistoryInsert.setInt(3, price);
-            mTeamHistoryInsert.executeUpdate();
+            mConnection.setAutoCommit(false);
+            try {
+                mTeamHistoryInsert.setInt(1, tid);
+                mTeamHistoryInsert.setDate(2, date);
+                mTeamHistoryInsert.setInt(3, price);
+                mTeamHistoryInsert.executeUpdate();
+                rebuildCandles(tid, date);
+                teamsEdited();
+                mConnection.commit();
+            } catch (SQLException e) {
+                mConnection.rollback();
+                throw e;
+            } finally {
+                mConnection.setAutoCommit(true);
+            }
         } catch (SQLException e) {
             e.printStackTrace();
             return false;
@@ -488,10 +516,21 @@ public class Database {
 
     boolean TeamHistoryUpdate(int tid, Date date, int price) {
         try {
-            mTeamHistoryUpdate.setInt(1, price);
-            mTeamHistoryUpdate.setDate(3, date);
-            mTeamHistoryUpdate.setInt(2, tid);
-            mTeamHistoryUpdate.executeUpdate();
+            mConnection.setAutoCommit(false);
+            try {
+                mTeamHistoryUpdate.setInt(1, price);
+                mTeamHistoryUpdate.setDate(3, date);
+                mTeamHistoryUpdate.setInt(2, tid);
+                mTeamHistoryUpdate.executeUpdate();
+                rebuildCandles(tid, date);
+                teamsEdited();
+                mConnection.commit();
+            } catch (SQLException e) {
+                mConnection.rollback();
+                throw e;
+            } finally {
+                mConnection.setAutoCommit(true);
+            }
         } catch (SQLException e) {
             e.printStackTrace();
             return false;
@@ -499,6 +538,35 @@ public class Database {
         return true;
     }
 
+    /**
+     * Build the day and week candles that a date is in again, so they agree
+     * with TeamHistory after a game in them was added or changed
+     */
+    private void rebuildCandles(int tid, Date date) throws SQLException {
+        if (date == null) {
+            // undated games aren't in any candle
+            return;
+        }
+        mTeamCandlesDelete.setInt(1, tid);
+        mTeamCandlesDelete.setDate(2, date);
+        mTeamCandlesDelete.setDate(3, date);
+        mTeamCandlesDelete.executeUpdate();
+        mTeamCandlesRebuildDay.setInt(1, tid);
+        mTeamCandlesRebuildDay.setDate(2, date);
+        mTeamCandlesRebuildDay.executeUpdate();
+        mTeamCandlesRebuildWeek.setInt(1, tid);
+        mTeamCandlesRebuildWeek.setDate(2, date);
+        mTeamCandlesRebuildWeek.executeUpdate();
+    }
+
+    /**
+     * Tell the server that a team or its history changed, so it loads the
+     * teams again on its next collector run
+     */
+    private void teamsEdited() throws SQLException {
+        mTeamsEdited.executeUpdate();
+    }
+
     ArrayList<TeamHistoryRow> TeamHistorySelectOne(int tid) {
         ArrayList<TeamHistoryRow> rows = new ArrayList<>();
         try {
@@ -544,23 +612,26 @@ public class Database {
     }
 
     /**
-     * Create a new table in the database. Prints an error if the statement doesn't work.
-     * NOTE: as of now this just adds all the table I think I need to the database :)
+     * Bring the schema up to date by applying any migrations this database
+     * hasn't seen yet. See Migrations for the list.
      * 
+     * @return The number of migrations applied. -1 indicates an error.
      */
-    boolean createTables() {
+    int migrate() {
         try {
-            mCreateUsers.execute();
-            mCreateTeams.execute();
-            mCreateOwnerships.execute();
-            mCreateConfig.execute();
-            mCreateTeamHistory.execute();
-            mCreateTransactions.execute();
-            return true;
+            return Migrations.migrate(mConnection);
         } catch (SQLException e) {
             e.printStackTrace();
         }
-        return false;
+        return -1;
+    }
+
+    /**
+     * Create all of the tables in the database, by applying every migration.
+     * Prints an error if a migration doesn't work.
+     */
+    boolean createTables() {
+        return migrate() >= 0;
     }
 
     /**
@@ -170,7 +170,7 @@ public class StatCollector {
             int newWins = radiantWin ? radiantTeam.wins + 1 : radiantTeam.wins;
             int newLosses = radiantWin ? radiantTeam.losses : radiantTeam.losses + 1;
             db.teamsUpdateOne(radiantTeam.tid, newPrice, newWins, newLosses, radiantTeam.pointsfor + radiantScore,
-                                 radiantTeam.pointsagainst + direScore, radiantTeam.price);
+                                 radiantTeam.pointsagainst + direScore);
         }
         // If we care about how the dire team did
         if (game.dire) {
@@ -179,7 +179,7 @@ public class StatCollector {
             int newWins = radiantWin ? direTeam.wins : direTeam.wins + 1;
             int newLosses = radiantWin ? direTeam.losses + 1 : direTeam.losses;
             db.teamsUpdateOne(direTeam.tid, newPrice, newWins, newLosses, direTeam.pointsfor + direScore,
-                                 direTeam.pointsagainst + radiantScore, direTeam.price);
+                                 direTeam.pointsagainst + radiantScore);
         }
 
         return true;
@@ -0,0 +1,99 @@
+package backend;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A whole StatCollector run over thousands of matches: paging through the
+ * league's history, fetching every match's details from a SteamApiStub,
+ * and saving the results to a seeded embedded PostgreSQL. Each run starts
+ * from lastMatchID 0 with an empty CollectorMatches queue, so every run
+ * reads every match.
+ *
+ * Run with e.g. "java -jar target/benchmarks.jar CollectorBenchmark -p latencyMs=50".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class CollectorBenchmark {
+
+    @Param({ "2000" })
+    public int matches;
+
+    @Param({ "100" })
+    public int teams;
+
+    /**
+     * How long the stub takes to answer each request
+     */
+    @Param({ "10" })
+    public int latencyMs;
+
+    /**
+     * Match details fetched at once
+     */
+    @Param({ "1", "4", "16" })
+    public int concurrency;
+
+    private MarketSeeder mMarket;
+    private SteamApiStub mStub;
+    private SteamClient mSteam;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        // keep a connection alive for every fetching thread
+        System.setProperty("http.maxConnections", Integer.toString(concurrency));
+        mMarket = new MarketSeeder(10, teams, 1, 1, 1);
+        int[] ids = new int[teams];
+        for (int i = 0; i < teams; i++) {
+            ids[i] = i + 1;
+        }
+        mStub = new SteamApiStub(0, SteamApiStub.synthetic(matches, ids, 6000000000L, 1));
+        mStub.setLatency(latencyMs);
+        mSteam = new SteamClient(mStub.url(), "key", concurrency, 0);
+    }
+
+    @Setup(Level.Invocation)
+    public void forgetMatches() throws SQLException {
+        try (Connection conn = DriverManager.getConnection(mMarket.jdbcUrl(), "postgres", "postgres");
+                Statement st = conn.createStatement()) {
+            st.execute("TRUNCATE CollectorMatches");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        System.out.println("\n" + mStub);
+        mStub.close();
+        mMarket.close();
+    }
+
+    @Benchmark
+    public int update() {
+        int read = new StatCollector(mMarket.mDb, 1, 0, mSteam, null).update();
+        if (read != matches) {
+            throw new IllegalStateException("Read " + read + " of " + matches + " matches");
+        }
+        return read;
+    }
+}
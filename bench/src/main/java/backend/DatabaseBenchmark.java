@@ -0,0 +1,132 @@
+package backend;
+
+import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.Gson;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The Database calls behind the server's busiest routes, run against a
+ * seeded embedded PostgreSQL. Every fork starts its own database, so runs
+ * don't depend on each other or on the hosted one.
+ *
+ * Run everything with "java -jar target/benchmarks.jar", or pick benchmarks
+ * and sizes with e.g. "java -jar target/benchmarks.jar getUser -p users=100000".
+ * Add "-t 8" to see how the calls behave when they contend for connections.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DatabaseBenchmark {
+
+    @Param({ "1000" })
+    public int users;
+
+    @Param({ "100" })
+    public int teams;
+
+    /**
+     * Teams owned by each user
+     */
+    @Param({ "5" })
+    public int ownerships;
+
+    /**
+     * TeamHistory rows per team
+     */
+    @Param({ "365" })
+    public int historyDays;
+
+    /**
+     * Transactions rows per user
+     */
+    @Param({ "20" })
+    public int transactions;
+
+    private MarketSeeder mMarket;
+    private Database mDb;
+    private final Gson mGson = App.gson();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        mMarket = new MarketSeeder(users, teams, ownerships, historyDays, transactions);
+        mDb = mMarket.mDb;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        mMarket.close();
+    }
+
+    private int randomUser() {
+        return ThreadLocalRandom.current().nextInt(users) + 1;
+    }
+
+    @Benchmark
+    public ArrayList<UserRow> usersSelectAll() {
+        return mDb.usersSelectAll();
+    }
+
+    @Benchmark
+    public ArrayList<TeamRow> teamsSelectAll() {
+        return mDb.teamsSelectAll();
+    }
+
+    @Benchmark
+    public UserRow getUser() {
+        return mDb.getUser(randomUser());
+    }
+
+    @Benchmark
+    public ArrayList<UserRow> marketUsers() {
+        return mDb.market().users();
+    }
+
+    @Benchmark
+    public ArrayList<UserRow> marketTop() {
+        return mDb.market().top(10);
+    }
+
+    /**
+     * The body of /teams, as the ResponseCache builds it
+     */
+    @Benchmark
+    public String marketTeamsJson() {
+        return mGson.toJson(new StructuredResponse("ok", null, mDb.market().teams()));
+    }
+
+    @Benchmark
+    public UserRow marketUser() {
+        return mDb.market().user(randomUser());
+    }
+
+    @Benchmark
+    public int userPurchase() {
+        ThreadLocalRandom r = ThreadLocalRandom.current();
+        return mDb.userPurchase(randomUser(), r.nextInt(teams) + 1, 1);
+    }
+
+    @Benchmark
+    public int userSell() {
+        int uid = randomUser();
+        return mDb.userSell(uid, mMarket.ownedTeam(uid, ThreadLocalRandom.current().nextInt(ownerships)), 1);
+    }
+}
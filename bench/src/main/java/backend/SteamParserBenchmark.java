@@ -0,0 +1,214 @@
+package backend;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing the Steam responses the StatCollector reads, from the fixtures in
+ * src/main/resources/fixtures, with the SteamParser and with the line-based
+ * parsing the StatCollector used before it. The fixtures are laid out the
+ * way Steam sends them, one field per line, which the old parsing needs.
+ *
+ * Parse times are in the JMH results. The bytes each parser pulls from the
+ * stream are printed once per fork, since they are the same on every call.
+ *
+ * Run with "java -jar target/benchmarks.jar SteamParserBenchmark".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SteamParserBenchmark {
+
+    private byte[] mDetails, mHistory;
+    private long mLastMatchID;
+
+    /**
+     * Counts the bytes read through it
+     */
+    static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mDetails = fixture("GetMatchDetails.json");
+        mHistory = fixture("GetMatchHistory.json");
+        mLastMatchID = Long.parseLong(new String(fixture("lastMatchID.txt"), StandardCharsets.UTF_8).trim());
+
+        // make sure both parsers agree before timing them
+        SteamParser.MatchResult a = SteamParser.parseMatchDetails(reader(new ByteArrayInputStream(mDetails)));
+        SteamParser.MatchResult b = oldMatchDetails(lines(new ByteArrayInputStream(mDetails)));
+        if (a.radiantWin != b.radiantWin || a.radiantScore != b.radiantScore || a.direScore != b.direScore
+                || a.radiantID != b.radiantID || a.direID != b.direID) {
+            throw new IllegalStateException("The parsers disagree on the match details");
+        }
+        if (SteamParser.parseMatchHistory(reader(new ByteArrayInputStream(mHistory)), mLastMatchID).matches.size()
+                != oldMatchHistory(lines(new ByteArrayInputStream(mHistory)), mLastMatchID).size()) {
+            throw new IllegalStateException("The parsers disagree on the match history");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void printBytesRead() throws IOException {
+        CountingInputStream in = new CountingInputStream(new ByteArrayInputStream(mDetails));
+        SteamParser.parseMatchDetails(reader(in));
+        long streaming = in.count;
+        in = new CountingInputStream(new ByteArrayInputStream(mDetails));
+        oldMatchDetails(lines(in));
+        System.out.println("\nGetMatchDetails (" + mDetails.length + " B): streaming read " + streaming
+                + " B, line-based read " + in.count + " B");
+
+        in = new CountingInputStream(new ByteArrayInputStream(mHistory));
+        SteamParser.parseMatchHistory(reader(in), mLastMatchID);
+        streaming = in.count;
+        in = new CountingInputStream(new ByteArrayInputStream(mHistory));
+        oldMatchHistory(lines(in), mLastMatchID);
+        System.out.println("GetMatchHistory (" + mHistory.length + " B): streaming read " + streaming
+                + " B, line-based read " + in.count + " B");
+    }
+
+    @Benchmark
+    public SteamParser.MatchResult detailsStreaming() throws IOException {
+        return SteamParser.parseMatchDetails(reader(new ByteArrayInputStream(mDetails)));
+    }
+
+    @Benchmark
+    public SteamParser.MatchResult detailsLineBased() throws IOException {
+        return oldMatchDetails(lines(new ByteArrayInputStream(mDetails)));
+    }
+
+    @Benchmark
+    public SteamParser.MatchPage historyStreaming() throws IOException {
+        return SteamParser.parseMatchHistory(reader(new ByteArrayInputStream(mHistory)), mLastMatchID);
+    }
+
+    @Benchmark
+    public ArrayList<SteamParser.MatchSummary> historyLineBased() throws IOException {
+        return oldMatchHistory(lines(new ByteArrayInputStream(mHistory)), mLastMatchID);
+    }
+
+    /**
+     * The reader the StatCollector hands to the SteamParser
+     */
+    private static InputStreamReader reader(InputStream in) {
+        return new InputStreamReader(in, StandardCharsets.UTF_8);
+    }
+
+    private static BufferedReader lines(InputStream in) {
+        return new BufferedReader(new InputStreamReader(in));
+    }
+
+    /**
+     * StatCollector.processGameResult's parsing before the SteamParser
+     */
+    static SteamParser.MatchResult oldMatchDetails(BufferedReader bufferedReader) throws IOException {
+        String line;
+        while (!(line = bufferedReader.readLine()).startsWith("\"radiant_win"))  { }
+        boolean radiantWin = line.startsWith("\"radiant_win\":t");
+
+        while (!(line = bufferedReader.readLine()).startsWith("\"radiant_score"))  { }
+        int radiantScore = Integer.parseInt(line.substring(16, line.indexOf(",")));
+
+        while (!(line = bufferedReader.readLine()).startsWith("\"dire_score"))  { }
+        int direScore = Integer.parseInt(line.substring(13, line.indexOf(",")));
+
+        while (!(line = bufferedReader.readLine()).startsWith("\"radiant_team_id"))  { }
+        int radiantID = Integer.parseInt(line.substring(18, line.indexOf(",")));
+
+        while (!(line = bufferedReader.readLine()).startsWith("\"dire_team_id"))  { }
+        int direID = Integer.parseInt(line.substring(15, line.indexOf(",")));
+
+        bufferedReader.close();
+        return new SteamParser.MatchResult(radiantWin, radiantScore, direScore, radiantID, direID);
+    }
+
+    /**
+     * StatCollector.getLeagueMatches's parsing of one page before the
+     * SteamParser, without the paging and the team lookups
+     */
+    static ArrayList<SteamParser.MatchSummary> oldMatchHistory(BufferedReader bufferedReader, long lastMatchID) throws IOException {
+        ArrayList<SteamParser.MatchSummary> matches = new ArrayList<>();
+        String line;
+        while (!(line = bufferedReader.readLine()).startsWith("\"results_rem"))  { }
+        Integer.parseInt(line.substring(20, line.indexOf(",")));
+
+        while ((line = bufferedReader.readLine()) != null) {
+            if (line.startsWith("\"match_id")) {
+                long matchID = Long.parseLong(line.substring(11, line.indexOf(",")));
+                if (matchID <= lastMatchID)
+                    break;
+
+                while (!(line = bufferedReader.readLine()).startsWith("\"radiant_team_id"))  { }
+                int radID = Integer.parseInt(line.substring(18, line.indexOf(",")));
+
+                while (!(line = bufferedReader.readLine()).startsWith("\"dire_team_id"))  { }
+                int direID = Integer.parseInt(line.substring(15, line.indexOf(",")));
+
+                matches.add(new SteamParser.MatchSummary(matchID, radID, direID));
+            }
+        }
+        bufferedReader.close();
+        return matches;
+    }
+
+    private static byte[] fixture(String name) throws IOException {
+        try (InputStream in = SteamParserBenchmark.class.getResourceAsStream("/fixtures/" + name)) {
+            if (in == null) {
+                throw new IOException("Missing fixture " + name);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package schema;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import java.util.HashSet;
+
+/**
+ * Versioned changes to the database schema. Each migration runs exactly
+ * once per database, and the versions that have been applied are recorded
+ * in the SchemaVersion table. The server and the admin app are both built
+ * with this file, so whichever one starts first brings the database up to
+ * date.
+ *
+ * NB: never edit a migration that has shipped. Add a new one to the end of
+ *     MIGRATIONS instead. They run in the order they are listed, so one that
+ *     has to come before a shipped migration goes in ahead of it, with the
+ *     next free version.
+ */
+public class Migrations {
+
+    /**
+     * One step in the history of the schema
+     */
+    static class Migration {
+        public final int version;
+        public final String description;
+
+        /**
+         * Whether the statements can run inside a transaction. Statements like
+         * CREATE INDEX CONCURRENTLY can't, so they run one at a time and must
+         * be safe to run again if we crash part way through.
+         */
+        public final boolean transactional;
+
+        /**
+         * Whether each statement runs again and again until it changes no
+         * rows. This lets a backfill update a big table a batch at a time,
+         * each batch committed on its own, so it never holds many row locks
+         * for long. Only for migrations that aren't transactional.
+         */
+        public final boolean batched;
+
+        public final String[] statements;
+
+        Migration(int version, String description, boolean transactional, String... statements) {
+            this(version, description, transactional, false, statements);
+        }
+
+        private Migration(int version, String description, boolean transactional, boolean batched, String... statements) {
+            this.version = version; this.description = description;
+            this.transactional = transactional; this.batched = batched;
+            this.statements = statements;
+        }
+
+        /**
+         * A migration whose statements each update a batch of rows, and are
+         * run until there are none left
+         */
+        static Migration batched(int version, String description, String... statements) {
+            return new Migration(version, description, false, true, statements);
+        }
+    }
+
+    /**
+     * Every migration, in the order they must be applied. Indexes are built
+     * CONCURRENTLY and foreign keys are added NOT VALID and validated
+     * afterwards, so these can be applied to a live database without
+     * blocking the server's reads and writes for long.
+     */
+    static final Migration[] MIGRATIONS = {
+        new Migration(1, "Create tables", true,
+            "CREATE TABLE IF NOT EXISTS Users( uid SERIAL PRIMARY KEY, username VARCHAR(20) " +
+                "UNIQUE NOT NULL, password INTEGER NOT NULL, money INTEGER NOT NULL)",
+            "CREATE TABLE IF NOT EXISTS Teams( tid SERIAL PRIMARY KEY, name VARCHAR(30), " +
+                "price INTEGER NOT NULL, wins INTEGER NOT NULL, losses INTEGER NOT NULL, pointsfor INTEGER NOT NULL, pointsagainst INTEGER NOT NULL)",
+            "CREATE TABLE IF NOT EXISTS Ownerships( uid INTEGER NOT NULL, tid INTEGER NOT NULL, count INTEGER NOT NULL)",
+            "CREATE TABLE IF NOT EXISTS Config ( cid SERIAL PRIMARY KEY, val bigint NOT NULL )",
+            "CREATE TABLE IF NOT EXISTS TeamHistory ( tid INTEGER NOT NULL, date DATE, price INTEGER NOT NULL )",
+            "CREATE TABLE IF NOT EXISTS Transactions ( uid INTEGER NOT NULL, tid INTEGER NOT NULL, change INTEGER NOT NULL, price INTEGER NOT NULL )"),
+
+        // Ownerships needs one row per (uid, tid) before it can have a key, so
+        // fold any duplicates together first
+        new Migration(2, "Merge duplicate Ownerships rows", true,
+            "CREATE TEMP TABLE OwnershipsMerged ON COMMIT DROP AS SELECT uid, tid, SUM(count) AS count " +
+                "FROM Ownerships GROUP BY uid, tid HAVING COUNT(*) > 1",
+            "DELETE FROM Ownerships o USING OwnershipsMerged m WHERE o.uid = m.uid AND o.tid = m.tid",
+            "INSERT INTO Ownerships (uid, tid, count) SELECT uid, tid, count FROM OwnershipsMerged"),
+        new Migration(3, "Build unique index on Ownerships (uid, tid)", false,
+            "DROP INDEX CONCURRENTLY IF EXISTS ownerships_uid_tid",
+            "CREATE UNIQUE INDEX CONCURRENTLY ownerships_uid_tid ON Ownerships (uid, tid)"),
+        new Migration(4, "Make (uid, tid) the primary key of Ownerships", true,
+            "ALTER TABLE Ownerships ADD CONSTRAINT ownerships_pkey PRIMARY KEY USING INDEX ownerships_uid_tid"),
+
+        new Migration(5, "Index TeamHistory on (tid, date)", false,
+            "DROP INDEX CONCURRENTLY IF EXISTS teamhistory_tid_date",
+            "CREATE INDEX CONCURRENTLY teamhistory_tid_date ON TeamHistory (tid, date)"),
+        new Migration(6, "Index Transactions on uid", false,
+            "DROP INDEX CONCURRENTLY IF EXISTS transactions_uid",
+            "CREATE INDEX CONCURRENTLY transactions_uid ON Transactions (uid)"),
+
+        // Rows pointing at deleted users or teams would fail validation, so
+        // they go first. Deleting a user or team now takes its rows with it
+        new Migration(7, "Add foreign keys to Users and Teams", true,
+            "DELETE FROM Ownerships o WHERE NOT EXISTS (SELECT 1 FROM Users u WHERE u.uid = o.uid) " +
+                "OR NOT EXISTS (SELECT 1 FROM Teams t WHERE t.tid = o.tid)",
+            "DELETE FROM TeamHistory h WHERE NOT EXISTS (SELECT 1 FROM Teams t WHERE t.tid = h.tid)",
+            "DELETE FROM Transactions x WHERE NOT EXISTS (SELECT 1 FROM Users u WHERE u.uid = x.uid)",
+            "ALTER TABLE Ownerships ADD CONSTRAINT ownerships_uid_fkey FOREIGN KEY (uid) REFERENCES Users (uid) ON DELETE CASCADE NOT VALID",
+            "ALTER TABLE Ownerships ADD CONSTRAINT ownerships_tid_fkey FOREIGN KEY (tid) REFERENCES Teams (tid) ON DELETE CASCADE NOT VALID",
+            "ALTER TABLE TeamHistory ADD CONSTRAINT teamhistory_tid_fkey FOREIGN KEY (tid) REFERENCES Teams (tid) ON DELETE CASCADE NOT VALID",
+            "ALTER TABLE Transactions ADD CONSTRAINT transactions_uid_fkey FOREIGN KEY (uid) REFERENCES Users (uid) ON DELETE CASCADE NOT VALID"),
+        new Migration(8, "Validate foreign keys", true,
+            "ALTER TABLE Ownerships VALIDATE CONSTRAINT ownerships_uid_fkey",
+            "ALTER TABLE Ownerships VALIDATE CONSTRAINT ownerships_tid_fkey",
+            "ALTER TABLE TeamHistory VALIDATE CONSTRAINT teamhistory_tid_fkey",
+            "ALTER TABLE Transactions VALIDATE CONSTRAINT transactions_uid_fkey"),
+
+        // Every match the StatCollector finds is queued here, and marked done
+        // in the same transaction as the price changes it causes, so a match
+        // is never applied twice or skipped. state is 0 pending, 1 done and
+        // 2 failed for good
+        new Migration(9, "Create CollectorMatches", true,
+            "CREATE TABLE IF NOT EXISTS CollectorMatches ( matchid BIGINT PRIMARY KEY, radiant BOOLEAN NOT NULL, " +
+                "dire BOOLEAN NOT NULL, state SMALLINT NOT NULL DEFAULT 0, attempts INTEGER NOT NULL DEFAULT 0, " +
+                "lasterror VARCHAR(200), updated TIMESTAMP NOT NULL DEFAULT now() )",
+            "CREATE INDEX IF NOT EXISTS collectormatches_pending ON CollectorMatches (matchid) WHERE state = 0"),
+
+        // txid was first added by 10, which rewrites the whole of
+        // Transactions under an exclusive lock. These come before it, so a
+        // database that doesn't have txid yet gets it without the rewrite,
+        // and 10 then finds the column there and does nothing. New rows take
+        // txid from a sequence that starts well above the numbers the
+        // existing rows are given. On a database that already ran 10 every
+        // row has one, and these do nothing
+        new Migration(18, "Add txid to Transactions without a rewrite", true,
+            "CREATE SEQUENCE IF NOT EXISTS transactions_txid_seq START WITH 1099511627776",
+            "ALTER TABLE Transactions ADD COLUMN IF NOT EXISTS txid BIGINT",
+            "ALTER TABLE Transactions ALTER COLUMN txid SET DEFAULT nextval('transactions_txid_seq')",
+            "ALTER SEQUENCE transactions_txid_seq OWNED BY Transactions.txid"),
+
+        // Number the transactions that were there before txid, from 1 up, by
+        // user and then in the order they are stored. The partial index finds
+        // the rows left to do, and each batch takes the users of the next
+        // 5000 of them. The backfill sequence only holds the last number
+        // given out, so the next batch carries on from it
+        new Migration(19, "Index Transactions without a txid", false,
+            "CREATE SEQUENCE IF NOT EXISTS transactions_txid_backfill",
+            "DROP INDEX CONCURRENTLY IF EXISTS transactions_txid_null",
+            "CREATE INDEX CONCURRENTLY transactions_txid_null ON Transactions (uid) WHERE txid IS NULL"),
+        Migration.batched(20, "Number existing Transactions rows",
+            "WITH base AS (SELECT CASE WHEN is_called THEN last_value ELSE 0 END AS n FROM transactions_txid_backfill), " +
+                "numbered AS (SELECT x.ctid, base.n + row_number() OVER (ORDER BY x.uid, x.ctid) AS txid " +
+                "FROM Transactions x, base WHERE x.txid IS NULL AND x.uid <= (SELECT max(uid) FROM " +
+                "(SELECT uid FROM Transactions WHERE txid IS NULL ORDER BY uid LIMIT 5000) next)), " +
+                "counted AS (SELECT setval('transactions_txid_backfill', max(txid)) FROM numbered) " +
+                "UPDATE Transactions x SET txid = numbered.txid FROM numbered, counted WHERE x.ctid = numbered.ctid"),
+        new Migration(21, "Require txid on Transactions", true,
+            "ALTER TABLE Transactions ADD CONSTRAINT transactions_txid_not_null CHECK (txid IS NOT NULL) NOT VALID"),
+        new Migration(22, "Validate txid on Transactions", true,
+            "ALTER TABLE Transactions VALIDATE CONSTRAINT transactions_txid_not_null",
+            "DROP SEQUENCE IF EXISTS transactions_txid_backfill"),
+        new Migration(23, "Drop the index of Transactions without a txid", false,
+            "DROP INDEX CONCURRENTLY IF EXISTS transactions_txid_null"),
+
+        // txid orders each user's transactions and is the cursor for paging
+        // through them. Adding it rewrites Transactions, numbering the
+        // existing rows in the order they are stored. The (uid, txid) index
+        // covers everything the uid index did
+        new Migration(10, "Add txid to Transactions", true,
+            "ALTER TABLE Transactions ADD COLUMN IF NOT EXISTS txid BIGSERIAL"),
+        new Migration(11, "Index Transactions on (uid, txid)", false,
+            "DROP INDEX CONCURRENTLY IF EXISTS transactions_uid_txid",
+            "CREATE INDEX CONCURRENTLY transactions_uid_txid ON Transactions (uid, txid)",
+            "DROP INDEX CONCURRENTLY IF EXISTS transactions_uid"),
+
+        // Each team's history rolled up into open/high/low/close candles a day
+        // (resolution 1) and a week (resolution 7, starting Monday) long. The
+        // server merges each collector run into them. The existing history is
+        // rolled up here, taking each day's rows in the order they are stored
+        new Migration(12, "Create TeamCandles", true,
+            "CREATE TABLE IF NOT EXISTS TeamCandles ( tid INTEGER NOT NULL REFERENCES Teams (tid) ON DELETE CASCADE, " +
+                "resolution SMALLINT NOT NULL, start DATE NOT NULL, open INTEGER NOT NULL, high INTEGER NOT NULL, " +
+                "low INTEGER NOT NULL, close INTEGER NOT NULL, games INTEGER NOT NULL, PRIMARY KEY (tid, resolution, start) )",
+            "INSERT INTO TeamCandles (tid, resolution, start, open, high, low, close, games) " +
+                "SELECT tid, 1, date, (array_agg(price ORDER BY ctid))[1], max(price), min(price), " +
+                "(array_agg(price ORDER BY ctid DESC))[1], count(*) FROM TeamHistory WHERE date IS NOT NULL " +
+                "GROUP BY tid, date ON CONFLICT DO NOTHING",
+            "INSERT INTO TeamCandles (tid, resolution, start, open, high, low, close, games) " +
+                "SELECT tid, 7, date_trunc('week', date)::date, (array_agg(price ORDER BY date, ctid))[1], max(price), " +
+                "min(price), (array_agg(price ORDER BY date DESC, ctid DESC))[1], count(*) FROM TeamHistory " +
+                "WHERE date IS NOT NULL GROUP BY tid, date_trunc('week', date) ON CONFLICT DO NOTHING"),
+
+        // hid orders games played on the same day, which the date alone
+        // can't. New rows take it from a sequence. Each team's existing rows
+        // are numbered below zero, a team per batch, in the order they are
+        // stored, which is the only record of the order they were added. Once
+        // every row has one, the candles are built again in that order
+        new Migration(13, "Add hid to TeamHistory", true,
+            "CREATE SEQUENCE IF NOT EXISTS teamhistory_hid_seq",
+            "ALTER TABLE TeamHistory ADD COLUMN IF NOT EXISTS hid BIGINT",
+            "ALTER TABLE TeamHistory ALTER COLUMN hid SET DEFAULT nextval('teamhistory_hid_seq')",
+            "ALTER SEQUENCE teamhistory_hid_seq OWNED BY TeamHistory.hid"),
+        Migration.batched(14, "Number existing TeamHistory rows",
+            "WITH team AS (SELECT t.tid FROM Teams t WHERE EXISTS " +
+                "(SELECT 1 FROM TeamHistory h WHERE h.tid = t.tid AND h.hid IS NULL) ORDER BY t.tid LIMIT 1), " +
+                "numbered AS (SELECT h.ctid, row_number() OVER (ORDER BY h.date, h.ctid) - count(*) OVER () - 1 AS hid " +
+                "FROM TeamHistory h, team WHERE h.tid = team.tid AND h.hid IS NULL) " +
+                "UPDATE TeamHistory h SET hid = numbered.hid FROM numbered WHERE h.ctid = numbered.ctid"),
+        new Migration(15, "Require hid on TeamHistory", true,
+            "ALTER TABLE TeamHistory ADD CONSTRAINT teamhistory_hid_not_null CHECK (hid IS NOT NULL) NOT VALID"),
+        new Migration(16, "Validate hid on TeamHistory", true,
+            "ALTER TABLE TeamHistory VALIDATE CONSTRAINT teamhistory_hid_not_null"),
+        new Migration(17, "Rebuild TeamCandles in hid order", true,
+            "DELETE FROM TeamCandles",
+            "INSERT INTO TeamCandles (tid, resolution, start, open, high, low, close, games) " +
+                "SELECT tid, 1, date, (array_agg(price ORDER BY hid))[1], max(price), min(price), " +
+                "(array_agg(price ORDER BY hid DESC))[1], count(*) FROM TeamHistory WHERE date IS NOT NULL " +
+                "GROUP BY tid, date",
+            "INSERT INTO TeamCandles (tid, resolution, start, open, high, low, close, games) " +
+                "SELECT tid, 7, date_trunc('week', date)::date, (array_agg(price ORDER BY date, hid))[1], max(price), " +
+                "min(price), (array_agg(price ORDER BY date DESC, hid DESC))[1], count(*) FROM TeamHistory " +
+                "WHERE date IS NOT NULL GROUP BY tid, date_trunc('week', date)"),
+    };
+
+    /**
+     * Held while migrating, so a server and an admin app starting at the same
+     * time don't both try to apply the same migration
+     */
+    private static final long MIGRATION_LOCK = 0x446f7453L;
+
+    private static final String CREATE_SCHEMA_VERSION = "CREATE TABLE IF NOT EXISTS SchemaVersion ( version INTEGER PRIMARY KEY, " +
+                    "description VARCHAR(100) NOT NULL, applied TIMESTAMP NOT NULL DEFAULT now() )";
+    private static final String SELECT_VERSIONS = "SELECT version FROM SchemaVersion";
+    private static final String INSERT_VERSION = "INSERT INTO SchemaVersion (version, description) VALUES (?, ?)";
+
+    /**
+     * Apply every migration that this database hasn't seen yet
+     *
+     * @param conn a connection in auto-commit mode
+     *
+     * @return the number of migrations that were applied
+     *
+     * @throws SQLException if a migration fails. Earlier migrations stay
+     *                      applied, and the failed one is tried again next time
+     */
+    public static int migrate(Connection conn) throws SQLException {
+        try (Statement st = conn.createStatement()) {
+            st.execute("SELECT pg_advisory_lock(" + MIGRATION_LOCK + ")");
+        }
+        try {
+            return migrateLocked(conn);
+        } finally {
+            try (Statement st = conn.createStatement()) {
+                st.execute("SELECT pg_advisory_unlock(" + MIGRATION_LOCK + ")");
+            }
+        }
+    }
+
+    private static int migrateLocked(Connection conn) throws SQLException {
+        HashSet<Integer> applied = new HashSet<>();
+        try (Statement st = conn.createStatement()) {
+            st.execute(CREATE_SCHEMA_VERSION);
+            ResultSet rs = st.executeQuery(SELECT_VERSIONS);
+            while (rs.next()) {
+                applied.add(rs.getInt("version"));
+            }
+        }
+
+        int count = 0;
+        for (Migration m : MIGRATIONS) {
+            if (applied.contains(m.version)) {
+                continue;
+            }
+            long start = System.currentTimeMillis();
+            if (m.transactional) {
+                conn.setAutoCommit(false);
+                try {
+                    run(conn, m);
+                    conn.commit();
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                } finally {
+                    conn.setAutoCommit(true);
+                }
+            } else {
+                run(conn, m);
+            }
+            System.out.println("Applied migration " + m.version + ": " + m.description +
+                    " (" + (System.currentTimeMillis() - start) + "ms)");
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Run a migration's statements and record its version
+     */
+    private static void run(Connection conn, Migration m) throws SQLException {
+        try (Statement st = conn.createStatement()) {
+            for (String sql : m.statements) {
+                if (m.batched) {
+                    while (st.executeUpdate(sql) > 0) {
+                        // another batch
+                    }
+                } else {
+                    st.execute(sql);
+                }
+            }
+        }
+        try (PreparedStatement ps = conn.prepareStatement(INSERT_VERSION)) {
+            ps.setInt(1, m.version);
+            ps.setString(2, m.description);
+            ps.executeUpdate();
+        }
+    }
+}
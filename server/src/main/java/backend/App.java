@@ -1,16 +1,49 @@
 package backend;
 
+import spark.Request;
+import spark.Response;
 import spark.Spark;
-
+import spark.embeddedserver.EmbeddedServers;
+import spark.embeddedserver.jetty.EmbeddedJettyFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.sql.Date;
+import java.util.ArrayList;
 import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletResponse;
 
 import com.google.gson.*;
+import com.google.gson.stream.JsonWriter;
 
 /**
  * Our app creates an HTTP server to handle requests.
  */
 public class App {
 
+    /**
+     * JSON responses shorter than this aren't worth gzipping
+     */
+    private static final int MIN_COMPRESSED_LENGTH = 512;
+
+    /**
+     * The most rows a client can ask for in one page, and how many
+     * transactions come in a page when it doesn't say
+     */
+    private static final int MAX_PAGE = 1000;
+    private static final int DEFAULT_TRANSACTIONS_PAGE = 50;
+
+    /**
+     * The range of history read when a request doesn't give one
+     */
+    private static final Date EARLIEST = Date.valueOf("1970-01-01"),
+            LATEST = Date.valueOf("9999-12-31");
+
     /**
      * The main string of the program to be run
      * 
@@ -20,31 +53,104 @@ public class App {
 
         // gson provides us with a way to turn JSON into objects, and objects
         // into JSON.
-        final Gson gson = new Gson();
+        final Gson gson = gson();
 
         // get the database url from the environment so it's hidden
         Map<String, String> env = System.getenv();
         String db_url = env.get("DATABASE_URL");
 
 
-        // Get a fully-configured connection to the database, or exit 
-        // immediately
-        Database db = Database.getDatabase(db_url);
+        // Get a fully-configured connection pool for the database, or exit 
+        // immediately. The pool size should roughly match the number of 
+        // Jetty worker threads that hit the database at once
+        int poolMax = getIntFromEnv("DB_POOL_MAX", Database.DEFAULT_POOL_MAX);
+        Database db = Database.getDatabase(db_url,
+                getIntFromEnv("DB_POOL_MIN", Database.DEFAULT_POOL_MIN), poolMax,
+                getIntFromEnv("DB_POOL_TIMEOUT_MS", Database.DEFAULT_POOL_TIMEOUT_MS));
         if (db == null)
             return;
 
+        // Count and time every route, query and collector run, see /metrics.
+        // Statements are timed when they're prepared, so this has to come
+        // before anything queries the database
+        final Metrics metrics = new Metrics();
+        db.recordQueries(metrics);
+
+        // Bring the schema up to date before serving anything
+        if (db.migrate() < 0) {
+            System.err.println("Error: unable to migrate the database");
+            db.disconnect();
+            return;
+        }
+
+        // Load every team into memory, so trades and portfolios don't need to
+        // query the Teams table. Collector runs keep it up to date, so teams
+        // only need loading again once the admin app has edited them
+        long teamsEdited = db.getConfig(Database.CONFIG_TEAMS_EDITED, 0);
+        db.teamCache().reload();
+
+        // Optionally answer trades once they're journaled on disk, and save
+        // them to the database in batches. Trades left in the journal by the
+        // last run are applied first
+        String journalDir = env.get("TRADE_JOURNAL_DIR");
+        TradeJournal journal = null;
+        if (journalDir != null) {
+            try {
+                journal = TradeJournal.open(Paths.get(journalDir), db);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println("Error: unable to open the trade journal in " + journalDir);
+                db.disconnect();
+                return;
+            }
+            TradeJournal tj = journal;
+            Runtime.getRuntime().addShutdownHook(new Thread(tj::close));
+            metrics.gauge("dots_journal_unapplied", "Journaled trades not yet in the database", tj::unapplied);
+            metrics.gauge("dots_journal_syncs_total", "Syncs of the trade journal to disk", tj::syncs);
+            metrics.gauge("dots_journal_batches_total", "Batches of journaled trades applied", tj::batches);
+        }
+        final TradeJournal trades = journal;
+
+        // Load every user and team into memory, after the journal has
+        // caught the database up, so the read routes never query
+        final Market market = db.market();
+        if (!market.reload()) {
+            System.err.println("Error: unable to load the market");
+            db.disconnect();
+            return;
+        }
+
         // Set up the location for serving static files.  If the STATIC_LOCATION
         // environment variable is set, we will serve from it.  Otherwise, serve
-        // from "/web"
+        // from "/web". The files are served by the catch-all route at the end
         String static_location_override = System.getenv("STATIC_LOCATION");
+        final StaticAssets assets;
         if (static_location_override == null) {
-            Spark.staticFileLocation("/web");
+            assets = StaticAssets.fromClasspath("/web");
         } else {
-            Spark.staticFiles.externalLocation(static_location_override);
+            assets = StaticAssets.fromDirectory(static_location_override);
         }
 
         // get the port and setting for CORS from the environment
         Spark.port(getIntFromEnv("PORT", 4567));
+
+        // Optionally run requests on virtual threads instead of Jetty's pool
+        // of 200 platform threads. Callers then wait for a database connection
+        // instead of for a thread, so raise DB_POOL_TIMEOUT_MS to match
+        if ("True".equalsIgnoreCase(env.get("VIRTUAL_THREADS"))) {
+            VirtualThreadPool pool = VirtualThreadPool.create(poolMax + 4);
+            if (pool == null) {
+                System.out.println("Virtual threads need Java 21, using the default thread pool");
+            } else {
+                EmbeddedServers.add(EmbeddedServers.Identifiers.JETTY, new EmbeddedJettyFactory().withThreadPool(pool));
+            }
+        }
+
+        // Pages listen here for new prices. Spark wants web sockets declared
+        // before any route or filter
+        final PriceStream stream = new PriceStream(gson);
+        Spark.webSocket("/stream", stream);
+
         String cors_enabled = env.get("CORS_ENABLED");
 
         if ("True".equalsIgnoreCase(cors_enabled)) {
@@ -54,6 +160,9 @@ public class App {
             enableCORS(acceptCrossOriginRequestsFrom, acceptedCrossOriginRoutes, supportedRequestHeaders);
         }
 
+        // gzip JSON responses for clients that can take it
+        enableCompression();
+
         
 
         // Set up a route for serving the main page
@@ -62,43 +171,124 @@ public class App {
             return "";
         });
 
-        // GET route that returns a list of all the users in the database
-        // See the route list for the format of the response
-        Spark.get("/users", (request, response) -> {
-            // ensure status 200 OK, with a MIME type of JSON
+        // GET route that returns a list of all the users in the market
+        // See the route list for the format of the response. The JSON is
+        // rebuilt from memory when a trade or price change moves the market on.
+        // With ?top=N it returns the N richest users by networth instead, and
+        // with ?limit=N&after=UID one page of users by uid
+        final ResponseCache usersResponse = new ResponseCache(market::version, market::users, gson);
+        Spark.get("/users", metrics.timed("/users", (request, response) -> {
+            String top = request.queryParams("top"), limit = request.queryParams("limit");
+            if (top == null && limit == null) {
+                return usersResponse.serve(request, response);
+            }
             response.status(200);
             response.type("application/json");
+            if (top != null) {
+                int n = intParam(top, 0, Integer.MAX_VALUE);
+                if (n < 0) {
+                    return gson.toJson(new StructuredResponse("error", "bad top " + top, null));
+                }
+                return gson.toJson(new StructuredResponse("ok", null, market.top(n)));
+            }
+            String after = request.queryParams("after");
+            int n = intParam(limit, 1, MAX_PAGE), from = after == null ? 0 : intParam(after, 0, Integer.MAX_VALUE);
+            if (n < 0 || from < 0) {
+                return gson.toJson(new StructuredResponse("error", "bad limit or after", null));
+            }
+            return gson.toJson(new StructuredResponse("ok", null, market.users(from, n)));
+        }));
 
-            // uses gson object to send the data as JSON to front 
-            return gson.toJson(new StructuredResponse("ok", null, db.usersSelectAll()));
-        });
-
-        // GET route that returns a single user and a list of the 
-        // teams that they own
-        Spark.get("/users/:id", (request, response) -> {
+        // GET route that returns a single user, a list of the teams that they
+        // own and their latest transactions
+        Spark.get("/users/:id", metrics.timed("/users/:id", (request, response) -> {
             int idx = Integer.parseInt(request.params("id"));
             // ensure status 200 OK, with a MIME type of JSON
             response.status(200);
             response.type("application/json");
 
-            UserRow user = db.getUser(idx);
+            UserRow user = market.user(idx);
             if (user == null) {
                 return gson.toJson(new StructuredResponse("error", idx + " not found", null));
             } else {
                 return gson.toJson(new StructuredResponse("ok", null, user));
             }
-        });
+        }));
 
-        // GET route that returns a list of all the teams
-        Spark.get("/teams", (request, response) -> {
+        // GET route that returns a page of a user's transactions, newest
+        // first: ?limit=N&before=TXID
+        Spark.get("/users/:id/transactions", metrics.timed("/users/:id/transactions", (request, response) -> {
+            int idx = Integer.parseInt(request.params("id"));
             response.status(200);
             response.type("application/json");
 
-            return gson.toJson(new StructuredResponse("ok", null, db.teamsSelectAll()));
-        });
+            String limit = request.queryParams("limit"), before = request.queryParams("before");
+            int n = limit == null ? DEFAULT_TRANSACTIONS_PAGE : intParam(limit, 1, MAX_PAGE);
+            long until;
+            try {
+                until = before == null ? Long.MAX_VALUE : Long.parseLong(before);
+            } catch (NumberFormatException e) {
+                until = -1;
+            }
+            if (n < 0 || until < 0) {
+                return gson.toJson(new StructuredResponse("error", "bad limit or before", null));
+            }
+            if (market.user(idx) == null) {
+                return gson.toJson(new StructuredResponse("error", idx + " not found", null));
+            }
+            return writeTransactions(db, idx, until, n, request, response);
+        }));
+
+        // GET route that returns a list of all the teams. The teams only
+        // change when the collector runs, so the JSON is kept ready-made and
+        // rebuilt from memory when the market version moves on
+        final ResponseCache teamsResponse = new ResponseCache(db::marketVersion, market::teams, gson);
+        Spark.get("/teams", metrics.timed("/teams", teamsResponse::serve));
+
+        // GET route that returns a list of all the teams without their
+        // history, kept ready-made like /teams
+        final ResponseCache summaryResponse = new ResponseCache(db::marketVersion, market::teamSummaries, gson);
+        Spark.get("/teams/summary", metrics.timed("/teams/summary", summaryResponse::serve));
+
+        // GET route that returns the day candles of every team, for the
+        // charts on the teams page, kept ready-made like /teams
+        final ResponseCache candlesResponse = new ResponseCache(db::marketVersion, market::dayCandles, gson);
+        Spark.get("/teams/candles", metrics.timed("/teams/candles", candlesResponse::serve));
+
+        // GET route that returns a team's price history at a resolution:
+        // ?resolution=game for every game, or day or week for candles. Only
+        // the dates from ?from= to ?to= (yyyy-mm-dd, both optional) are read
+        Spark.get("/teams/:id/history", metrics.timed("/teams/:id/history", (request, response) -> {
+            int idx = Integer.parseInt(request.params("id"));
+            response.status(200);
+            response.type("application/json");
+
+            Date from, to;
+            try {
+                from = dateParam(request.queryParams("from"), EARLIEST);
+                to = dateParam(request.queryParams("to"), LATEST);
+            } catch (IllegalArgumentException e) {
+                return gson.toJson(new StructuredResponse("error", "bad from or to", null));
+            }
+            String resolution = request.queryParams("resolution");
+            ArrayList<?> history;
+            if (resolution == null || resolution.equals("game")) {
+                history = db.teamHistorySelectRange(idx, from, to);
+            } else if (resolution.equals("day")) {
+                history = db.teamCandlesSelect(idx, TeamCandleRow.DAY, from, to);
+            } else if (resolution.equals("week")) {
+                history = db.teamCandlesSelect(idx, TeamCandleRow.WEEK, from, to);
+            } else {
+                return gson.toJson(new StructuredResponse("error", "bad resolution " + resolution, null));
+            }
+            if (history == null) {
+                return gson.toJson(new StructuredResponse("error", "error reading history", null));
+            }
+            return gson.toJson(new StructuredResponse("ok", null, history));
+        }));
 
         // POST route to login. Returns the user id of the new user
-        Spark.post("/login", (request, response) -> {
+        Spark.post("/login", metrics.timed("/login", (request, response) -> {
             response.status(200);
             response.type("application/json");
 
@@ -113,11 +303,11 @@ public class App {
             } else {
                 return gson.toJson(new StructuredResponse("ok", null, uid));
             }
-        });
+        }));
 
 
         // POST route to make a trade
-        Spark.post("/trade", (request, response) -> {
+        Spark.post("/trade", metrics.timed("/trade", (request, response) -> {
 
             response.status(200);
             response.type("application/json");
@@ -126,7 +316,9 @@ public class App {
             TradeRequest req = gson.fromJson(request.body(), TradeRequest.class);
 
             int res;
-            if (req.isBuy) {
+            if (trades != null) {
+                res = trades.trade(req.uid, req.tid, req.isBuy, req.amount);
+            } else if (req.isBuy) {
                 res = db.userPurchase(req.uid, req.tid, req.amount);
             } else {
                 res = db.userSell(req.uid, req.tid, req.amount);
@@ -137,16 +329,81 @@ public class App {
 
             return gson.toJson(new StructuredResponse("ok", null, res));
 
+        }));
+
+        // GET route for Prometheus to scrape
+        metrics.gauge("dots_db_pool_open", "Open database connections", () -> db.poolStats().open);
+        metrics.gauge("dots_db_pool_in_use", "Database connections on loan", () -> db.poolStats().inUse);
+        metrics.gauge("dots_db_pool_waiting", "Threads waiting for a database connection", () -> db.poolStats().waiting);
+        metrics.gauge("dots_db_pool_timeouts_total", "Requests that gave up waiting for a connection", () -> db.poolStats().timeouts);
+        metrics.gauge("dots_team_cache_hits_total", "Team lookups served from memory", () -> db.teamCache().hits());
+        metrics.gauge("dots_team_cache_misses_total", "Team lookups that went to the database", () -> db.teamCache().misses());
+        metrics.gauge("dots_stream_clients", "Pages connected to the price stream", stream::clients);
+        Spark.get("/metrics", (request, response) -> {
+            response.status(200);
+            response.type("text/plain; version=0.0.4");
+            return metrics.scrape();
         });
 
+        // Everything else is a file from the website. This must be the last
+        // route, since it matches every path
+        Spark.get("/*", assets::serve);
+
         long sleepTime = 10000000;
         String apiKey = env.get("API_KEY");
 
+        // Match details are fetched a few at a time, over kept-alive
+        // connections, without going over Steam's rate limit
+        String steamUrl = env.get("STEAM_API_URL");
+        SteamClient steam = new SteamClient(steamUrl == null ? SteamClient.DEFAULT_BASE_URL : steamUrl, apiKey,
+                getIntFromEnv("STEAM_CONCURRENCY", SteamClient.DEFAULT_CONCURRENCY),
+                getIntFromEnv("STEAM_RATE_LIMIT", SteamClient.DEFAULT_RATE_LIMIT));
+
+        // Keep the details of every match we read on disk, so replaying or
+        // backfilling matches doesn't ask Steam for them again
+        String matchCacheDir = env.get("MATCH_CACHE_DIR");
+        MatchCache matchCache = null;
+        if (matchCacheDir != null) {
+            try {
+                matchCache = new MatchCache(Paths.get(matchCacheDir),
+                        getIntFromEnv("MATCH_CACHE_MAX_MB", MatchCache.DEFAULT_MAX_MB) * 1024L * 1024L);
+                steam.setMatchCache(matchCache);
+                MatchCache mc = matchCache;
+                metrics.gauge("dots_match_cache_bytes", "Size of the match detail cache on disk", mc::bytes);
+                metrics.gauge("dots_match_cache_hits_total", "Match details read from the cache", mc::hits);
+                metrics.gauge("dots_match_cache_misses_total", "Match details fetched from Steam", mc::misses);
+            } catch (IOException e) {
+                System.err.println("Warning: not caching match details in " + matchCacheDir);
+                e.printStackTrace();
+            }
+        }
+
         // We want to update the results somewhat regularly
         while(true) {
             sleepTime = db.getConfig(2); // see if the sleeptime has changed
-            StatCollector sc = new StatCollector(db, (int)db.getConfig(3), db.getConfig(1), apiKey);
-            System.out.println(sc.update()+" games read");
+            StatCollector sc = new StatCollector(db, (int)db.getConfig(3), db.getConfig(1), steam, stream);
+            long start = System.nanoTime();
+            int games = sc.update();
+            metrics.collectorRun(System.nanoTime() - start, games);
+            System.out.println(games+" games read");
+
+            // pick up any team changes made by the admin app
+            long edited = db.getConfig(Database.CONFIG_TEAMS_EDITED, 0);
+            if (edited >= 0 && edited != teamsEdited && db.teamCache().reload() && market.reloadTeams()) {
+                teamsEdited = edited;
+                db.marketChanged();
+            }
+            System.out.println(db.poolStats());
+            System.out.println(db.teamCache());
+            System.out.println(market);
+            System.out.println(stream);
+            System.out.println(steam);
+            if (matchCache != null) {
+                System.out.println(matchCache);
+            }
+            if (trades != null) {
+                System.out.println(trades);
+            }
 
             try {
                 Thread.sleep(sleepTime);
@@ -191,6 +448,101 @@ public class App {
         });
     }
 
+    /**
+     * Gzip every JSON response that is big enough to be worth it, for clients
+     * that send Accept-Encoding: gzip. Spark does the compressing once it sees
+     * the Content-Encoding header. Responses that were written already, like
+     * the cached /teams body, are left alone.
+     */
+    private static void enableCompression() {
+        Spark.after((request, response) -> {
+            String type = response.type();
+            if (type == null || !type.startsWith("application/json") || response.raw().isCommitted()
+                    || response.raw().getStatus() != 200 || !ResponseCache.acceptsGzip(request)) {
+                return;
+            }
+            String body = response.body();
+            if (body != null && body.length() < MIN_COMPRESSED_LENGTH) {
+                return;
+            }
+            response.header("Content-Encoding", "gzip");
+            response.header("Vary", "Accept-Encoding");
+        });
+    }
+
+    /**
+     * @return the Gson that every route writes its JSON with
+     */
+    static Gson gson() {
+        return new GsonBuilder().registerTypeAdapter(PriceHistory.class, new PriceHistory.Adapter()).create();
+    }
+
+    /**
+     * @return a query parameter as an int, or -1 if it isn't a number from
+     *         min to max
+     */
+    static int intParam(String param, int min, int max) {
+        try {
+            int n = Integer.parseInt(param);
+            return n < min || n > max ? -1 : n;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return a yyyy-mm-dd query parameter as a date, or missing if there
+     *         isn't one
+     *
+     * @throws IllegalArgumentException if it isn't a date
+     */
+    static Date dateParam(String param, Date missing) {
+        return param == null ? missing : Date.valueOf(param);
+    }
+
+    /**
+     * Write a page of transactions to the client as they are read from the
+     * database, gzipped if the client takes it. The status goes last, so a
+     * page that fails part way through says so, and the failure is counted
+     * in the metrics.
+     *
+     * @return what the route should return to Spark
+     */
+    private static Object writeTransactions(Database db, int uid, long before, int limit, Request request,
+            Response response) throws IOException {
+        HttpServletResponse raw = response.raw();
+        OutputStream out = raw.getOutputStream();
+        if (ResponseCache.acceptsGzip(request)) {
+            raw.setHeader("Content-Encoding", "gzip");
+            raw.setHeader("Vary", "Accept-Encoding");
+            out = new GZIPOutputStream(out);
+        }
+        JsonWriter json = new JsonWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        json.beginObject().name("mData").beginObject().name("rows").beginArray();
+        long[] last = { 0 };
+        int count = db.transactionsPage(uid, before, limit, (txid, t) -> {
+            json.beginObject().name("txid").value(txid).name("uid").value(t.uid).name("tid").value(t.tid)
+                    .name("change").value(t.change).name("price").value(t.price).endObject();
+            last[0] = txid;
+        });
+        json.endArray();
+        if (count == limit) {
+            json.name("next").value(last[0]);
+        }
+        json.endObject();
+        if (count < 0) {
+            json.name("mStatus").value("error").name("mMessage").value("error reading transactions");
+            Metrics.failed(request);
+        } else {
+            json.name("mStatus").value("ok");
+        }
+        json.endObject();
+        // closing finishes the gzip stream
+        json.close();
+        raw.flushBuffer();
+        return "";
+    }
+
     /**
      * Get an integer environment varible if it exists, and otherwise return the
      * default value.
@@ -0,0 +1,22 @@
+package backend;
+
+/**
+ * A match the StatCollector has found, and how far it got with it
+ */
+public class CollectorMatchRow {
+    public static final int PENDING = 0, DONE = 1, FAILED = 2;
+
+    public final long matchid;
+
+    /**
+     * Whether we track the radiant and dire teams
+     */
+    public final boolean radiant, dire;
+
+    public final int state, attempts;
+
+    public CollectorMatchRow(long matchid, boolean radiant, boolean dire, int state, int attempts) {
+        this.matchid = matchid; this.radiant = radiant; this.dire = dire;
+        this.state = state; this.attempts = attempts;
+    }
+}
@@ -0,0 +1,317 @@
+package backend;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A small thread-safe pool of JDBC connections. Every Spark worker thread
+ * borrows a connection for the length of one Database call and hands it
+ * back when it is done, so requests no longer share one socket or one set
+ * of PreparedStatements.
+ *
+ * Each pooled connection keeps its own cache of PreparedStatements, keyed
+ * by SQL text, so a statement is only prepared once per connection.
+ */
+public class ConnectionPool {
+
+    /**
+     * Connection details handed to the DriverManager
+     */
+    private final String mUrl, mUser, mPassword;
+
+    /**
+     * The number of connections kept open, and the most we will ever open
+     */
+    private final int mMinSize, mMaxSize;
+
+    /**
+     * How long a caller waits for a free connection before giving up
+     */
+    private final long mAcquireTimeoutMillis;
+
+    /**
+     * One permit per connection we are allowed to hand out
+     */
+    private final Semaphore mPermits;
+
+    /**
+     * Open connections that nobody is using right now
+     */
+    private final LinkedBlockingDeque<PooledConnection> mIdle = new LinkedBlockingDeque<>();
+
+    /**
+     * The connection (if any) the current thread already holds. Database
+     * methods call each other, so a nested acquire reuses the outer lease
+     * instead of taking a second connection and risking a deadlock.
+     */
+    private final ThreadLocal<PooledConnection> mHeld = new ThreadLocal<>();
+
+    /*
+     * Counters for the pool statistics
+     */
+    private final AtomicInteger mOpen = new AtomicInteger();
+    private final LongAdder mAcquires = new LongAdder(), mTimeouts = new LongAdder(), mWaitNanos = new LongAdder();
+    private final AtomicLong mMaxWaitNanos = new AtomicLong();
+
+    private volatile boolean mClosed = false;
+
+    /**
+     * Times every statement prepared from now on, if set
+     */
+    private volatile Metrics mMetrics;
+
+    /**
+     * Create a pool and open its first mMinSize connections
+     *
+     * @param url the jdbc url of the database
+     * @param user the database user
+     * @param password the database password
+     * @param minSize connections opened up front and kept open
+     * @param maxSize the most connections that can be open at once
+     * @param acquireTimeoutMillis how long acquire() waits for a connection
+     *
+     * @throws SQLException if the first connections cannot be opened
+     */
+    ConnectionPool(String url, String user, String password, int minSize, int maxSize, long acquireTimeoutMillis) throws SQLException {
+        mUrl = url; mUser = user; mPassword = password;
+        mMaxSize = Math.max(1, maxSize);
+        mMinSize = Math.max(0, Math.min(minSize, mMaxSize));
+        mAcquireTimeoutMillis = acquireTimeoutMillis;
+        mPermits = new Semaphore(mMaxSize, true);
+        for (int i = 0; i < mMinSize; i++) {
+            mIdle.add(open());
+        }
+    }
+
+    /**
+     * Borrow a connection. Use it in a try-with-resources block so that it
+     * always goes back to the pool.
+     *
+     * @return a connection that only this thread is using
+     *
+     * @throws SQLException if no connection frees up before the timeout
+     */
+    PooledConnection acquire() throws SQLException {
+        PooledConnection held = mHeld.get();
+        if (held != null) {
+            held.mDepth++;
+            return held;
+        }
+        if (mClosed) {
+            throw new SQLException("Connection pool is closed");
+        }
+
+        long start = System.nanoTime();
+        try {
+            if (!mPermits.tryAcquire(mAcquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                mTimeouts.increment();
+                throw new SQLException("Timed out after " + mAcquireTimeoutMillis + "ms waiting for a database connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection");
+        }
+        long waited = System.nanoTime() - start;
+        mAcquires.increment();
+        mWaitNanos.add(waited);
+        mMaxWaitNanos.accumulateAndGet(waited, Math::max);
+
+        PooledConnection conn = mIdle.pollFirst();
+        if (conn == null) {
+            try {
+                conn = open();
+            } catch (SQLException e) {
+                mPermits.release();
+                throw e;
+            }
+        }
+        conn.mDepth = 1;
+        mHeld.set(conn);
+        return conn;
+    }
+
+    /**
+     * Give a connection back. Broken connections are closed instead of being
+     * reused, and anything left mid-transaction is rolled back.
+     */
+    private void release(PooledConnection conn) {
+        if (--conn.mDepth > 0) {
+            return;
+        }
+        mHeld.remove();
+        boolean healthy;
+        try {
+            healthy = !conn.mConnection.isClosed();
+            if (healthy && !conn.mConnection.getAutoCommit()) {
+                conn.mConnection.rollback();
+                conn.mConnection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            healthy = false;
+        }
+        if (healthy && !mClosed) {
+            mIdle.addFirst(conn);
+        } else {
+            discard(conn);
+        }
+        mPermits.release();
+    }
+
+    private PooledConnection open() throws SQLException {
+        Connection conn = DriverManager.getConnection(mUrl, mUser, mPassword);
+        if (conn == null) {
+            throw new SQLException("DriverManager.getConnection() returned a null object");
+        }
+        mOpen.incrementAndGet();
+        return new PooledConnection(conn);
+    }
+
+    private void discard(PooledConnection conn) {
+        mOpen.decrementAndGet();
+        try {
+            conn.mConnection.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Close every idle connection. Connections that are in use are closed
+     * as they come back.
+     */
+    void close() {
+        mClosed = true;
+        PooledConnection conn;
+        while ((conn = mIdle.pollFirst()) != null) {
+            discard(conn);
+        }
+    }
+
+    /**
+     * Time the statements that connections prepare from now on
+     */
+    void setMetrics(Metrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * @return a snapshot of how busy the pool is
+     */
+    Stats stats() {
+        long acquires = mAcquires.sum();
+        int open = mOpen.get();
+        int idle = mIdle.size();
+        return new Stats(open, idle, mMaxSize - mPermits.availablePermits(), mPermits.getQueueLength(), mMaxSize,
+                acquires, mTimeouts.sum(), acquires == 0 ? 0 : mWaitNanos.sum() / acquires / 1000,
+                mMaxWaitNanos.get() / 1000);
+    }
+
+    /**
+     * A connection on loan from the pool, along with its statement cache.
+     * Closing it returns it to the pool rather than closing the socket.
+     */
+    class PooledConnection implements AutoCloseable {
+
+        /**
+         * The real connection to the database
+         */
+        final Connection mConnection;
+
+        /**
+         * PreparedStatements that have already been prepared on this connection
+         */
+        private final HashMap<String, PreparedStatement> mStatements = new HashMap<>();
+
+        /**
+         * How many nested acquire() calls on this thread share this lease
+         */
+        private int mDepth;
+
+        private PooledConnection(Connection conn) {
+            mConnection = conn;
+        }
+
+        /**
+         * Get the PreparedStatement for some SQL, preparing it the first time
+         * this connection sees it.
+         */
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement ps = mStatements.get(sql);
+            if (ps == null) {
+                ps = mConnection.prepareStatement(sql);
+                Metrics metrics = mMetrics;
+                if (metrics != null) {
+                    ps = metrics.timed(sql, ps);
+                }
+                mStatements.put(sql, ps);
+            }
+            return ps;
+        }
+
+        /**
+         * Start a transaction on this connection
+         */
+        void begin() throws SQLException {
+            mConnection.setAutoCommit(false);
+        }
+
+        /**
+         * Commit the current transaction and go back to auto-commit
+         */
+        void commit() throws SQLException {
+            mConnection.commit();
+            mConnection.setAutoCommit(true);
+        }
+
+        /**
+         * Roll back the current transaction and go back to auto-commit. 
+         * Errors are printed, since this is usually called while handling
+         * another exception.
+         */
+        void rollback() {
+            try {
+                mConnection.rollback();
+                mConnection.setAutoCommit(true);
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+    }
+
+    /**
+     * Pool occupancy and wait times, as of the moment stats() was called.
+     */
+    public static class Stats {
+        public final int open, idle, inUse, waiting, maxSize;
+        public final long acquires, timeouts, avgWaitMicros, maxWaitMicros;
+
+        Stats(int open, int idle, int inUse, int waiting, int maxSize, long acquires, long timeouts, long avgWaitMicros, long maxWaitMicros) {
+            this.open = open; this.idle = idle; this.inUse = inUse; this.waiting = waiting;
+            this.maxSize = maxSize; this.acquires = acquires; this.timeouts = timeouts;
+            this.avgWaitMicros = avgWaitMicros; this.maxWaitMicros = maxWaitMicros;
+        }
+
+        @Override
+        public String toString() {
+            return "pool: " + inUse + "/" + maxSize + " in use, " + idle + " idle, " + waiting + " waiting, "
+                    + acquires + " acquires, " + timeouts + " timeouts, avg wait " + avgWaitMicros
+                    + "us, max wait " + maxWaitMicros + "us";
+        }
+    }
+}
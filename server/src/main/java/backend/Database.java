@@ -1,15 +1,24 @@
 package backend;
 
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.sql.Connection;
 import java.sql.Date;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import backend.ConnectionPool.PooledConnection;
+import schema.Migrations;
 
 /**
  * This class represents the postgres database running on ElephantSQL
@@ -18,23 +27,156 @@ import java.util.ArrayList;
 public class Database {
 
     /**
-     * The connection to the database.  When there is no connection, it should
-     * be null.  Otherwise, there is a valid open connection
+     * The pool of connections to the database. When there is no connection,
+     * it should be null. Every method borrows a connection from the pool, so
+     * a Database can be shared by all of the server's threads.
+     */
+    private ConnectionPool mPool;
+
+    /**
+     * In-memory copy of the Teams table, so trades and portfolios don't need
+     * to query it. Everything in this class that changes a team keeps it up 
+     * to date.
      */
-    private Connection mConnection;
+    private TeamCache mTeamCache;
+
+    /**
+     * The whole market in memory, for the read routes. Everything in this
+     * class that changes a user or a team keeps it up to date.
+     */
+    private Market mMarket;
+
+    /**
+     * Goes up every time a team's price, record or history changes, so that
+     * cached responses built from the market know when they are stale
+     */
+    private final AtomicLong mMarketVersion = new AtomicLong();
 
     /*
-     * What follows is a large amount of PreparedStatements that are used
-     * to query the database. It saves a lot of lines to just compact it :)
+     * What follows is the SQL for all of the PreparedStatements that are used
+     * to query the database. Each pooled connection prepares them the first
+     * time it needs them. The tables themselves are created by Migrations.
      */
-    private PreparedStatement mUsersSelectAll, mOwnershipsSelectAll, mTeamsSelectAll, mUsersDeleteOne, 
-                    mOwnershipsDeleteOne, mTeamsDeleteOne, mUsersInsertOne, mOwnershipsInsertOne,
-                    mTeamsInsertOne, mUsersUpdateOne, mOwnershipsUpdateOne, mTeamsUpdateOne, mCreateUsers,
-                    mCreateTeams, mCreateOwnerships, mDropTables, mGetOwnerships, mGetTeam, mGetUser,
-                    mGetUserOwnership, mGetUserID, mGetConfig, mUpdateConfig;
 
-    private PreparedStatement mTransactionsInsert, mTransactionsSelectOne,  mTeamHistoryInsert, mTeamHistoryUpdate, 
-                    mTeamHistorySelectOne, mCreateConfig, mCreateTransactions, mCreateTeamHistory;
+    // Delete statements
+    private static final String USERS_DELETE_ONE = "DELETE FROM Users WHERE uid = ?";
+    private static final String TEAMS_DELETE_ONE = "DELETE FROM Teams WHERE tid = ?";
+    private static final String OWNERSHIPS_DELETE_ONE = "DELETE FROM Ownerships WHERE uid = ? AND tid = ?";
+
+    // Insert statements
+    private static final String USERS_INSERT_ONE = "INSERT INTO Users (uid, username, password, money) VALUES (default, ?, ?, 1000)";
+    private static final String TEAMS_INSERT_ONE = "INSERT INTO Teams (tid, name, price, wins, losses, pointsfor, pointsagainst) VALUES (?, ?, ?, ?, ?, ?, ?)";
+    private static final String OWNERSHIPS_INSERT_ONE = "INSERT INTO Ownerships (uid, tid, count) VALUES (?, ?, ?)";
+
+    // Update statements
+    private static final String USERS_UPDATE_ONE = "UPDATE Users SET money = ? WHERE uid = ?";
+    private static final String TEAMS_UPDATE_ONE = "UPDATE Teams SET price = ?, wins = ?, losses = ?, pointsfor = ?, pointsagainst = ? WHERE tid = ?";
+    private static final String OWNERSHIPS_UPDATE_ONE = "UPDATE Ownerships SET count = ? WHERE uid = ? AND tid = ?";
+
+    // Trade statements. The UPDATE/SELECT ... FOR UPDATE on Users takes a row
+    // lock that is held until the trade's transaction commits. Prices come
+    // from the team cache rather than the Teams table
+    private static final String USERS_CHARGE_FOR_PURCHASE = "UPDATE Users SET money = money - ? WHERE uid = ? AND money >= ? " +
+                    "RETURNING money";
+    private static final String USERS_LOCK_FOR_SALE = "SELECT uid FROM Users WHERE uid = ? FOR UPDATE";
+    private static final String OWNERSHIPS_ADD_WITH_TRANSACTION = "WITH t AS (INSERT INTO Transactions (uid, tid, change, price) " +
+                    "VALUES (?, ?, ?, ?)) INSERT INTO Ownerships (uid, tid, count) VALUES (?, ?, ?) " +
+                    "ON CONFLICT (uid, tid) DO UPDATE SET count = Ownerships.count + EXCLUDED.count RETURNING count";
+    private static final String USERS_PAY_WITH_TRANSACTION = "WITH t AS (INSERT INTO Transactions (uid, tid, change, price) " +
+                    "VALUES (?, ?, ?, ?)) UPDATE Users SET money = money + ? WHERE uid = ?";
+
+    // Select all statements
+    // Every user with their networth, worked out by the database in one pass
+    // over Users, Ownerships and Teams instead of one query per holding
+    private static final String USERS_SELECT_ALL_NETWORTH = "SELECT u.uid, u.username, u.money, " +
+                    "u.money + COALESCE(SUM(o.count * t.price), 0) AS networth FROM Users u " +
+                    "LEFT JOIN Ownerships o ON o.uid = u.uid LEFT JOIN Teams t ON t.tid = o.tid " +
+                    "GROUP BY u.uid ORDER BY u.money";
+    private static final String TEAMS_SELECT_ALL = "SELECT * FROM Teams ORDER BY price";
+    private static final String TEAMS_SELECT_IDS = "SELECT tid FROM Teams";
+    private static final String OWNERSHIPS_SELECT_ALL = "SELECT * FROM Ownerships ORDER BY uid";
+
+    private static final String GET_OWNERSHIPS = "SELECT * FROM Ownerships WHERE uid = ?";
+    private static final String GET_TEAM = "SELECT * FROM Teams WHERE tid=?";
+    private static final String GET_USER = "SELECT * FROM Users WHERE uid=?";
+
+    private static final String GET_USER_OWNERSHIP = "SELECT * FROM Ownerships WHERE uid = ? AND tid = ?";
+    private static final String GET_USER_ID = "SELECT * FROM Users WHERE username = ?";
+
+    private static final String GET_CONFIG = "SELECT * FROM Config WHERE cid=?";
+    private static final String UPDATE_CONFIG = "UPDATE Config SET val=? WHERE cid=?";
+
+    // TeamHistory
+    private static final String TEAM_HISTORY_INSERT = "INSERT INTO TeamHistory (tid, date, price) VALUES (?, ?, ?)";
+    private static final String TEAM_HISTORY_UPDATE = "UPDATE TeamHistory SET price=? WHERE tid=? AND date=?";
+    private static final String TEAM_HISTORY_SELECT_ONE = "SELECT * FROM TeamHistory WHERE tid=? ORDER BY date, hid";
+    private static final String TEAM_HISTORY_SELECT_ALL = "SELECT * FROM TeamHistory ORDER BY tid, date, hid";
+    // a range scan of the (tid, date) index
+    private static final String TEAM_HISTORY_SELECT_RANGE = "SELECT * FROM TeamHistory WHERE tid=? AND date>=? AND date<=? ORDER BY date, hid";
+
+    // TeamCandles. A batch's candles are rolled up before they are sent, so
+    // each one merges into the stored candle once. Rows added out of order
+    // rebuild their candles from TeamHistory instead
+    private static final String TEAM_CANDLES_UPSERT = "INSERT INTO TeamCandles (tid, resolution, start, open, high, low, close, games) " +
+                    "VALUES (?, ?, ?, ?, ?, ?, ?, ?) ON CONFLICT (tid, resolution, start) DO UPDATE SET " +
+                    "high = GREATEST(TeamCandles.high, EXCLUDED.high), low = LEAST(TeamCandles.low, EXCLUDED.low), " +
+                    "close = EXCLUDED.close, games = TeamCandles.games + EXCLUDED.games";
+    private static final String TEAM_CANDLES_DELETE = "DELETE FROM TeamCandles WHERE tid=? AND resolution=? AND start=?";
+    // a candle built again from TeamHistory, after a price in it changed
+    private static final String TEAM_CANDLES_REBUILD = "INSERT INTO TeamCandles (tid, resolution, start, open, high, low, close, games) " +
+                    "SELECT tid, ?, ?, (array_agg(price ORDER BY date, hid))[1], max(price), min(price), " +
+                    "(array_agg(price ORDER BY date DESC, hid DESC))[1], count(*) FROM TeamHistory WHERE tid=? AND date >= ? AND date < ? " +
+                    "GROUP BY tid";
+    private static final String TEAM_CANDLES_SELECT = "SELECT * FROM TeamCandles WHERE tid=? AND resolution=? " +
+                    "AND start>=? AND start<=? ORDER BY start";
+
+    // Transactions
+    private static final String TRANSACTIONS_INSERT = "INSERT INTO Transactions (uid, tid, change, price) VALUES (?, ?, ?, ?)";
+    // a user's newest transactions, oldest first. Older ones are paged
+    // through with TRANSACTIONS_SELECT_PAGE
+    private static final String TRANSACTIONS_SELECT_RECENT_ONE = "SELECT * FROM (SELECT * FROM Transactions " +
+                    "WHERE uid=? ORDER BY txid DESC LIMIT ?) t ORDER BY txid";
+    // the same for every user, each one a short scan of the (uid, txid) index
+    private static final String TRANSACTIONS_SELECT_RECENT_ALL = "SELECT u.uid, t.tid, t.change, t.price FROM Users u " +
+                    "CROSS JOIN LATERAL (SELECT * FROM Transactions x WHERE x.uid = u.uid ORDER BY txid DESC LIMIT ?) t " +
+                    "ORDER BY u.uid, t.txid";
+    // newest first, read straight off the (uid, txid) index
+    private static final String TRANSACTIONS_SELECT_PAGE = "SELECT txid, tid, change, price FROM Transactions " +
+                    "WHERE uid=? AND txid<? ORDER BY txid DESC LIMIT ?";
+
+    // CollectorMatches
+    private static final String COLLECTOR_MATCHES_INSERT = "INSERT INTO CollectorMatches (matchid, radiant, dire) VALUES (?, ?, ?) " +
+                    "ON CONFLICT (matchid) DO NOTHING";
+    private static final String COLLECTOR_MATCHES_SELECT_PENDING = "SELECT * FROM CollectorMatches WHERE state = 0 ORDER BY matchid";
+    // only a pending match can be marked done, so no match is ever applied twice
+    private static final String COLLECTOR_MATCHES_DONE = "UPDATE CollectorMatches SET state = 1, attempts = attempts + 1, " +
+                    "lasterror = NULL, updated = now() WHERE matchid = ? AND state = 0";
+    private static final String COLLECTOR_MATCHES_FAILED = "UPDATE CollectorMatches SET attempts = attempts + 1, lasterror = ?, " +
+                    "state = CASE WHEN attempts + 1 >= ? THEN 2 ELSE 0 END, updated = now() WHERE matchid = ? AND state = 0";
+
+    // Trade journal. A batch changes each user's money and each ownership
+    // once. The EXISTS checks skip trades by users or for teams that were
+    // deleted after the trade was journaled
+    private static final String USERS_ADD_MONEY = "UPDATE Users SET money = money + ? WHERE uid = ?";
+    private static final String OWNERSHIPS_ADD_COUNT = "INSERT INTO Ownerships (uid, tid, count) SELECT ?, ?, ? " +
+                    "WHERE EXISTS (SELECT 1 FROM Users WHERE uid = ?) AND EXISTS (SELECT 1 FROM Teams WHERE tid = ?) " +
+                    "ON CONFLICT (uid, tid) DO UPDATE SET count = Ownerships.count + EXCLUDED.count";
+    private static final String OWNERSHIPS_DELETE_EMPTY = "DELETE FROM Ownerships WHERE uid = ? AND tid = ? AND count <= 0";
+    private static final String TRANSACTIONS_INSERT_IF_USER = "INSERT INTO Transactions (uid, tid, change, price) " +
+                    "SELECT ?, ?, ?, ? WHERE EXISTS (SELECT 1 FROM Users WHERE uid = ?)";
+    private static final String JOURNAL_SET_APPLIED = "INSERT INTO Config (cid, val) VALUES (" +
+                    TradeJournal.CONFIG_APPLIED_SEQ + ", ?) ON CONFLICT (cid) DO UPDATE SET val = EXCLUDED.val";
+
+    /**
+     * Default pool settings, used when the caller doesn't pick any
+     */
+    static final int DEFAULT_POOL_MIN = 2, DEFAULT_POOL_MAX = 10, DEFAULT_POOL_TIMEOUT_MS = 5000;
+
+    /**
+     * The Config row the admin app bumps whenever it edits a team or its
+     * history
+     */
+    static final int CONFIG_TEAMS_EDITED = 5;
 
     /**
      * The Database constructor is private: we only create Database objects 
@@ -44,29 +186,43 @@ public class Database {
     }
 
     /**
-     * Get a fully-configured connection to the database
+     * Get a fully-configured connection pool for the database, using the
+     * default pool settings
      * 
      * @param db_url the url of the database
      * 
      * @return A Database object, or null if we cannot connect properly
      */
     static Database getDatabase(String db_url) {
+        return getDatabase(db_url, DEFAULT_POOL_MIN, DEFAULT_POOL_MAX, DEFAULT_POOL_TIMEOUT_MS);
+    }
+
+    /**
+     * Get a fully-configured connection pool for the database
+     * 
+     * @param db_url the url of the database
+     * @param poolMin the number of connections to keep open
+     * @param poolMax the most connections to open at once
+     * @param poolTimeoutMillis how long a request waits for a free connection
+     * 
+     * @return A Database object, or null if we cannot connect properly
+     */
+    static Database getDatabase(String db_url, int poolMin, int poolMax, long poolTimeoutMillis) {
         // Create an un-configured Database object
         Database db = new Database();
+        db.mTeamCache = new TeamCache(db);
+        db.mMarket = new Market(db);
 
-        // Give the Database object a connection, fail if we cannot get one
+        // Give the Database object a pool of connections, fail if we cannot 
+        // open the first ones
         try {
             Class.forName("org.postgresql.Driver");
             URI dbUri = new URI(db_url);
             String username = dbUri.getUserInfo().split(":")[0];
             String password = dbUri.getUserInfo().split(":")[1];
-            String dbUrl = "jdbc:postgresql://" + dbUri.getHost() + ":5432" + dbUri.getPath();
-            Connection conn = DriverManager.getConnection(dbUrl, username, password);
-            if (conn == null) {
-                System.err.println("Error: DriverManager.getConnection() returned a null object");
-                return null;
-            }
-            db.mConnection = conn;
+            int port = dbUri.getPort() == -1 ? 5432 : dbUri.getPort();
+            String dbUrl = "jdbc:postgresql://" + dbUri.getHost() + ":" + port + dbUri.getPath();
+            db.mPool = new ConnectionPool(dbUrl, username, password, poolMin, poolMax, poolTimeoutMillis);
         } catch (SQLException e) {
             System.err.println("Error: DriverManager.getConnection() threw a SQLException");
             e.printStackTrace();
@@ -79,64 +235,16 @@ public class Database {
             return null;
         }
 
-        // Attempt to create all of our prepared statements.  If any of these 
-        // fail, the whole getDatabase() call should fail
-        try {
-            // Here we initialize all of our PreparedStatment objects so that they are easy 
-            // to use in the methods of the database
-            db.mCreateUsers = db.mConnection.prepareStatement(
-                    "CREATE TABLE IF NOT EXISTS Users( uid SERIAL PRIMARY KEY, username VARCHAR(20) " + 
-                    "UNIQUE NOT NULL, password INTEGER NOT NULL, money INTEGER NOT NULL)");
-            db.mDropTables = db.mConnection.prepareStatement("DROP TABLE ?");
-            db.mCreateTeams = db.mConnection.prepareStatement("CREATE TABLE IF NOT EXISTS Teams( tid SERIAL PRIMARY KEY, name VARCHAR(30), " + 
-            "price INTEGER NOT NULL, wins INTEGER NOT NULL, losses INTEGER NOT NULL, pointsfor INTEGER NOT NULL, pointsagainst INTEGER NOT NULL)");
-            //TODO make the ids foreign keys
-            db.mCreateOwnerships = db.mConnection.prepareStatement("CREATE TABLE IF NOT EXISTS Ownerships( uid INTEGER NOT NULL, tid INTEGER NOT NULL, count INTEGER NOT NULL)");
-            db.mCreateConfig = db.mConnection.prepareStatement("CREATE TABLE IF NOT EXISTS Config ( cid SERIAL PRIMARY KEY, val bigint NOT NULL )");
-            db.mCreateTeamHistory = db.mConnection.prepareStatement("CREATE TABLE IF NOT EXISTS TeamHistory ( tid INTEGER NOT NULL, date DATE, price INTEGER NOT NULL )");
-            db.mCreateTransactions = db.mConnection.prepareStatement("CREATE TABLE IF NOT EXISTS Transactions ( uid INTEGER NOT NULL, tid INTEGER NOT NULL, change INTEGER NOT NULL, price INTEGER NOT NULL )");
-
-            // Delete prepared statements
-            db.mUsersDeleteOne = db.mConnection.prepareStatement("DELETE FROM Users WHERE uid = ?");
-            db.mTeamsDeleteOne = db.mConnection.prepareStatement("DELETE FROM Teams WHERE tid = ?");
-            db.mOwnershipsDeleteOne = db.mConnection.prepareStatement("DELETE FROM Ownerships WHERE uid = ? AND tid = ?");
-            
-            // Insert prepared statements
-            db.mUsersInsertOne = db.mConnection.prepareStatement("INSERT INTO Users (uid, username, password, money) VALUES (default, ?, ?, 1000)");
-            db.mTeamsInsertOne = db.mConnection.prepareStatement("INSERT INTO Teams (tid, name, price, wins, losses, pointsfor, pointsagainst) VALUES (?, ?, ?, ?, ?, ?, ?)");
-            db.mOwnershipsInsertOne = db.mConnection.prepareStatement("INSERT INTO Ownerships (uid, tid, count) VALUES (?, ?, ?)");
-
-            // Update prepared statements
-            db.mUsersUpdateOne = db.mConnection.prepareStatement("UPDATE Users SET money = ? WHERE uid = ?");
-            db.mTeamsUpdateOne = db.mConnection.prepareStatement("UPDATE Teams SET price = ?, wins = ?, losses = ?, pointsfor = ?, pointsagainst = ? WHERE tid = ?");
-            db.mOwnershipsUpdateOne = db.mConnection.prepareStatement("UPDATE Ownerships SET count = ? WHERE uid = ? AND tid = ?");
-            
-            // Select all prepared statements
-            db.mUsersSelectAll = db.mConnection.prepareStatement("SELECT * FROM Users ORDER BY money");
-            db.mTeamsSelectAll = db.mConnection.prepareStatement("SELECT * FROM Teams ORDER BY price");
-            db.mOwnershipsSelectAll = db.mConnection.prepareStatement("SELECT * FROM Ownerships ORDER BY uid");
-
-            db.mGetOwnerships = db.mConnection.prepareStatement("SELECT * FROM Ownerships WHERE uid = ?");
-            db.mGetTeam = db.mConnection.prepareStatement("SELECT * FROM Teams WHERE tid=?");
-            db.mGetUser = db.mConnection.prepareStatement("SELECT * FROM Users WHERE uid=?");
-
-            db.mGetUserOwnership = db.mConnection.prepareStatement("SELECT * FROM Ownerships WHERE uid = ? AND tid = ?");
-            db.mGetUserID = db.mConnection.prepareStatement("SELECT * FROM Users WHERE username = ?");
-
-            db.mGetConfig = db.mConnection.prepareStatement("SELECT * FROM Config WHERE cid=?");
-            db.mUpdateConfig = db.mConnection.prepareStatement("UPDATE Config SET val=? WHERE cid=?");
-
-            // TeamHistory
-            db.mTeamHistoryInsert = db.mConnection.prepareStatement("INSERT INTO TeamHistory (tid, date, price) VALUES (?, ?, ?)");
-            db.mTeamHistoryUpdate = db.mConnection.prepareStatement("UPDATE TeamHistory SET price=? WHERE tid=? AND date=?");
-            db.mTeamHistorySelectOne = db.mConnection.prepareStatement("SELECT * FROM TeamHistory WHERE tid=? ORDER BY date");
-
-            //Transactions
-            db.mTransactionsInsert = db.mConnection.prepareStatement("INSERT INTO Transactions (uid, tid, change, price) VALUES (?, ?, ?, ?)");
-            db.mTransactionsSelectOne = db.mConnection.prepareStatement("SELECT * FROM Transactions WHERE uid=?");
-        
+        // Make sure we can actually talk to the database before handing the
+        // pool out. If this fails, the whole getDatabase() call should fail
+        try (PooledConnection conn = db.mPool.acquire()) {
+            if (!conn.mConnection.isValid(5)) {
+                System.err.println("Error: database connection is not valid");
+                db.disconnect();
+                return null;
+            }
         } catch (SQLException e) {
-            System.err.println("Error creating prepared statement");
+            System.err.println("Error checking the database connection");
             e.printStackTrace();
             db.disconnect();
             return null;
@@ -145,93 +253,213 @@ public class Database {
     }
 
     /**
-     * Close the current connection to the database, if one exists.
+     * Close the connection pool, if one exists.
      * 
-     * NB: The connection will always be null after this call, even if an 
+     * NB: The pool will always be null after this call, even if an 
      *     error occurred during the closing operation.
      * 
-     * @return True if the connection was cleanly closed, false otherwise
+     * @return True if the pool was cleanly closed, false otherwise
      */
     boolean disconnect() {
-        if (mConnection == null) {
+        if (mPool == null) {
             System.err.println("Unable to close connection: Connection was null");
             return false;
         }
-        try {
-            mConnection.close();
-        } catch (SQLException e) {
-            System.err.println("Error: Connection.close() threw a SQLException");
-            e.printStackTrace();
-            mConnection = null;
-            return false;
-        }
-        mConnection = null;
+        mPool.close();
+        mPool = null;
         return true;
     }
 
+    /**
+     * @return the in-memory copy of the Teams table
+     */
+    TeamCache teamCache() {
+        return mTeamCache;
+    }
+
+    /**
+     * @return the in-memory market
+     */
+    Market market() {
+        return mMarket;
+    }
+
+    /**
+     * @return the current market version. Any change to Teams or TeamHistory
+     *         made through this Database moves it on.
+     */
+    long marketVersion() {
+        return mMarketVersion.get();
+    }
+
+    /**
+     * Note that teams or their history have changed. Call this after changes
+     * made outside this Database, e.g. by the admin app.
+     */
+    void marketChanged() {
+        mMarketVersion.incrementAndGet();
+    }
+
+    /**
+     * Time every query from now on, labelled with the name of its constant
+     * in this class
+     */
+    void recordQueries(Metrics metrics) {
+        metrics.nameStatements(Database.class);
+        mPool.setMetrics(metrics);
+    }
+
+    /**
+     * @return how busy the connection pool is right now
+     */
+    ConnectionPool.Stats poolStats() {
+        return mPool.stats();
+    }
+
+    /**
+     * Buy shares of a team for a user. Everything happens in one database
+     * transaction: the user's row is locked and charged only if they can 
+     * afford it, so concurrent buys against the same user are safe.
+     * 
+     * @return the number of shares the user now owns. 0 if they can't afford
+     *         it (or the user or team doesn't exist). -1 indicates an error.
+     */
     int userPurchase(int uid, int tid, int amount) {
-        int spendable = getUser(uid).money;
-        int price = getTeamPrice(tid);
-        int cost = price * amount;
-        if (spendable < cost) {
+        int price = mTeamCache.getPrice(tid);
+        if (amount <= 0 || price < 0 || (long) price * amount > Integer.MAX_VALUE) {
             return 0;
-        } 
-        else {
-            if (usersUpdateOne(uid, spendable-cost) == -1) {
-                System.out.println("Failed to update user");
-                return -1;
-            }
-            // update transactions table
-            TransactionsInsert(uid, tid, amount, price);
-
-            return addOwnerships(uid, tid, amount);
         }
-    }
+        int cost = price * amount;
+        try (PooledConnection conn = mPool.acquire()) {
+            conn.begin();
+            try {
+                // charge the user, which also locks their row until we commit
+                PreparedStatement ps = conn.prepare(USERS_CHARGE_FOR_PURCHASE);
+                ps.setInt(1, cost);
+                ps.setInt(2, uid);
+                ps.setInt(3, cost);
+                ResultSet rs = ps.executeQuery();
+                if (!rs.next()) {
+                    conn.rollback();
+                    return 0;
+                }
 
-    int addOwnerships(int uid, int tid, int amount) {
-        int current = getUserOwnership(uid, tid);
-        try {
-            if (current <= 0) {
-                mOwnershipsInsertOne.setInt(1, uid);
-                mOwnershipsInsertOne.setInt(2, tid);
-                mOwnershipsInsertOne.setInt(3, amount);
-                mOwnershipsInsertOne.executeUpdate();
-                return amount;
-            } else {
-                ownershipsUpdateOne(uid, tid, amount + current);
-                return current + amount;
+                // record the transaction and add to the user's ownership
+                ps = conn.prepare(OWNERSHIPS_ADD_WITH_TRANSACTION);
+                ps.setInt(1, uid);
+                ps.setInt(2, tid);
+                ps.setInt(3, amount);
+                ps.setInt(4, price);
+                ps.setInt(5, uid);
+                ps.setInt(6, tid);
+                ps.setInt(7, amount);
+                rs = ps.executeQuery();
+                rs.next();
+                int owned = rs.getInt("count");
+                // while we still hold the user's row, so the market sees
+                // each user's trades in the order they commit
+                mMarket.trade(uid, tid, amount, price);
+                commitTrade(conn, uid);
+                return owned;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
             }
-            
         } catch (SQLException e) {
             e.printStackTrace();
         }
         return -1;
-        
     }
 
+    /**
+     * Commit a trade that the market has already been told about. If the
+     * commit fails the user is loaded into the market again, without the
+     * trade.
+     */
+    private void commitTrade(PooledConnection conn, int uid) throws SQLException {
+        try {
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            mMarket.reloadUser(uid);
+            throw e;
+        }
+    }
+
+    /**
+     * Sell shares of a team for a user, in one database transaction. The 
+     * user's row is locked first (like in userPurchase) so buys and sells 
+     * for the same user can't interleave.
+     * 
+     * @return the money gained from the sale. Selling more than the user owns
+     *         sells everything they have. -1 indicates an error.
+     */
     int userSell(int uid, int tid, int amount) {
-        int owned = getUserOwnership(uid, tid);
-        int gained = 0;
-        int price = getTeamPrice(tid);
-        if (amount >= owned) {
-            amount = owned;
-            ownershipsDeleteRow(uid, tid);
-            gained = owned * price;
-        } else {
-            ownershipsUpdateOne(uid, tid, owned - amount);
-            gained = amount * price;
-        }   
-        if (usersUpdateOne(uid, gained + getUser(uid).money) == -1) {
-            System.out.println("Failed to update user");
-            return -1;
+        int price = mTeamCache.getPrice(tid);
+        if (price < 0) {
+            return 0;
         }
-        // update transactions table
-        TransactionsInsert(uid, tid, -1 * amount, price);
+        try (PooledConnection conn = mPool.acquire()) {
+            conn.begin();
+            try {
+                PreparedStatement ps = conn.prepare(USERS_LOCK_FOR_SALE);
+                ps.setInt(1, uid);
+                ResultSet rs = ps.executeQuery();
+                if (!rs.next()) {
+                    conn.rollback();
+                    return 0;
+                }
+
+                // only read the ownership once we hold the lock, so the count
+                // can't be changed underneath us
+                ps = conn.prepare(GET_USER_OWNERSHIP);
+                ps.setInt(1, uid);
+                ps.setInt(2, tid);
+                rs = ps.executeQuery();
+                int owned = rs.next() ? rs.getInt("count") : 0;
+                int sold = Math.min(amount, owned);
+                if (sold <= 0 || (long) sold * price > Integer.MAX_VALUE) {
+                    conn.rollback();
+                    return 0;
+                }
 
-        return gained;
+                if (sold == owned) {
+                    ps = conn.prepare(OWNERSHIPS_DELETE_ONE);
+                    ps.setInt(1, uid);
+                    ps.setInt(2, tid);
+                } else {
+                    ps = conn.prepare(OWNERSHIPS_UPDATE_ONE);
+                    ps.setInt(1, owned - sold);
+                    ps.setInt(2, uid);
+                    ps.setInt(3, tid);
+                }
+                ps.executeUpdate();
+
+                // record the transaction and pay the user
+                int gained = sold * price;
+                ps = conn.prepare(USERS_PAY_WITH_TRANSACTION);
+                ps.setInt(1, uid);
+                ps.setInt(2, tid);
+                ps.setInt(3, -1 * sold);
+                ps.setInt(4, price);
+                ps.setInt(5, gained);
+                ps.setInt(6, uid);
+                ps.executeUpdate();
+
+                // while we still hold the user's row, like in userPurchase
+                mMarket.trade(uid, tid, -1 * sold, price);
+                commitTrade(conn, uid);
+                return gained;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return -1;
     }
 
-    
     /**
      * Method to either sign up or log in, since they're very similar 
      * 
@@ -241,9 +469,10 @@ public class Database {
         String name = "";
         int pass = -1;
         int id = -1;
-        try {
-            mGetUserID.setString(1, username);
-            ResultSet rs = mGetUserID.executeQuery();
+        try (PooledConnection conn = mPool.acquire()) {
+            PreparedStatement ps = conn.prepare(GET_USER_ID);
+            ps.setString(1, username);
+            ResultSet rs = ps.executeQuery();
             if (rs.next()) {
                 name = rs.getString("username");
                 pass = rs.getInt("password");
@@ -252,7 +481,11 @@ public class Database {
             // if username doesn't exist, make new user
             if (name.equals("")) {
                 usersInsertRow(username, password);
-                return getUserID(username);
+                int uid = getUserID(username);
+                if (uid > 0) {
+                    mMarket.reloadUser(uid);
+                }
+                return uid;
             
             // else, check if the password is right
             } else {
@@ -267,9 +500,10 @@ public class Database {
     }
 
     int getUserID(String username) {
-        try {
-            mGetUserID.setString(1, username);
-            ResultSet rs = mGetUserID.executeQuery();
+        try (PooledConnection conn = mPool.acquire()) {
+            PreparedStatement ps = conn.prepare(GET_USER_ID);
+            ps.setString(1, username);
+            ResultSet rs = ps.executeQuery();
             if (rs.next()) {
                 return rs.getInt("uid");
             }
@@ -281,10 +515,11 @@ public class Database {
 
     int getUserOwnership(int uid, int tid) {
         
-        try {
-            mGetUserOwnership.setInt(1, uid);
-            mGetUserOwnership.setInt(2, tid);
-            ResultSet rs = mGetUserOwnership.executeQuery();
+        try (PooledConnection conn = mPool.acquire()) {
+            PreparedStatement ps = conn.prepare(GET_USER_OWNERSHIP);
+            ps.setInt(1, uid);
+            ps.setInt(2, tid);
+            ResultSet rs = ps.executeQuery();
             if (rs.next()) {
                 return rs.getInt("count");
             }
@@ -294,17 +529,11 @@ public class Database {
         return 0;
     }
 
+    /**
+     * @return the team's name, from the team cache
+     */
     String getTeamName(int tid) {
-        try {
-            mGetTeam.setInt(1, tid);
-            ResultSet rs = mGetTeam.executeQuery();
-            if (rs.next()) {
-                return rs.getString("name");
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        return "null";
+        return mTeamCache.getName(tid);
     }
 
     /**
@@ -314,18 +543,22 @@ public class Database {
      */
     int teamInsertRow(int tid, String name, int price, int wins, int losses, int pointsfor, int poinstagainst) {
         int count = 0;
-        try {
-            mTeamsInsertOne.setInt(1, tid);
-            mTeamsInsertOne.setString(2, name);
-            mTeamsInsertOne.setInt(3, price);
-            mTeamsInsertOne.setInt(4, wins);
-            mTeamsInsertOne.setInt(5, losses);
-            mTeamsInsertOne.setInt(6, pointsfor);
-            mTeamsInsertOne.setInt(7, poinstagainst);
-            count += mTeamsInsertOne.executeUpdate();
+        try (PooledConnection conn = mPool.acquire()) {
+            PreparedStatement ps = conn.prepare(TEAMS_INSERT_ONE);
+            ps.setInt(1, tid);
+            ps.setString(2, name);
+            ps.setInt(3, price);
+            ps.setInt(4, wins);
+            ps.setInt(5, losses);
+            ps.setInt(6, pointsfor);
+            ps.setInt(7, poinstagainst);
+            count += ps.executeUpdate();
         } catch (SQLException e) {
             e.printStackTrace();
         }
+        mTeamCache.invalidate(tid);
+        mMarket.reloadTeam(tid);
+        marketChanged();
         return count;
     }
 
@@ -336,10 +569,11 @@ public class Database {
      */
     int usersInsertRow(String username, int password) {
         int count = 0;
-        try {
-            mUsersInsertOne.setString(1, username);
-            mUsersInsertOne.setInt(2, password);
-            count += mUsersInsertOne.executeUpdate();
+        try (PooledConnection conn = mPool.acquire()) {
+            PreparedStatement ps = conn.prepare(USERS_INSERT_ONE);
+            ps.setString(1, username);
+            ps.setInt(2, password);
+            count += ps.executeUpdate();
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -353,32 +587,88 @@ public class Database {
      */
     int ownershipsInsertRow(int uid, int tid, int count) {
         int count_2 = 0;
-        try {
-            mOwnershipsInsertOne.setInt(1, uid);
-            mOwnershipsInsertOne.setInt(2, tid);
-            mOwnershipsInsertOne.setInt(3, count);
-            count += mOwnershipsInsertOne.executeUpdate();
+        try (PooledConnection conn = mPool.acquire()) {
+            PreparedStatement ps = conn.prepare(OWNERSHIPS_INSERT_ONE);
+            ps.setInt(1, uid);
+            ps.setInt(2, tid);
+            ps.setInt(3, count);
+            count += ps.executeUpdate();
         } catch (SQLException e) {
             e.printStackTrace();
         }
+        mMarket.reloadUser(uid);
         return count_2;
     }
 
     /**
-     * Query Messages for a list of all the content in the table.
+     * Query Teams for a list of all the content in the table, along with each
+     * team's price history. The history of every team is loaded with one
+     * ordered query and grouped in memory, rather than one query per team.
      * 
-     * @return All message rows, as an ArrayList
+     * @return All team rows, as an ArrayList
      */
     ArrayList<TeamRow> teamsSelectAll() {
         ArrayList<TeamRow> res = new ArrayList<TeamRow>();
-        try {
-            ResultSet rs = mTeamsSelectAll.executeQuery();
+        try (PooledConnection conn = mPool.acquire()) {
+            HashMap<Integer, PriceHistory> histories = new HashMap<>();
+            ResultSet rs = conn.prepare(TEAM_HISTORY_SELECT_ALL).executeQuery();
             while (rs.next()) {
                 int tid = rs.getInt("tid");
-                ArrayList<TeamHistoryRow> history = TeamHistorySelectOne(tid);
-                res.add(new TeamRow(tid, rs.getString("name"), rs.getInt("price"),
-                 rs.getInt("wins"), rs.getInt("losses"), rs.getInt("pointsfor"),
-                  rs.getInt("pointsagainst"), history));
+                histories.put(tid, histories.getOrDefault(tid, PriceHistory.empty(tid))
+                        .append(rs.getDate("date"), rs.getInt("price")));
+            }
+            rs.close();
+
+            for (TeamSummary t : teamSummariesSelectAll(conn)) {
+                res.add(new TeamRow(t, histories.getOrDefault(t.tid, PriceHistory.empty(t.tid))));
+            }
+            return res;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Query Teams for every team, without their history
+     * 
+     * @return All teams, by price, or null if there was an error
+     */
+    ArrayList<TeamSummary> teamSummariesSelectAll() {
+        try (PooledConnection conn = mPool.acquire()) {
+            return teamSummariesSelectAll(conn);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static ArrayList<TeamSummary> teamSummariesSelectAll(PooledConnection conn) throws SQLException {
+        ArrayList<TeamSummary> res = new ArrayList<>();
+        ResultSet rs = conn.prepare(TEAMS_SELECT_ALL).executeQuery();
+        while (rs.next()) {
+            res.add(teamSummary(rs));
+        }
+        rs.close();
+        return res;
+    }
+
+    private static TeamSummary teamSummary(ResultSet rs) throws SQLException {
+        return new TeamSummary(rs.getInt("tid"), rs.getString("name"), rs.getInt("price"),
+                rs.getInt("wins"), rs.getInt("losses"), rs.getInt("pointsfor"), rs.getInt("pointsagainst"));
+    }
+
+    /**
+     * Query Teams for just the ids of every team
+     * 
+     * @return All team ids, as an ArrayList
+     */
+    ArrayList<Integer> teamIDsSelectAll() {
+        ArrayList<Integer> res = new ArrayList<Integer>();
+        try (PooledConnection conn = mPool.acquire()) {
+            ResultSet rs = conn.prepare(TEAMS_SELECT_IDS).executeQuery();
+            while (rs.next()) {
+                res.add(rs.getInt("tid"));
             }
             rs.close();
             return res;
@@ -389,19 +679,20 @@ public class Database {
     }
 
     /**
-     * Query Users for a list of all the content in the table.
+     * Query Users for a list of all the content in the table. Networth is 
+     * computed by the database in the same query, so this is a single round
+     * trip no matter how many users or holdings there are.
      * 
      * @return All user rows, as an ArrayList
      */
     ArrayList<UserRow> usersSelectAll() {
         ArrayList<UserRow> res = new ArrayList<UserRow>();
-        try {
-            ResultSet rs = mUsersSelectAll.executeQuery();
+        try (PooledConnection conn = mPool.acquire()) {
+            PreparedStatement ps = conn.prepare(USERS_SELECT_ALL_NETWORTH);
+            ResultSet rs = ps.executeQuery();
             while (rs.next()) {
-                int uid = rs.getInt("uid");
-                int money = rs.getInt("money");
-                int networth = getUserStockValue(uid) + money;
-                res.add(new UserRow(uid, rs.getString("username"), networth, money, new ArrayList<NamedOwnership>(), new ArrayList<TransactionsRow>()));
+                res.add(new UserRow(rs.getInt("uid"), rs.getString("username"), rs.getInt("networth"), 
+                        rs.getInt("money"), new ArrayList<NamedOwnership>(), new ArrayList<TransactionsRow>()));
             }
             rs.close();
             return res;
@@ -411,15 +702,25 @@ public class Database {
         }
     }
 
+    /**
+     * @return a user with their shares and newest Market.RECENT_TRANSACTIONS
+     *         transactions, or null if there's no such user or an error
+     */
     UserRow getUser(int uid) {
-        try {
-            mGetUser.setInt(1, uid);
-            ResultSet rs = mGetUser.executeQuery();
+        try (PooledConnection conn = mPool.acquire()) {
+            PreparedStatement ps = conn.prepare(GET_USER);
+            ps.setInt(1, uid);
+            ResultSet rs = ps.executeQuery();
             if (rs.next()) {
                 int money = rs.getInt("money");
-                int networth = getUserStockValue(uid) + money;
-                ArrayList<TransactionsRow> transactions = TransactionsSelectOne(uid);
-                return new UserRow(uid, rs.getString("username"), networth, money, getUserOwnerships(uid), transactions);
+                String username = rs.getString("username");
+                ArrayList<NamedOwnership> ownerships = getUserOwnerships(uid);
+                int networth = money;
+                for (NamedOwnership o : ownerships) {
+                    networth += o.price * o.count;
+                }
+                ArrayList<TransactionsRow> transactions = transactionsSelectRecent(uid, Market.RECENT_TRANSACTIONS);
+                return new UserRow(uid, username, networth, money, ownerships, transactions);
             }
         } catch (SQLException e) {
             e.printStackTrace();
@@ -427,14 +728,40 @@ public class Database {
         return null;
     }
 
+    /**
+     * @return the user's money. -2 if there's no such user, -1 indicates an
+     *         error.
+     */
+    int getUserMoney(int uid) {
+        try (PooledConnection conn = mPool.acquire()) {
+            PreparedStatement ps = conn.prepare(GET_USER);
+            ps.setInt(1, uid);
+            ResultSet rs = ps.executeQuery();
+            return rs.next() ? rs.getInt("money") : -2;
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return -1;
+    }
+
+    /**
+     * Get the value of everything a user owns at current prices. Prices come
+     * from the team cache, so this is a single query on Ownerships.
+     *
+     * Unlike usersSelectAll(), this doesn't use the USERS_SELECT_ALL_NETWORTH
+     * aggregate. Once prices were cached, joining Teams for a single user
+     * only added work.
+     *
+     * @return the total value of the user's stocks. -1 indicates an error.
+     */
     int getUserStockValue(int uid) {
         int stockVal = 0;
-        try {
-            mGetOwnerships.setInt(1, uid);
-            ResultSet rs = mGetOwnerships.executeQuery();
+        try (PooledConnection conn = mPool.acquire()) {
+            PreparedStatement ps = conn.prepare(GET_OWNERSHIPS);
+            ps.setInt(1, uid);
+            ResultSet rs = ps.executeQuery();
             while (rs.next()) {
-                int thisTeamPrice = getTeamPrice(rs.getInt("tid"));
-                stockVal += thisTeamPrice * rs.getInt("count");
+                stockVal += mTeamCache.getPrice(rs.getInt("tid")) * rs.getInt("count");
             }
             return stockVal;
         } catch (SQLException e) {
@@ -443,28 +770,25 @@ public class Database {
         return -1;
     }
 
+    /**
+     * @return the team's current price, from the team cache. -1 if the team
+     *         doesn't exist.
+     */
     int getTeamPrice(int tid) {
-        try {
-            mGetTeam.setInt(1, tid);
-            ResultSet rs = mGetTeam.executeQuery();
-            if (rs.next()) {
-                return rs.getInt("price");
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        return -1;
+        return mTeamCache.getPrice(tid);
     }
 
     ArrayList<NamedOwnership> getUserOwnerships(int uid) {
         ArrayList<NamedOwnership> res = new ArrayList<NamedOwnership>();
-        try {
-            mGetOwnerships.setInt(1, uid);
-            ResultSet rs = mGetOwnerships.executeQuery();
+        try (PooledConnection conn = mPool.acquire()) {
+            PreparedStatement ps = conn.prepare(GET_OWNERSHIPS);
+            ps.setInt(1, uid);
+            ResultSet rs = ps.executeQuery();
             while (rs.next()) {
                 int tid = rs.getInt("tid");
-                res.add(new NamedOwnership(uid, tid, 
-                rs.getInt("count"), getTeamName(tid), getTeamPrice(tid)));
+                TeamSummary team = mTeamCache.get(tid);
+                res.add(new NamedOwnership(uid, tid, rs.getInt("count"), 
+                        team == null ? "null" : team.name, team == null ? -1 : team.price));
             }
             rs.close();
             return res;
@@ -481,8 +805,9 @@ public class Database {
      */
     ArrayList<OwnershipsRow> ownershipsSelectAll() {
         ArrayList<OwnershipsRow> res = new ArrayList<OwnershipsRow>();
-        try {
-            ResultSet rs = mOwnershipsSelectAll.executeQuery();
+        try (PooledConnection conn = mPool.acquire()) {
+            PreparedStatement ps = conn.prepare(OWNERSHIPS_SELECT_ALL);
+            ResultSet rs = ps.executeQuery();
             while (rs.next()) {
                 res.add(new OwnershipsRow(rs.getInt("uid"), rs.getInt("tid"), 
                 rs.getInt("count")));
@@ -504,24 +829,43 @@ public class Database {
      */
     int usersDeleteRow(int id) {
         int res = -1;
-        try {
-            mUsersDeleteOne.setInt(1, id);
-            res = mUsersDeleteOne.executeUpdate();
+        try (PooledConnection conn = mPool.acquire()) {
+            PreparedStatement ps = conn.prepare(USERS_DELETE_ONE);
+            ps.setInt(1, id);
+            res = ps.executeUpdate();
         } catch (SQLException e) {
             e.printStackTrace();
         }
+        mMarket.reloadUser(id);
         return res;
     }
 
+    /**
+     * Query Teams for one team, along with its whole price history
+     * 
+     * @return the team, or null if it doesn't exist
+     */
     TeamRow getTeam(int tid) {
-        try {
-            mGetTeam.setInt(1, tid);
-            ResultSet rs = mGetTeam.executeQuery();
+        TeamSummary team = getTeamSummary(tid);
+        if (team == null) {
+            return null;
+        }
+        ArrayList<TeamHistoryRow> history = TeamHistorySelectOne(tid);
+        return new TeamRow(team, history == null ? PriceHistory.empty(tid) : PriceHistory.of(tid, history));
+    }
+
+    /**
+     * Query Teams for one team, without its history
+     * 
+     * @return the team, or null if it doesn't exist
+     */
+    TeamSummary getTeamSummary(int tid) {
+        try (PooledConnection conn = mPool.acquire()) {
+            PreparedStatement ps = conn.prepare(GET_TEAM);
+            ps.setInt(1, tid);
+            ResultSet rs = ps.executeQuery();
             if (rs.next()) {
-                ArrayList<TeamHistoryRow> history = TeamHistorySelectOne(tid);
-                return new TeamRow(tid,rs.getString("name"), rs.getInt("price")
-                                , rs.getInt("wins"), rs.getInt("losses"), rs.getInt("pointsfor"),
-                                rs.getInt("pointsagainst"), history);
+                return teamSummary(rs);
             }
         } catch (SQLException e) {
             e.printStackTrace();
@@ -536,12 +880,16 @@ public class Database {
      */
     int teamsDeleteRow(int id) {
         int res = -1;
-        try {
-            mTeamsDeleteOne.setInt(1, id);
-            res = mTeamsDeleteOne.executeUpdate();
+        try (PooledConnection conn = mPool.acquire()) {
+            PreparedStatement ps = conn.prepare(TEAMS_DELETE_ONE);
+            ps.setInt(1, id);
+            res = ps.executeUpdate();
         } catch (SQLException e) {
             e.printStackTrace();
         }
+        mTeamCache.invalidate(id);
+        mMarket.reloadTeam(id);
+        marketChanged();
         return res;
     }
 
@@ -552,13 +900,15 @@ public class Database {
      */
     int ownershipsDeleteRow(int uid, int tid) {
         int res = -1;
-        try {
-            mOwnershipsDeleteOne.setInt(1, uid);
-            mOwnershipsDeleteOne.setInt(2, tid);
-            res = mOwnershipsDeleteOne.executeUpdate();
+        try (PooledConnection conn = mPool.acquire()) {
+            PreparedStatement ps = conn.prepare(OWNERSHIPS_DELETE_ONE);
+            ps.setInt(1, uid);
+            ps.setInt(2, tid);
+            res = ps.executeUpdate();
         } catch (SQLException e) {
             e.printStackTrace();
         }
+        mMarket.reloadUser(uid);
         return res;
     }
 
@@ -569,13 +919,15 @@ public class Database {
      */
     int usersUpdateOne(int uid, int money) {
         int res = -1;
-        try {
-            mUsersUpdateOne.setInt(1, money);
-            mUsersUpdateOne.setInt(2, uid);
-            res = mUsersUpdateOne.executeUpdate();
+        try (PooledConnection conn = mPool.acquire()) {
+            PreparedStatement ps = conn.prepare(USERS_UPDATE_ONE);
+            ps.setInt(1, money);
+            ps.setInt(2, uid);
+            res = ps.executeUpdate();
         } catch (SQLException e) {
             e.printStackTrace();
         }
+        mMarket.reloadUser(uid);
         return res;
     }
 
@@ -586,18 +938,22 @@ public class Database {
      */
     int teamsUpdateOne(int tid, int price, int wins, int losses, int pointsfor, int pointsagainst) {
         int res = -1;
-        try {
+        try (PooledConnection conn = mPool.acquire()) {
+            PreparedStatement ps = conn.prepare(TEAMS_UPDATE_ONE);
             //price = ?, wins = ?, losses = ?, pointsfor = ?, pointsagainst = ?, lastprice = ? WHERE tid = ?
-            mTeamsUpdateOne.setInt(1, price);
-            mTeamsUpdateOne.setInt(2, wins);
-            mTeamsUpdateOne.setInt(3, losses);
-            mTeamsUpdateOne.setInt(4, pointsfor);
-            mTeamsUpdateOne.setInt(5, pointsagainst);
-            mTeamsUpdateOne.setInt(6, tid);
-            res = mTeamsUpdateOne.executeUpdate();
+            ps.setInt(1, price);
+            ps.setInt(2, wins);
+            ps.setInt(3, losses);
+            ps.setInt(4, pointsfor);
+            ps.setInt(5, pointsagainst);
+            ps.setInt(6, tid);
+            res = ps.executeUpdate();
         } catch (SQLException e) {
             e.printStackTrace();
         }
+        mTeamCache.invalidate(tid);
+        mMarket.reloadTeam(tid);
+        marketChanged();
         return res;
     }
 
@@ -607,25 +963,37 @@ public class Database {
      * @return The number of rows that were updated. -1 indicates an error.
      */
     int ownershipsUpdateOne(int uid, int tid, int count) {
-        try {
-            mOwnershipsUpdateOne.setInt(1, count);
-            mOwnershipsUpdateOne.setInt(2, uid);
-            mOwnershipsUpdateOne.setInt(3, tid);
-            mOwnershipsUpdateOne.executeUpdate();
+        try (PooledConnection conn = mPool.acquire()) {
+            PreparedStatement ps = conn.prepare(OWNERSHIPS_UPDATE_ONE);
+            ps.setInt(1, count);
+            ps.setInt(2, uid);
+            ps.setInt(3, tid);
+            ps.executeUpdate();
         } catch (SQLException e) {
             e.printStackTrace();
             return -1;
         }
+        mMarket.reloadUser(uid);
         return count;
     }
 
     long getConfig(int cid) {
-        try {
-            mGetConfig.setInt(1, cid);
-            ResultSet rs = mGetConfig.executeQuery();
+        return getConfig(cid, -1);
+    }
+
+    /**
+     * @return the value of a Config row, or missing if there's no such row.
+     *         -1 indicates an error.
+     */
+    long getConfig(int cid, long missing) {
+        try (PooledConnection conn = mPool.acquire()) {
+            PreparedStatement ps = conn.prepare(GET_CONFIG);
+            ps.setInt(1, cid);
+            ResultSet rs = ps.executeQuery();
             if (rs.next()) {
                 return rs.getLong("val");
             }
+            return missing;
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -633,10 +1001,11 @@ public class Database {
     }
 
     boolean configUpdateOne(int cid, long val) {
-        try {
-            mUpdateConfig.setInt(2, cid);
-            mUpdateConfig.setLong(1, val);
-            mUpdateConfig.executeUpdate();
+        try (PooledConnection conn = mPool.acquire()) {
+            PreparedStatement ps = conn.prepare(UPDATE_CONFIG);
+            ps.setInt(2, cid);
+            ps.setLong(1, val);
+            ps.executeUpdate();
         } catch (SQLException e) {
             e.printStackTrace();
             return false;
@@ -645,36 +1014,349 @@ public class Database {
     }
 
     boolean TeamHistoryInsert(int tid, Date date, int price) {
-        try {
-            mTeamHistoryInsert.setInt(1, tid);
-            mTeamHistoryInsert.setDate(2, date);
-            mTeamHistoryInsert.setInt(3, price);
-            mTeamHistoryInsert.executeUpdate();
+        try (PooledConnection conn = mPool.acquire()) {
+            conn.begin();
+            try {
+                PreparedStatement ps = conn.prepare(TEAM_HISTORY_INSERT);
+                ps.setInt(1, tid);
+                ps.setDate(2, date);
+                ps.setInt(3, price);
+                ps.executeUpdate();
+                // the date may be before the last game in its week
+                rebuildCandles(conn, tid, date);
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
         } catch (SQLException e) {
             e.printStackTrace();
             return false;
         }
+        mMarket.reloadTeam(tid);
+        marketChanged();
         return true;
     }
 
     boolean TeamHistoryUpdate(int tid, Date date, int price) {
-        try {
-            mTeamHistoryUpdate.setInt(1, price);
-            mTeamHistoryUpdate.setDate(3, date);
-            mTeamHistoryUpdate.setInt(2, tid);
-            mTeamHistoryUpdate.executeUpdate();
+        try (PooledConnection conn = mPool.acquire()) {
+            conn.begin();
+            try {
+                PreparedStatement ps = conn.prepare(TEAM_HISTORY_UPDATE);
+                ps.setInt(1, price);
+                ps.setDate(3, date);
+                ps.setInt(2, tid);
+                ps.executeUpdate();
+                // the old price may have been the high or the low
+                rebuildCandles(conn, tid, date);
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
         } catch (SQLException e) {
             e.printStackTrace();
             return false;
         }
+        mMarket.reloadTeam(tid);
+        marketChanged();
         return true;
     }
 
+    /**
+     * Build the day and week candles that a date is in again from
+     * TeamHistory, after a row was added or changed out of order
+     */
+    private static void rebuildCandles(PooledConnection conn, int tid, Date date) throws SQLException {
+        for (int resolution : new int[] { TeamCandleRow.DAY, TeamCandleRow.WEEK }) {
+            Date start = TeamCandleRow.start(date, resolution);
+            PreparedStatement ps = conn.prepare(TEAM_CANDLES_DELETE);
+            ps.setInt(1, tid);
+            ps.setInt(2, resolution);
+            ps.setDate(3, start);
+            ps.executeUpdate();
+            ps = conn.prepare(TEAM_CANDLES_REBUILD);
+            ps.setInt(1, resolution);
+            ps.setDate(2, start);
+            ps.setInt(3, tid);
+            ps.setDate(4, start);
+            ps.setDate(5, Date.valueOf(start.toLocalDate().plusDays(resolution)));
+            ps.executeUpdate();
+        }
+    }
+
+    /**
+     * Merge new TeamHistory rows into the day and week candles, as part of
+     * the transaction that inserts them. The rows must be each team's latest
+     * games, as a collector run's are, since the last one in a candle becomes
+     * its close
+     */
+    private static void upsertCandles(PooledConnection conn, Collection<TeamHistoryRow> history) throws SQLException {
+        PreparedStatement ps = conn.prepare(TEAM_CANDLES_UPSERT);
+        for (int resolution : new int[] { TeamCandleRow.DAY, TeamCandleRow.WEEK }) {
+            for (TeamCandleRow c : TeamCandleRow.rollUp(history, resolution)) {
+                ps.setInt(1, c.tid);
+                ps.setInt(2, resolution);
+                ps.setDate(3, c.start);
+                ps.setInt(4, c.open);
+                ps.setInt(5, c.high);
+                ps.setInt(6, c.low);
+                ps.setInt(7, c.close);
+                ps.setInt(8, c.games);
+                ps.addBatch();
+            }
+        }
+        ps.executeBatch();
+    }
+
+    /**
+     * @return a team's candles at a resolution that cover any of the days
+     *         from one date to another, oldest first, or null if there was
+     *         an error
+     */
+    ArrayList<TeamCandleRow> teamCandlesSelect(int tid, int resolution, Date from, Date to) {
+        ArrayList<TeamCandleRow> rows = new ArrayList<>();
+        try (PooledConnection conn = mPool.acquire()) {
+            PreparedStatement ps = conn.prepare(TEAM_CANDLES_SELECT);
+            ps.setInt(1, tid);
+            ps.setInt(2, resolution);
+            ps.setDate(3, TeamCandleRow.start(from, resolution));
+            ps.setDate(4, to);
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                rows.add(new TeamCandleRow(tid, rs.getDate("start"), rs.getInt("open"), rs.getInt("high"),
+                        rs.getInt("low"), rs.getInt("close"), rs.getInt("games")));
+            }
+            return rows;
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Queue the matches a StatCollector found, and move the last match it
+     * has looked at forward, in one transaction. Matches that are already
+     * queued or done are left as they are.
+     * 
+     * @param matches the matches to queue
+     * @param lastMatchID the newest match the collector looked at
+     * 
+     * @return true if the matches were queued
+     */
+    boolean queueCollectorMatches(Collection<CollectorMatchRow> matches, long lastMatchID) {
+        try (PooledConnection conn = mPool.acquire()) {
+            conn.begin();
+            try {
+                PreparedStatement ps = conn.prepare(COLLECTOR_MATCHES_INSERT);
+                for (CollectorMatchRow m : matches) {
+                    ps.setLong(1, m.matchid);
+                    ps.setBoolean(2, m.radiant);
+                    ps.setBoolean(3, m.dire);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+
+                ps = conn.prepare(UPDATE_CONFIG);
+                ps.setLong(1, lastMatchID);
+                ps.setInt(2, 1);
+                ps.executeUpdate();
+
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+            return true;
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    /**
+     * @return the queued matches that still need to be processed, oldest
+     *         first, or null on error
+     */
+    ArrayList<CollectorMatchRow> collectorMatchesPending() {
+        ArrayList<CollectorMatchRow> rows = new ArrayList<>();
+        try (PooledConnection conn = mPool.acquire()) {
+            ResultSet rs = conn.prepare(COLLECTOR_MATCHES_SELECT_PENDING).executeQuery();
+            while (rs.next()) {
+                rows.add(new CollectorMatchRow(rs.getLong("matchid"), rs.getBoolean("radiant"), rs.getBoolean("dire"),
+                        rs.getInt("state"), rs.getInt("attempts")));
+            }
+            return rows;
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Save the results of a batch of queued matches: insert the new history
+     * rows, update the changed teams, mark the matches that were read as
+     * done and count a failed attempt against the others. Everything is
+     * sent as JDBC batches inside one transaction, so either the whole batch
+     * is saved or none of it is, and a match's price changes are saved if
+     * and only if it is marked done.
+     * 
+     * @param history the TeamHistory rows to insert
+     * @param teams the new state of every team that changed
+     * @param done the matches whose results are in history and teams
+     * @param failed the matches that couldn't be read, with why
+     * @param maxAttempts how many attempts a match gets before it is given up on
+     * 
+     * @return true if the batch was saved. False if it wasn't, including
+     *         when one of the matches had already been processed elsewhere
+     */
+    boolean applyCollectorRun(Collection<TeamHistoryRow> history, Collection<TeamSummary> teams,
+            Collection<Long> done, Map<Long, String> failed, int maxAttempts) {
+        try (PooledConnection conn = mPool.acquire()) {
+            conn.begin();
+            try {
+                PreparedStatement ps = conn.prepare(COLLECTOR_MATCHES_DONE);
+                for (long matchid : done) {
+                    ps.setLong(1, matchid);
+                    ps.addBatch();
+                }
+                for (int updated : ps.executeBatch()) {
+                    if (updated != 1) {
+                        throw new SQLException("A match in this batch was already processed");
+                    }
+                }
+
+                ps = conn.prepare(COLLECTOR_MATCHES_FAILED);
+                for (Map.Entry<Long, String> f : failed.entrySet()) {
+                    String error = f.getValue();
+                    ps.setString(1, error != null && error.length() > 200 ? error.substring(0, 200) : error);
+                    ps.setInt(2, maxAttempts);
+                    ps.setLong(3, f.getKey());
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+
+                ps = conn.prepare(TEAM_HISTORY_INSERT);
+                for (TeamHistoryRow h : history) {
+                    ps.setInt(1, h.tid);
+                    ps.setDate(2, h.date);
+                    ps.setInt(3, h.price);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+
+                upsertCandles(conn, history);
+
+                ps = conn.prepare(TEAMS_UPDATE_ONE);
+                for (TeamSummary t : teams) {
+                    ps.setInt(1, t.price);
+                    ps.setInt(2, t.wins);
+                    ps.setInt(3, t.losses);
+                    ps.setInt(4, t.pointsfor);
+                    ps.setInt(5, t.pointsagainst);
+                    ps.setInt(6, t.tid);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+            // only now that the batch is committed can readers see the prices
+            mTeamCache.putAll(teams);
+            mMarket.putTeams(teams, history);
+            marketChanged();
+            return true;
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    /**
+     * Apply a batch of trades from the TradeJournal, which were checked when
+     * they were journaled. Everything is sent as JDBC batches inside one
+     * transaction, along with the sequence number of the last trade, so a
+     * trade is in the database if and only if the journal knows it is.
+     * 
+     * @param trades the trades, in the order they were made
+     * 
+     * @return true if the batch was saved
+     */
+    boolean applyJournaledTrades(List<TradeJournal.Entry> trades) {
+        // each user's money and each ownership only changes once
+        TreeMap<Integer, Integer> money = new TreeMap<>();
+        TreeMap<Long, Integer> shares = new TreeMap<>();
+        for (TradeJournal.Entry t : trades) {
+            money.merge(t.uid, t.moneyChange(), Integer::sum);
+            shares.merge(((long) t.uid << 32) | (t.tid & 0xffffffffL), t.shareChange(), Integer::sum);
+        }
+        try (PooledConnection conn = mPool.acquire()) {
+            conn.begin();
+            try {
+                PreparedStatement ps = conn.prepare(USERS_ADD_MONEY);
+                for (Map.Entry<Integer, Integer> m : money.entrySet()) {
+                    ps.setInt(1, m.getValue());
+                    ps.setInt(2, m.getKey());
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+
+                ps = conn.prepare(OWNERSHIPS_ADD_COUNT);
+                for (Map.Entry<Long, Integer> s : shares.entrySet()) {
+                    int uid = (int) (s.getKey() >> 32), tid = (int) (long) s.getKey();
+                    ps.setInt(1, uid);
+                    ps.setInt(2, tid);
+                    ps.setInt(3, s.getValue());
+                    ps.setInt(4, uid);
+                    ps.setInt(5, tid);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+
+                ps = conn.prepare(OWNERSHIPS_DELETE_EMPTY);
+                for (long key : shares.keySet()) {
+                    ps.setInt(1, (int) (key >> 32));
+                    ps.setInt(2, (int) key);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+
+                ps = conn.prepare(TRANSACTIONS_INSERT_IF_USER);
+                for (TradeJournal.Entry t : trades) {
+                    ps.setInt(1, t.uid);
+                    ps.setInt(2, t.tid);
+                    ps.setInt(3, t.shareChange());
+                    ps.setInt(4, t.price);
+                    ps.setInt(5, t.uid);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+
+                ps = conn.prepare(JOURNAL_SET_APPLIED);
+                ps.setLong(1, trades.get(trades.size() - 1).seq);
+                ps.executeUpdate();
+
+                conn.commit();
+                return true;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
     ArrayList<TeamHistoryRow> TeamHistorySelectOne(int tid) {
         ArrayList<TeamHistoryRow> rows = new ArrayList<>();
-        try {
-            mTeamHistorySelectOne.setInt(1, tid);
-            ResultSet rs = mTeamHistorySelectOne.executeQuery();
+        try (PooledConnection conn = mPool.acquire()) {
+            PreparedStatement ps = conn.prepare(TEAM_HISTORY_SELECT_ONE);
+            ps.setInt(1, tid);
+            ResultSet rs = ps.executeQuery();
             while (rs.next()) {
                 rows.add(new TeamHistoryRow(rs.getInt("tid"), rs.getInt("price"), rs.getDate("date")));
             }
@@ -685,25 +1367,55 @@ public class Database {
         return null;
     }
 
+    /**
+     * @return a team's history from one date to another, both included,
+     *         oldest first, or null if there was an error
+     */
+    ArrayList<TeamHistoryRow> teamHistorySelectRange(int tid, Date from, Date to) {
+        ArrayList<TeamHistoryRow> rows = new ArrayList<>();
+        try (PooledConnection conn = mPool.acquire()) {
+            PreparedStatement ps = conn.prepare(TEAM_HISTORY_SELECT_RANGE);
+            ps.setInt(1, tid);
+            ps.setDate(2, from);
+            ps.setDate(3, to);
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                rows.add(new TeamHistoryRow(tid, rs.getInt("price"), rs.getDate("date")));
+            }
+            return rows;
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
     boolean TransactionsInsert(int uid, int tid, int change, int price) {
-        try {
-            mTransactionsInsert.setInt(1, uid);
-            mTransactionsInsert.setInt(2, tid);
-            mTransactionsInsert.setInt(3, change);
-            mTransactionsInsert.setInt(4, price);
-            mTransactionsInsert.executeUpdate();
+        try (PooledConnection conn = mPool.acquire()) {
+            PreparedStatement ps = conn.prepare(TRANSACTIONS_INSERT);
+            ps.setInt(1, uid);
+            ps.setInt(2, tid);
+            ps.setInt(3, change);
+            ps.setInt(4, price);
+            ps.executeUpdate();
         } catch (SQLException e) {
             e.printStackTrace();
             return false;
         }
+        mMarket.reloadUser(uid);
         return true;
     }
 
-    ArrayList<TransactionsRow> TransactionsSelectOne(int uid) {
+    /**
+     * @return a user's newest transactions, oldest first, or null if there
+     *         was an error
+     */
+    ArrayList<TransactionsRow> transactionsSelectRecent(int uid, int limit) {
         ArrayList<TransactionsRow> rows = new ArrayList<>();
-        try {
-            mTransactionsSelectOne.setInt(1, uid);
-            ResultSet rs = mTransactionsSelectOne.executeQuery();
+        try (PooledConnection conn = mPool.acquire()) {
+            PreparedStatement ps = conn.prepare(TRANSACTIONS_SELECT_RECENT_ONE);
+            ps.setInt(1, uid);
+            ps.setInt(2, limit);
+            ResultSet rs = ps.executeQuery();
             while (rs.next()) {
                 rows.add(new TransactionsRow(rs.getInt("uid"), rs.getInt("tid"), rs.getInt("change"), rs.getInt("price")));
             }
@@ -715,32 +1427,92 @@ public class Database {
     }
 
     /**
-     * Create a new table in the database. Prints an error if the statement doesn't work.
-     * NOTE: as of now this just adds all the table I think I need to the database :)
+     * Takes rows as they are read, e.g. to write them to a response
+     */
+    interface RowSink<T> {
+        void accept(long key, T row) throws IOException;
+    }
+
+    /**
+     * Read one page of a user's transactions, newest first. Each row goes to
+     * the sink as it comes out of the ResultSet, so the page is never held
+     * in a list.
+     *
+     * @param before only transactions with a txid below this. Long.MAX_VALUE
+     *               for the newest.
+     * @param rows   gets each transaction with its txid
+     *
+     * @return the number of rows read. -1 indicates an error.
+     */
+    int transactionsPage(int uid, long before, int limit, RowSink<TransactionsRow> rows) {
+        try (PooledConnection conn = mPool.acquire()) {
+            PreparedStatement ps = conn.prepare(TRANSACTIONS_SELECT_PAGE);
+            ps.setInt(1, uid);
+            ps.setLong(2, before);
+            ps.setInt(3, limit);
+            ResultSet rs = ps.executeQuery();
+            int count = 0;
+            while (rs.next()) {
+                rows.accept(rs.getLong("txid"),
+                        new TransactionsRow(uid, rs.getInt("tid"), rs.getInt("change"), rs.getInt("price")));
+                count++;
+            }
+            return count;
+        } catch (SQLException | IOException e) {
+            e.printStackTrace();
+        }
+        return -1;
+    }
+
+    /**
+     * @return each user's newest transactions, by user and then oldest
+     *         first, or null if there was an error
+     */
+    ArrayList<TransactionsRow> transactionsSelectRecent(int limit) {
+        ArrayList<TransactionsRow> rows = new ArrayList<>();
+        try (PooledConnection conn = mPool.acquire()) {
+            PreparedStatement ps = conn.prepare(TRANSACTIONS_SELECT_RECENT_ALL);
+            ps.setInt(1, limit);
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                rows.add(new TransactionsRow(rs.getInt("uid"), rs.getInt("tid"), rs.getInt("change"), rs.getInt("price")));
+            }
+            return rows;
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Bring the schema up to date by applying any migrations this database
+     * hasn't seen yet. See Migrations for the list.
      * 
+     * @return The number of migrations applied. -1 indicates an error.
      */
-    boolean createTables() {
-        try {
-            mCreateUsers.execute();
-            mCreateTeams.execute();
-            mCreateOwnerships.execute();
-            mCreateConfig.execute();
-            mCreateTeamHistory.execute();
-            mCreateTransactions.execute();
-            return true;
+    int migrate() {
+        try (PooledConnection conn = mPool.acquire()) {
+            return Migrations.migrate(conn.mConnection);
         } catch (SQLException e) {
             e.printStackTrace();
         }
-        return false;
+        return -1;
+    }
+
+    /**
+     * Create all of the tables in the database, by applying every migration.
+     * Prints an error if a migration doesn't work.
+     */
+    boolean createTables() {
+        return migrate() >= 0;
     }
 
     /**
      * Remove tables from the database
      */
     void dropTable(String name) {
-        try {
-            mDropTables = this.mConnection.prepareStatement("DROP TABLE "+name);
-            if (mDropTables.execute()) 
+        try (PooledConnection conn = mPool.acquire(); Statement st = conn.mConnection.createStatement()) {
+            if (st.execute("DROP TABLE "+name)) 
                 System.out.println("Couldn't drop "+name);
         } catch (SQLException e) {
             e.printStackTrace();
@@ -0,0 +1,165 @@
+package backend;
+
+/**
+ * Users ranked by networth, richest first, with ties going to the lower
+ * uid. It is a treap that is never modified: adding or removing a user
+ * copies the O(log n) nodes on the way to them and shares the rest, so
+ * every market snapshot keeps its own ranking cheaply. A node's priority is
+ * a hash of its uid, so the tree is balanced without any randomness.
+ */
+final class Leaderboard {
+
+    static final Leaderboard EMPTY = new Leaderboard(null);
+
+    private static final class Node {
+        final int uid, networth, priority, size;
+        final Node left, right;
+
+        Node(int uid, int networth, Node left, Node right) {
+            this.uid = uid; this.networth = networth; this.left = left; this.right = right;
+            priority = hash(uid);
+            size = 1 + size(left) + size(right);
+        }
+
+        Node with(Node left, Node right) {
+            return new Node(uid, networth, left, right);
+        }
+    }
+
+    private final Node mRoot;
+
+    private Leaderboard(Node root) {
+        mRoot = root;
+    }
+
+    int size() {
+        return size(mRoot);
+    }
+
+    /**
+     * @return the leaderboard with a user added. The user must not be on it.
+     */
+    Leaderboard with(int uid, int networth) {
+        Node[] split = split(mRoot, networth, uid);
+        return new Leaderboard(merge(merge(split[0], new Node(uid, networth, null, null)), split[1]));
+    }
+
+    /**
+     * @return the leaderboard without a user, who is on it with networth
+     */
+    Leaderboard without(int uid, int networth) {
+        return new Leaderboard(remove(mRoot, networth, uid));
+    }
+
+    /**
+     * @return the user's place, 1 for the richest. The user must be on the
+     *         leaderboard with networth.
+     */
+    int rank(int uid, int networth) {
+        int before = 0;
+        Node n = mRoot;
+        while (n != null) {
+            int c = compare(networth, uid, n);
+            if (c == 0) {
+                return before + size(n.left) + 1;
+            } else if (c < 0) {
+                n = n.left;
+            } else {
+                before += size(n.left) + 1;
+                n = n.right;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the uids of the n richest users, richest first
+     */
+    int[] top(int n) {
+        int[] uids = new int[Math.max(0, Math.min(n, size()))];
+        top(mRoot, uids, 0);
+        return uids;
+    }
+
+    /**
+     * Fill uids from i on with the first users under n, in order
+     *
+     * @return the next free index
+     */
+    private static int top(Node n, int[] uids, int i) {
+        if (n == null || i == uids.length) {
+            return i;
+        }
+        i = top(n.left, uids, i);
+        if (i < uids.length) {
+            uids[i++] = n.uid;
+        }
+        return top(n.right, uids, i);
+    }
+
+    /**
+     * Where (networth, uid) goes relative to a node: negative if before it
+     */
+    private static int compare(int networth, int uid, Node n) {
+        if (networth != n.networth) {
+            return networth > n.networth ? -1 : 1;
+        }
+        return Integer.compare(uid, n.uid);
+    }
+
+    /**
+     * @return the nodes that go before (networth, uid), and the rest
+     */
+    private static Node[] split(Node n, int networth, int uid) {
+        if (n == null) {
+            return new Node[2];
+        }
+        if (compare(networth, uid, n) <= 0) {
+            Node[] s = split(n.left, networth, uid);
+            s[1] = n.with(s[1], n.right);
+            return s;
+        }
+        Node[] s = split(n.right, networth, uid);
+        s[0] = n.with(n.left, s[0]);
+        return s;
+    }
+
+    /**
+     * Join two treaps, every node of a going before every node of b
+     */
+    private static Node merge(Node a, Node b) {
+        if (a == null) {
+            return b;
+        } else if (b == null) {
+            return a;
+        } else if (a.priority > b.priority) {
+            return a.with(a.left, merge(a.right, b));
+        }
+        return b.with(merge(a, b.left), b.right);
+    }
+
+    private static Node remove(Node n, int networth, int uid) {
+        if (n == null) {
+            return null;
+        }
+        int c = compare(networth, uid, n);
+        if (c == 0) {
+            return merge(n.left, n.right);
+        } else if (c < 0) {
+            return n.with(remove(n.left, networth, uid), n.right);
+        }
+        return n.with(n.left, remove(n.right, networth, uid));
+    }
+
+    private static int size(Node n) {
+        return n == null ? 0 : n.size;
+    }
+
+    /**
+     * Spread uids, which are mostly consecutive, over all of the ints
+     */
+    private static int hash(int uid) {
+        int h = uid * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
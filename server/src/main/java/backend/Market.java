@@ -0,0 +1,693 @@
+package backend;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The whole market in memory: every user with their money, shares and
+ * transactions, and every team with its history. It is loaded from the
+ * database when the server starts and kept up to date by whatever changes
+ * the market (trades through the Database or the TradeJournal, and the
+ * StatCollector's runs), so the read routes never need to query.
+ *
+ * Readers take the current Snapshot and never lock. Writers hold the
+ * market's lock, build a new snapshot that shares everything it didn't
+ * change with the old one, and publish it. A snapshot never changes once
+ * published, so a reader always sees a consistent market.
+ *
+ * Users are only loaded at startup and when this server changes them, so
+ * money or shares changed some other way (e.g. in the admin app) show up
+ * after a restart. Teams are reloaded with the team cache.
+ */
+public class Market {
+
+    /**
+     * Users are kept in chunks of 1 << CHUNK_BITS by uid, so a trade copies
+     * one chunk and the list of chunks rather than every user
+     */
+    private static final int CHUNK_BITS = 6;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    /**
+     * How many transactions come with a single user. Older ones are read a
+     * page at a time with Database.transactionsPage().
+     */
+    static final int RECENT_TRANSACTIONS = 50;
+
+    /**
+     * A user as of one snapshot
+     */
+    static class Trader {
+        final int uid;
+        final String username;
+        final int money;
+
+        /**
+         * money plus the value of every share at the snapshot's prices.
+         * Shares of teams that no longer exist are worth 0.
+         */
+        final int networth;
+
+        /**
+         * Shares owned, by tid. Never modified once published.
+         */
+        final HashMap<Integer, Integer> owned;
+
+        final TransactionLog transactions;
+
+        Trader(int uid, String username, int money, int networth, HashMap<Integer, Integer> owned,
+                TransactionLog transactions) {
+            this.uid = uid; this.username = username; this.money = money; this.networth = networth;
+            this.owned = owned; this.transactions = transactions;
+        }
+
+        Trader withNetworth(int networth) {
+            return new Trader(uid, username, money, networth, owned, transactions);
+        }
+    }
+
+    /**
+     * A user's newest transactions, oldest first. Appending writes into spare
+     * room at the end of the array when no other log has used it yet, so a
+     * trade doesn't copy the user's history. Only the newest
+     * RECENT_TRANSACTIONS are ever served, so when the array is full just
+     * those are copied, and the log never holds more than twice as many.
+     * Each log only reads its own rows, which never change.
+     */
+    static final class TransactionLog {
+        static final TransactionLog EMPTY = new TransactionLog(new Rows(new TransactionsRow[0]), 0, 0);
+
+        /**
+         * The array shared by a log and the ones appended to it
+         */
+        private static final class Rows {
+            final TransactionsRow[] rows;
+            /**
+             * How much of rows some log is using. Only the writer reads it.
+             */
+            int used;
+
+            Rows(TransactionsRow[] rows) {
+                this.rows = rows;
+            }
+        }
+
+        private final Rows mRows;
+        /**
+         * This log's rows are mRows.rows[mFrom] up to but not including
+         * [mFrom + size]
+         */
+        private final int mFrom;
+        final int size;
+
+        private TransactionLog(Rows rows, int from, int size) {
+            mRows = rows; mFrom = from; this.size = size;
+        }
+
+        /**
+         * Call with the market's lock held
+         */
+        TransactionLog append(TransactionsRow t) {
+            Rows rows = mRows;
+            int from = mFrom, size = this.size;
+            int end = from + size;
+            if (rows.used != end || end == rows.rows.length) {
+                int kept = Math.min(size, RECENT_TRANSACTIONS);
+                TransactionsRow[] grown = new TransactionsRow[Math.max(4, Math.min(2 * (kept + 1), 2 * RECENT_TRANSACTIONS))];
+                System.arraycopy(rows.rows, end - kept, grown, 0, kept);
+                rows = new Rows(grown);
+                from = 0;
+                size = kept;
+                end = kept;
+            }
+            rows.rows[end] = t;
+            rows.used = end + 1;
+            return new TransactionLog(rows, from, size + 1);
+        }
+
+        ArrayList<TransactionsRow> toList() {
+            return newest(size);
+        }
+
+        /**
+         * @return the last n transactions, oldest first. At most the newest
+         *         RECENT_TRANSACTIONS are sure to be kept.
+         */
+        ArrayList<TransactionsRow> newest(int n) {
+            int from = mFrom + Math.max(0, size - n), end = mFrom + size;
+            ArrayList<TransactionsRow> list = new ArrayList<>(end - from);
+            for (int i = from; i < end; i++) {
+                list.add(mRows.rows[i]);
+            }
+            return list;
+        }
+    }
+
+    /**
+     * The market at one moment. Never modified once published.
+     */
+    static class Snapshot {
+        /**
+         * Goes up with every change to the market
+         */
+        final long version;
+
+        /**
+         * Users by uid: chunk uid >> CHUNK_BITS, then uid & (CHUNK_SIZE - 1).
+         * Missing chunks and users are null.
+         */
+        private final Trader[][] mUsers;
+        final int userCount;
+
+        /**
+         * Every user, by networth
+         */
+        final Leaderboard ranks;
+
+        final HashMap<Integer, TeamRow> teams;
+
+        private Snapshot(long version, Trader[][] users, int userCount, Leaderboard ranks,
+                HashMap<Integer, TeamRow> teams) {
+            this.version = version; mUsers = users; this.userCount = userCount; this.ranks = ranks;
+            this.teams = teams;
+        }
+
+        /**
+         * @return the user, or null if there's no such user
+         */
+        Trader user(int uid) {
+            int chunk = uid >>> CHUNK_BITS;
+            if (uid < 0 || chunk >= mUsers.length || mUsers[chunk] == null) {
+                return null;
+            }
+            return mUsers[chunk][uid & (CHUNK_SIZE - 1)];
+        }
+
+        /**
+         * @return every user, by uid
+         */
+        ArrayList<Trader> users() {
+            ArrayList<Trader> users = new ArrayList<>(userCount);
+            for (Trader[] chunk : mUsers) {
+                if (chunk != null) {
+                    for (Trader t : chunk) {
+                        if (t != null) {
+                            users.add(t);
+                        }
+                    }
+                }
+            }
+            return users;
+        }
+
+        /**
+         * @return up to limit users with a uid above after, by uid
+         */
+        ArrayList<Trader> usersAfter(int after, int limit) {
+            ArrayList<Trader> users = new ArrayList<>();
+            long uid = Math.max(0, (long) after + 1);
+            while (users.size() < limit && (uid >>> CHUNK_BITS) < mUsers.length) {
+                Trader[] chunk = mUsers[(int) (uid >>> CHUNK_BITS)];
+                if (chunk == null) {
+                    // skip to the start of the next chunk
+                    uid = (uid | (CHUNK_SIZE - 1)) + 1;
+                    continue;
+                }
+                Trader t = chunk[(int) uid & (CHUNK_SIZE - 1)];
+                if (t != null) {
+                    users.add(t);
+                }
+                uid++;
+            }
+            return users;
+        }
+
+        /**
+         * @return the user's place by networth, 1 for the richest
+         */
+        int rank(Trader t) {
+            return ranks.rank(t.uid, t.networth);
+        }
+
+        /**
+         * @return a copy of this snapshot with some users added or replaced,
+         *         or removed where the value is null. Each chunk that changes
+         *         is copied once.
+         */
+        Snapshot withUsers(Map<Integer, Trader> changed) {
+            if (changed.isEmpty()) {
+                return this;
+            }
+            int chunks = mUsers.length;
+            for (Map.Entry<Integer, Trader> c : changed.entrySet()) {
+                if (c.getValue() != null) {
+                    chunks = Math.max(chunks, (c.getKey() >>> CHUNK_BITS) + 1);
+                }
+            }
+            Trader[][] users = new Trader[chunks][];
+            System.arraycopy(mUsers, 0, users, 0, mUsers.length);
+            boolean[] copied = new boolean[chunks];
+            int count = userCount;
+            Leaderboard ranks = this.ranks;
+            for (Map.Entry<Integer, Trader> c : changed.entrySet()) {
+                int uid = c.getKey(), chunk = uid >>> CHUNK_BITS;
+                Trader old = user(uid), trader = c.getValue();
+                if (old != null) {
+                    ranks = ranks.without(uid, old.networth);
+                    count--;
+                }
+                if (trader != null) {
+                    ranks = ranks.with(uid, trader.networth);
+                    count++;
+                }
+                if (chunk >= chunks || (old == null && trader == null)) {
+                    continue;
+                }
+                if (!copied[chunk]) {
+                    users[chunk] = users[chunk] == null ? new Trader[CHUNK_SIZE] : users[chunk].clone();
+                    copied[chunk] = true;
+                }
+                users[chunk][uid & (CHUNK_SIZE - 1)] = trader;
+            }
+            return new Snapshot(version + 1, users, count, ranks, teams);
+        }
+
+        Snapshot withTeams(HashMap<Integer, TeamRow> teams) {
+            return new Snapshot(version + 1, mUsers, userCount, ranks, teams);
+        }
+    }
+
+    /**
+     * Where the market is loaded from
+     */
+    private final Database mDb;
+
+    /**
+     * How many times a reload reads the database before giving up
+     */
+    private static final int RELOAD_ATTEMPTS = 3;
+
+    private final AtomicReference<Snapshot> mSnapshot =
+            new AtomicReference<>(new Snapshot(0, new Trader[0][], 0, Leaderboard.EMPTY, new HashMap<>()));
+
+    /**
+     * The uids of everyone holding shares of each team, so a price change
+     * only touches them. Only used by writers, with the market's lock held.
+     */
+    private final HashMap<Integer, HashSet<Integer>> mHolders = new HashMap<>();
+
+    Market(Database db) {
+        mDb = db;
+    }
+
+    /**
+     * @return the market as it is right now
+     */
+    Snapshot snapshot() {
+        return mSnapshot.get();
+    }
+
+    /**
+     * @return the current version of the market. Any change to a user or a
+     *         team moves it on.
+     */
+    long version() {
+        return mSnapshot.get().version;
+    }
+
+    /**
+     * @return every user with their networth and rank, by money, with empty
+     *         ownerships and transactions. The same as Database.usersSelectAll().
+     */
+    ArrayList<UserRow> users() {
+        Snapshot market = snapshot();
+        ArrayList<Trader> traders = market.users();
+        traders.sort(Comparator.comparingInt((Trader t) -> t.money).thenComparingInt(t -> t.uid));
+        ArrayList<UserRow> res = new ArrayList<>(traders.size());
+        for (Trader t : traders) {
+            res.add(summary(t, market.rank(t)));
+        }
+        return res;
+    }
+
+    /**
+     * @return one page of users by uid, starting after the given uid, with
+     *         their networth and rank and empty ownerships and transactions
+     */
+    Page<UserRow> users(int after, int limit) {
+        Snapshot market = snapshot();
+        ArrayList<Trader> traders = market.usersAfter(after, limit);
+        ArrayList<UserRow> res = new ArrayList<>(traders.size());
+        for (Trader t : traders) {
+            res.add(summary(t, market.rank(t)));
+        }
+        Long next = res.size() < limit || res.isEmpty() ? null : (long) res.get(res.size() - 1).uid;
+        return new Page<>(res, next);
+    }
+
+    /**
+     * @return the n richest users by networth, richest first, with empty
+     *         ownerships and transactions
+     */
+    ArrayList<UserRow> top(int n) {
+        Snapshot market = snapshot();
+        int[] uids = market.ranks.top(n);
+        ArrayList<UserRow> res = new ArrayList<>(uids.length);
+        for (int i = 0; i < uids.length; i++) {
+            res.add(summary(market.user(uids[i]), i + 1));
+        }
+        return res;
+    }
+
+    private static UserRow summary(Trader t, int rank) {
+        return new UserRow(t.uid, t.username, t.networth, t.money, rank, new ArrayList<NamedOwnership>(),
+                new ArrayList<TransactionsRow>());
+    }
+
+    /**
+     * @return a user with their rank, shares and latest RECENT_TRANSACTIONS
+     *         transactions, or null if there's no such user. The same as
+     *         Database.getUser().
+     */
+    UserRow user(int uid) {
+        Snapshot market = snapshot();
+        Trader t = market.user(uid);
+        if (t == null) {
+            return null;
+        }
+        ArrayList<NamedOwnership> ownerships = new ArrayList<>(t.owned.size());
+        for (Map.Entry<Integer, Integer> o : t.owned.entrySet()) {
+            TeamRow team = market.teams.get(o.getKey());
+            ownerships.add(new NamedOwnership(uid, o.getKey(), o.getValue(), team == null ? "null" : team.name,
+                    team == null ? -1 : team.price));
+        }
+        return new UserRow(uid, t.username, t.networth, t.money, market.rank(t), ownerships,
+                t.transactions.newest(RECENT_TRANSACTIONS));
+    }
+
+    /**
+     * @return every team with its history, by price. The same as
+     *         Database.teamsSelectAll().
+     */
+    ArrayList<TeamRow> teams() {
+        ArrayList<TeamRow> teams = new ArrayList<>(snapshot().teams.values());
+        teams.sort(Comparator.comparingInt((TeamRow t) -> t.price).thenComparingInt(t -> t.tid));
+        return teams;
+    }
+
+    /**
+     * @return every team's day candles, by team and then by day. The same as
+     *         Database.teamCandlesSelect() at TeamCandleRow.DAY for each team.
+     */
+    ArrayList<TeamCandleRow> dayCandles() {
+        ArrayList<TeamCandleRow> candles = new ArrayList<>();
+        for (TeamRow t : snapshot().teams.values()) {
+            candles.addAll(TeamCandleRow.rollUp(t.history.toList(), TeamCandleRow.DAY));
+        }
+        candles.sort(Comparator.comparingInt((TeamCandleRow c) -> c.tid).thenComparing(c -> c.start));
+        return candles;
+    }
+
+    /**
+     * @return every team without its history, by price
+     */
+    ArrayList<TeamSummary> teamSummaries() {
+        ArrayList<TeamSummary> teams = new ArrayList<>();
+        for (TeamRow t : teams()) {
+            teams.add(t.summary());
+        }
+        return teams;
+    }
+
+    /**
+     * Record a trade that has been made
+     *
+     * @param change shares bought, or minus the shares sold
+     * @param price the price of each share
+     */
+    synchronized void trade(int uid, int tid, int change, int price) {
+        Snapshot market = snapshot();
+        Trader t = market.user(uid);
+        if (t == null) {
+            return;
+        }
+        HashMap<Integer, Integer> owned = new HashMap<>(t.owned);
+        int count = owned.getOrDefault(tid, 0) + change;
+        if (count > 0) {
+            owned.put(tid, count);
+        } else {
+            owned.remove(tid);
+        }
+        // the money changes at the trade's price, the shares are valued at
+        // the market's
+        int money = t.money - change * price;
+        int networth = t.networth - change * price + change * price(market.teams, tid);
+        Trader traded = new Trader(uid, t.username, money, networth, owned,
+                t.transactions.append(new TransactionsRow(uid, tid, change, price)));
+        updateHolders(t, traded);
+        mSnapshot.set(market.withUsers(Collections.singletonMap(uid, traded)));
+    }
+
+    /**
+     * Record a collector run: the new state of the teams that changed, and
+     * the history rows it added
+     */
+    synchronized void putTeams(Collection<TeamSummary> changed, Collection<TeamHistoryRow> history) {
+        Snapshot market = snapshot();
+        HashMap<Integer, PriceHistory> histories = new HashMap<>();
+        for (TeamSummary t : changed) {
+            TeamRow old = market.teams.get(t.tid);
+            histories.put(t.tid, old == null ? PriceHistory.empty(t.tid) : old.history);
+        }
+        for (TeamHistoryRow h : history) {
+            PriceHistory before = histories.get(h.tid);
+            if (before != null) {
+                histories.put(h.tid, before.append(h.date, h.price));
+            }
+        }
+        HashMap<Integer, TeamRow> teams = new HashMap<>(market.teams);
+        for (TeamSummary t : changed) {
+            teams.put(t.tid, new TeamRow(t, histories.get(t.tid)));
+        }
+        mSnapshot.set(reprice(market, teams));
+    }
+
+    /**
+     * Change the teams in a snapshot, and the networth of everyone holding
+     * a team whose price changed. Call with the market's lock held.
+     */
+    private Snapshot reprice(Snapshot market, HashMap<Integer, TeamRow> teams) {
+        HashSet<Integer> tids = new HashSet<>(market.teams.keySet());
+        tids.addAll(teams.keySet());
+        HashMap<Integer, Trader> changed = new HashMap<>();
+        for (int tid : tids) {
+            int diff = price(teams, tid) - price(market.teams, tid);
+            if (diff == 0) {
+                continue;
+            }
+            for (int uid : mHolders.getOrDefault(tid, new HashSet<>())) {
+                Trader t = changed.containsKey(uid) ? changed.get(uid) : market.user(uid);
+                changed.put(uid, t.withNetworth(t.networth + diff * t.owned.get(tid)));
+            }
+        }
+        return market.withTeams(teams).withUsers(changed);
+    }
+
+    /**
+     * @return what a share of a team is worth. 0 if it doesn't exist.
+     */
+    private static int price(HashMap<Integer, TeamRow> teams, int tid) {
+        TeamRow team = teams.get(tid);
+        return team == null ? 0 : team.price;
+    }
+
+    /**
+     * Keep the holders index up to date with a user's shares. Either may be
+     * null, for a user that is new or gone.
+     */
+    private void updateHolders(Trader old, Trader t) {
+        if (old != null) {
+            for (int tid : old.owned.keySet()) {
+                if (t == null || !t.owned.containsKey(tid)) {
+                    HashSet<Integer> holders = mHolders.get(tid);
+                    holders.remove(old.uid);
+                    if (holders.isEmpty()) {
+                        mHolders.remove(tid);
+                    }
+                }
+            }
+        }
+        if (t != null) {
+            for (int tid : t.owned.keySet()) {
+                if (old == null || !old.owned.containsKey(tid)) {
+                    mHolders.computeIfAbsent(tid, k -> new HashSet<>()).add(t.uid);
+                }
+            }
+        }
+    }
+
+    /**
+     * Load the whole market from the database, replacing whatever is here.
+     * Call this before the server takes any trades.
+     *
+     * @return true if the market was loaded
+     */
+    boolean reload() {
+        ArrayList<TeamRow> teams = mDb.teamsSelectAll();
+        ArrayList<UserRow> users = mDb.usersSelectAll();
+        ArrayList<OwnershipsRow> ownerships = mDb.ownershipsSelectAll();
+        ArrayList<TransactionsRow> transactions = mDb.transactionsSelectRecent(RECENT_TRANSACTIONS);
+        if (teams == null || users == null || ownerships == null || transactions == null) {
+            return false;
+        }
+        load(users, ownerships, transactions, teams);
+        return true;
+    }
+
+    /**
+     * Replace the market with these rows
+     */
+    synchronized void load(Collection<UserRow> users, Collection<OwnershipsRow> ownerships,
+            Collection<TransactionsRow> transactions, Collection<TeamRow> teams) {
+        HashMap<Integer, TeamRow> byID = teamsByID(teams);
+        HashMap<Integer, HashMap<Integer, Integer>> owned = new HashMap<>();
+        for (OwnershipsRow o : ownerships) {
+            owned.computeIfAbsent(o.uid, k -> new HashMap<>()).put(o.tid, o.count);
+        }
+        HashMap<Integer, TransactionLog> logs = new HashMap<>();
+        for (TransactionsRow t : transactions) {
+            logs.put(t.uid, logs.getOrDefault(t.uid, TransactionLog.EMPTY).append(t));
+        }
+
+        HashMap<Integer, Trader> traders = new HashMap<>();
+        for (UserRow u : users) {
+            HashMap<Integer, Integer> o = owned.getOrDefault(u.uid, new HashMap<>());
+            traders.put(u.uid, new Trader(u.uid, u.username, u.money, networth(u.money, o, byID), o,
+                    logs.getOrDefault(u.uid, TransactionLog.EMPTY)));
+        }
+        mHolders.clear();
+        for (Trader t : traders.values()) {
+            updateHolders(null, t);
+        }
+        Snapshot empty = new Snapshot(snapshot().version, new Trader[0][], 0, Leaderboard.EMPTY, byID);
+        mSnapshot.set(empty.withUsers(traders));
+    }
+
+    private static int networth(int money, Map<Integer, Integer> owned, HashMap<Integer, TeamRow> teams) {
+        int networth = money;
+        for (Map.Entry<Integer, Integer> o : owned.entrySet()) {
+            networth += price(teams, o.getKey()) * o.getValue();
+        }
+        return networth;
+    }
+
+    /**
+     * Load every team again, e.g. to pick up changes made by the admin app.
+     *
+     * If a collector run lands while the teams are being read, the read is
+     * thrown away and tried again, so it can't replace newer rows.
+     *
+     * @return true if the teams were loaded
+     */
+    boolean reloadTeams() {
+        for (int attempt = 0; attempt < RELOAD_ATTEMPTS; attempt++) {
+            HashMap<Integer, TeamRow> seen = snapshot().teams;
+            ArrayList<TeamRow> teams = mDb.teamsSelectAll();
+            if (teams == null) {
+                return false;
+            }
+            synchronized (this) {
+                if (snapshot().teams == seen) {
+                    mSnapshot.set(reprice(snapshot(), teamsByID(teams)));
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Load one team again after this server changed it some other way than
+     * a collector run. As in reloadTeams(), a read that raced a change to the
+     * team is tried again.
+     */
+    void reloadTeam(int tid) {
+        for (int attempt = 0; attempt < RELOAD_ATTEMPTS; attempt++) {
+            TeamRow seen = snapshot().teams.get(tid);
+            TeamRow team = mDb.getTeam(tid);
+            synchronized (this) {
+                Snapshot market = snapshot();
+                if (market.teams.get(tid) != seen) {
+                    continue;
+                }
+                HashMap<Integer, TeamRow> teams = new HashMap<>(market.teams);
+                if (team == null) {
+                    teams.remove(tid);
+                } else {
+                    teams.put(tid, team);
+                }
+                mSnapshot.set(reprice(market, teams));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Load one user again after this server changed them some other way than
+     * a trade, e.g. when they sign up. A read that raced a trade or another
+     * change to the user is thrown away and tried again, so it can't undo it.
+     */
+    void reloadUser(int uid) {
+        for (int attempt = 0; attempt < RELOAD_ATTEMPTS; attempt++) {
+            Trader seen = snapshot().user(uid);
+            UserRow user = mDb.getUser(uid);
+            if (user == null ? mDb.getUserMoney(uid) != -2 : user.transactions == null) {
+                // an error, keep what we have
+                return;
+            }
+            synchronized (this) {
+                Snapshot market = snapshot();
+                if (market.user(uid) != seen) {
+                    continue;
+                }
+                Trader trader = null;
+                if (user != null) {
+                    HashMap<Integer, Integer> owned = new HashMap<>();
+                    for (NamedOwnership o : user.ownerships) {
+                        owned.put(o.tid, o.count);
+                    }
+                    TransactionLog log = TransactionLog.EMPTY;
+                    for (TransactionsRow t : user.transactions) {
+                        log = log.append(t);
+                    }
+                    trader = new Trader(uid, user.username, user.money, networth(user.money, owned, market.teams), owned,
+                            log);
+                }
+                updateHolders(market.user(uid), trader);
+                mSnapshot.set(market.withUsers(Collections.singletonMap(uid, trader)));
+                return;
+            }
+        }
+    }
+
+    private static HashMap<Integer, TeamRow> teamsByID(Collection<TeamRow> teams) {
+        HashMap<Integer, TeamRow> byID = new HashMap<>();
+        for (TeamRow t : teams) {
+            byID.put(t.tid, t);
+        }
+        return byID;
+    }
+
+    @Override
+    public String toString() {
+        Snapshot market = snapshot();
+        return "market: " + market.userCount + " users, " + market.teams.size() + " teams, " + mHolders.size()
+                + " held, version " + market.version;
+    }
+}
@@ -0,0 +1,172 @@
+package backend;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Steam's GetMatchDetails responses, kept on disk. A finished match never
+ * changes, so once we've read one we never need to ask Steam for it again:
+ * replays from an older lastMatchID and backfills are read from here
+ * instead, without using any of our API quota.
+ *
+ * Each response is stored gzipped in its own file, named after the match
+ * ID. When the files take up more than maxBytes, the ones that were used
+ * least recently are deleted until they take up 90% of it.
+ */
+public class MatchCache {
+
+    static final int DEFAULT_MAX_MB = 256;
+
+    private static final String SUFFIX = ".json.gz";
+
+    private final Path mDir;
+    private final long mMaxBytes;
+
+    /**
+     * The size of every file in the cache, as far as we know
+     */
+    private final AtomicLong mBytes = new AtomicLong();
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    /**
+     * Use dir for the cache, creating it if needed, and pick up whatever a
+     * previous run left in it
+     *
+     * @throws IOException if the directory can't be created or read
+     */
+    MatchCache(Path dir, long maxBytes) throws IOException {
+        mDir = Files.createDirectories(dir);
+        mMaxBytes = maxBytes;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(mDir, "*" + SUFFIX)) {
+            for (Path f : files) {
+                mBytes.addAndGet(Files.size(f));
+            }
+        }
+    }
+
+    private Path file(long matchID) {
+        return mDir.resolve(matchID + SUFFIX);
+    }
+
+    /**
+     * @return the cached response for a match, or null if we don't have it
+     * @throws IOException if it's there but can't be read
+     */
+    Reader open(long matchID) throws IOException {
+        Path f = file(matchID);
+        try {
+            // the modified time is when it was last used, for eviction
+            Files.setLastModifiedTime(f, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (NoSuchFileException e) {
+            mMisses.incrementAndGet();
+            return null;
+        }
+        mHits.incrementAndGet();
+        return new InputStreamReader(new GZIPInputStream(Files.newInputStream(f)), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Save a match's response. It's written to a temporary file first, so
+     * a crash never leaves a partial response in the cache.
+     */
+    void put(long matchID, byte[] response) throws IOException {
+        Path tmp = Files.createTempFile(mDir, matchID + "-", ".tmp");
+        try {
+            try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(tmp))) {
+                out.write(response);
+            }
+            long size = Files.size(tmp);
+            Path f = file(matchID);
+            long replaced = Files.exists(f) ? Files.size(f) : 0;
+            Files.move(tmp, f, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (mBytes.addAndGet(size - replaced) > mMaxBytes) {
+                evict();
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Forget a match, e.g. because its file is corrupt
+     */
+    void remove(long matchID) {
+        try {
+            Path f = file(matchID);
+            long size = Files.size(f);
+            if (Files.deleteIfExists(f)) {
+                mBytes.addAndGet(-size);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Delete the least recently used files until the cache is at 90% of its
+     * size, so we don't have to do this again on the very next put()
+     */
+    private synchronized void evict() throws IOException {
+        if (mBytes.get() <= mMaxBytes) {
+            return;
+        }
+        ArrayList<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(mDir, "*" + SUFFIX)) {
+            for (Path f : ds) {
+                files.add(f);
+            }
+        }
+        HashMap<Path, FileTime> used = new HashMap<>();
+        for (Path f : files) {
+            used.put(f, Files.getLastModifiedTime(f));
+        }
+        files.sort(Comparator.comparing(used::get));
+
+        long target = mMaxBytes / 10 * 9;
+        for (int i = 0; i < files.size() && mBytes.get() > target; i++) {
+            Path f = files.get(i);
+            try {
+                long size = Files.size(f);
+                if (Files.deleteIfExists(f)) {
+                    mBytes.addAndGet(-size);
+                }
+            } catch (NoSuchFileException e) {
+                // someone else removed it
+            }
+        }
+    }
+
+    long bytes() {
+        return mBytes.get();
+    }
+
+    long hits() {
+        return mHits.get();
+    }
+
+    long misses() {
+        return mMisses.get();
+    }
+
+    @Override
+    public String toString() {
+        return "MatchCache{" + mDir + ", " + mBytes.get() / 1024 + " KB of " + mMaxBytes / 1024
+                + " KB, hits=" + mHits.get() + ", misses=" + mMisses.get() + "}";
+    }
+}
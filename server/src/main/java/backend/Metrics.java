@@ -0,0 +1,245 @@
+package backend;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import spark.Request;
+import spark.Route;
+
+/**
+ * Counters and latency histograms for the server, served at /metrics in the
+ * Prometheus text format. Recording is lock-free: each histogram is a row
+ * of LongAdders, and the only map lookup on the hot path is by a label that
+ * was registered the first time it was seen.
+ *
+ * What gets recorded:
+ *   - every Spark route: request count, errors and latency
+ *   - every PreparedStatement the Database runs, named after its constant
+ *   - every StatCollector run: how long it took and how many games it read
+ *   - gauges for the connection pool, team cache and price stream
+ */
+public class Metrics {
+
+    /**
+     * Upper bounds of the histogram buckets, in seconds
+     */
+    private static final double[] BUCKETS = {
+        0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 300
+    };
+    private static final long[] BUCKET_NANOS = new long[BUCKETS.length];
+    static {
+        for (int i = 0; i < BUCKETS.length; i++) {
+            BUCKET_NANOS[i] = (long) (BUCKETS[i] * 1e9);
+        }
+    }
+
+    /**
+     * A latency histogram. The last bucket is +Inf.
+     */
+    static class Histogram {
+        final LongAdder[] buckets = new LongAdder[BUCKETS.length + 1];
+        final LongAdder sumNanos = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            int i = 0;
+            while (i < BUCKET_NANOS.length && nanos > BUCKET_NANOS[i]) {
+                i++;
+            }
+            buckets[i].increment();
+            sumNanos.add(nanos);
+        }
+    }
+
+    /**
+     * Latency of each route, by route
+     */
+    private final ConcurrentHashMap<String, Histogram> mRoutes = new ConcurrentHashMap<>();
+
+    /**
+     * Requests that failed, by route
+     */
+    private final ConcurrentHashMap<String, LongAdder> mRouteErrors = new ConcurrentHashMap<>();
+
+    /**
+     * Time spent executing each PreparedStatement, by statement name
+     */
+    private final ConcurrentHashMap<String, Histogram> mQueries = new ConcurrentHashMap<>();
+
+    /**
+     * Statement names by SQL text, see nameStatements()
+     */
+    private final ConcurrentHashMap<String, String> mStatementNames = new ConcurrentHashMap<>();
+
+    private final Histogram mCollectorRuns = new Histogram();
+    private final LongAdder mCollectorGames = new LongAdder();
+
+    /**
+     * Values that are read when /metrics is scraped, by metric name
+     */
+    private final TreeMap<String, LongSupplier> mGauges = new TreeMap<>();
+    private final TreeMap<String, String> mGaugeHelp = new TreeMap<>();
+
+    /**
+     * The request attribute that marks a request as failed, see failed()
+     */
+    private static final String FAILED = "dots.failed";
+
+    /**
+     * Count a request as failed. For routes that write their own body, and
+     * so can't answer with an "error" StructuredResponse once they find out.
+     */
+    static void failed(Request request) {
+        request.attribute(FAILED, Boolean.TRUE);
+    }
+
+    /**
+     * Wrap a route so that every call to it is timed. A route fails if it
+     * throws, sets a 5xx status, answers with an "error" StructuredResponse
+     * (most of our routes report failures that way, with a 200), or calls
+     * failed().
+     *
+     * @param name the route's label, e.g. "/users/:id"
+     */
+    Route timed(String name, Route route) {
+        Histogram h = mRoutes.computeIfAbsent(name, k -> new Histogram());
+        LongAdder errors = mRouteErrors.computeIfAbsent(name, k -> new LongAdder());
+        return (request, response) -> {
+            long start = System.nanoTime();
+            boolean failed = true;
+            try {
+                Object body = route.handle(request, response);
+                failed = response.raw().getStatus() >= 500 || request.attribute(FAILED) != null
+                        || (body instanceof String && ((String) body).startsWith("{\"mStatus\":\"error\""));
+                return body;
+            } finally {
+                h.record(System.nanoTime() - start);
+                if (failed) {
+                    errors.increment();
+                }
+            }
+        };
+    }
+
+    /**
+     * Learn the names of a class's SQL statements from its static final
+     * String fields, so query timings can be labelled USERS_SELECT_ALL
+     * instead of with the SQL itself
+     */
+    void nameStatements(Class<?> c) {
+        for (Field f : c.getDeclaredFields()) {
+            int mod = f.getModifiers();
+            if (f.getType() != String.class || !Modifier.isStatic(mod) || !Modifier.isFinal(mod)) {
+                continue;
+            }
+            try {
+                f.setAccessible(true);
+                mStatementNames.putIfAbsent((String) f.get(null), f.getName());
+            } catch (IllegalAccessException | RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Wrap a PreparedStatement so that its execute calls are timed
+     */
+    PreparedStatement timed(String sql, PreparedStatement ps) {
+        return new TimedStatement(ps, query(sql), this);
+    }
+
+    /**
+     * @return where the execute times of some SQL go: its name from
+     *         nameStatements(), or "other" for SQL we don't know
+     */
+    Histogram query(String sql) {
+        return mQueries.computeIfAbsent(mStatementNames.getOrDefault(sql, "other"), k -> new Histogram());
+    }
+
+    /**
+     * Record one StatCollector run
+     */
+    void collectorRun(long nanos, int games) {
+        mCollectorRuns.record(nanos);
+        mCollectorGames.add(games);
+    }
+
+    /**
+     * Report a value that is read whenever the metrics are scraped
+     */
+    synchronized void gauge(String name, String help, LongSupplier value) {
+        mGauges.put(name, value);
+        mGaugeHelp.put(name, help);
+    }
+
+    /**
+     * @return every metric, in the Prometheus text format
+     */
+    String scrape() {
+        StringBuilder sb = new StringBuilder(8192);
+        histograms(sb, "dots_http_request_duration_seconds", "Time spent handling requests, by route",
+                "route", mRoutes);
+        header(sb, "dots_http_request_errors_total", "Requests that failed, by route", "counter");
+        for (Map.Entry<String, LongAdder> e : new TreeMap<>(mRouteErrors).entrySet()) {
+            sb.append("dots_http_request_errors_total{route=\"").append(e.getKey()).append("\"} ")
+                    .append(e.getValue().sum()).append('\n');
+        }
+        histograms(sb, "dots_db_query_duration_seconds", "Time spent executing each prepared statement",
+                "statement", mQueries);
+
+        header(sb, "dots_collector_run_duration_seconds", "Time taken by each StatCollector run", "histogram");
+        histogram(sb, "dots_collector_run_duration_seconds", "", mCollectorRuns);
+        header(sb, "dots_collector_games_total", "Games read by the StatCollector", "counter");
+        sb.append("dots_collector_games_total ").append(mCollectorGames.sum()).append('\n');
+
+        ArrayList<Map.Entry<String, LongSupplier>> gauges;
+        synchronized (this) {
+            gauges = new ArrayList<>(mGauges.entrySet());
+        }
+        for (Map.Entry<String, LongSupplier> g : gauges) {
+            header(sb, g.getKey(), mGaugeHelp.get(g.getKey()), g.getKey().endsWith("_total") ? "counter" : "gauge");
+            sb.append(g.getKey()).append(' ').append(g.getValue().getAsLong()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static void header(StringBuilder sb, String name, String help, String type) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void histograms(StringBuilder sb, String name, String help, String label, Map<String, Histogram> hs) {
+        header(sb, name, help, "histogram");
+        for (Map.Entry<String, Histogram> e : new TreeMap<>(hs).entrySet()) {
+            histogram(sb, name, label + "=\"" + e.getKey() + "\",", e.getValue());
+        }
+    }
+
+    /**
+     * @param labels the histogram's labels, each followed by a comma
+     */
+    private static void histogram(StringBuilder sb, String name, String labels, Histogram h) {
+        long cumulative = 0;
+        for (int i = 0; i < h.buckets.length; i++) {
+            cumulative += h.buckets[i].sum();
+            sb.append(name).append("_bucket{").append(labels).append("le=\"")
+                    .append(i < BUCKETS.length ? Double.toString(BUCKETS[i]) : "+Inf").append("\"} ")
+                    .append(cumulative).append('\n');
+        }
+        String plain = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+        sb.append(name).append("_sum").append(plain).append(' ').append(h.sumNanos.sum() / 1e9).append('\n');
+        sb.append(name).append("_count").append(plain).append(' ').append(cumulative).append('\n');
+    }
+}
@@ -0,0 +1,21 @@
+package backend;
+
+import java.util.ArrayList;
+
+/**
+ * One page of a list that is too long to send at once
+ *
+ * NB: since this will be converted into JSON, all fields must be public.
+ */
+public class Page<T> {
+    public final ArrayList<T> rows;
+
+    /**
+     * The cursor for the page after this one, or null if this is the last
+     */
+    public final Long next;
+
+    Page(ArrayList<T> rows, Long next) {
+        this.rows = rows; this.next = next;
+    }
+}
@@ -0,0 +1,193 @@
+package backend;
+
+import java.io.IOException;
+import java.sql.Date;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * One team's price after every game, oldest first, kept as two columns of
+ * ints: the day of the game (days since 1970-01-01) and the price. That is
+ * 8 bytes a game, rather than a TeamHistoryRow and its Date.
+ *
+ * Like Market.TransactionLog, appending writes into spare room at the end
+ * of the columns when no other history has used it yet, so a collector run
+ * doesn't copy the team's whole history. Each history only reads its first
+ * size games, which never change.
+ *
+ * Gson writes and reads a history with Adapter, as the same list of
+ * {tid, price, date} a list of TeamHistoryRows is written as.
+ */
+final class PriceHistory {
+
+    /**
+     * The day of a game whose date isn't known
+     */
+    static final int NO_DATE = Integer.MIN_VALUE;
+
+    /**
+     * The arrays shared by a history and the ones appended to it
+     */
+    private static final class Columns {
+        final int[] days, prices;
+        /**
+         * How much of the columns some history is using. Only the writer
+         * reads it.
+         */
+        int used;
+
+        Columns(int capacity) {
+            days = new int[capacity]; prices = new int[capacity];
+        }
+    }
+
+    final int tid;
+    private final Columns mColumns;
+    final int size;
+
+    private PriceHistory(int tid, Columns columns, int size) {
+        this.tid = tid; mColumns = columns; this.size = size;
+    }
+
+    static PriceHistory empty(int tid) {
+        return new PriceHistory(tid, new Columns(0), 0);
+    }
+
+    /**
+     * @param rows the team's history, oldest first
+     */
+    static PriceHistory of(int tid, Iterable<TeamHistoryRow> rows) {
+        PriceHistory history = empty(tid);
+        for (TeamHistoryRow h : rows) {
+            history = history.append(h.date, h.price);
+        }
+        return history;
+    }
+
+    /**
+     * Call with the market's lock held, or before the history is shared
+     */
+    PriceHistory append(int day, int price) {
+        Columns columns = mColumns;
+        if (columns.used != size || size == columns.days.length) {
+            Columns grown = new Columns(Math.max(16, size * 2));
+            System.arraycopy(columns.days, 0, grown.days, 0, size);
+            System.arraycopy(columns.prices, 0, grown.prices, 0, size);
+            columns = grown;
+        }
+        columns.days[size] = day;
+        columns.prices[size] = price;
+        columns.used = size + 1;
+        return new PriceHistory(tid, columns, size + 1);
+    }
+
+    PriceHistory append(Date date, int price) {
+        return append(date == null ? NO_DATE : (int) date.toLocalDate().toEpochDay(), price);
+    }
+
+    int day(int i) {
+        return mColumns.days[i];
+    }
+
+    int price(int i) {
+        return mColumns.prices[i];
+    }
+
+    /**
+     * @return the game's date, or null if it isn't known
+     */
+    Date date(int i) {
+        int day = day(i);
+        return day == NO_DATE ? null : Date.valueOf(LocalDate.ofEpochDay(day));
+    }
+
+    ArrayList<TeamHistoryRow> toList() {
+        ArrayList<TeamHistoryRow> rows = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            rows.add(new TeamHistoryRow(tid, price(i), date(i)));
+        }
+        return rows;
+    }
+
+    /**
+     * Writes a history straight from its columns, and reads one back into
+     * them. Dates are in Gson's default format for java.sql.Date. Each day is only formatted once, and kept
+     * for the next time, since every team's history covers the same days.
+     */
+    static final class Adapter extends TypeAdapter<PriceHistory> {
+        /**
+         * The pattern Gson uses for java.sql.Date
+         */
+        private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("MMM d, yyyy");
+
+        private final ConcurrentHashMap<Integer, String> mDates = new ConcurrentHashMap<>();
+
+        @Override
+        public void write(JsonWriter out, PriceHistory history) throws IOException {
+            if (history == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginArray();
+            int lastDay = NO_DATE;
+            String lastDate = null;
+            for (int i = 0; i < history.size; i++) {
+                out.beginObject().name("tid").value(history.tid).name("price").value(history.price(i));
+                int day = history.day(i);
+                if (day != NO_DATE) {
+                    if (day != lastDay) {
+                        lastDay = day;
+                        lastDate = mDates.computeIfAbsent(day, d -> LocalDate.ofEpochDay(d).format(DATE_FORMAT));
+                    }
+                    out.name("date").value(lastDate);
+                }
+                out.endObject();
+            }
+            out.endArray();
+        }
+
+        @Override
+        public PriceHistory read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            PriceHistory history = null;
+            in.beginArray();
+            while (in.hasNext()) {
+                int tid = 0, price = 0, day = NO_DATE;
+                in.beginObject();
+                while (in.hasNext()) {
+                    String name = in.nextName();
+                    if (name.equals("tid")) {
+                        tid = in.nextInt();
+                    } else if (name.equals("price")) {
+                        price = in.nextInt();
+                    } else if (name.equals("date") && in.peek() != JsonToken.NULL) {
+                        try {
+                            day = (int) LocalDate.parse(in.nextString(), DATE_FORMAT).toEpochDay();
+                        } catch (DateTimeParseException e) {
+                            throw new JsonSyntaxException(e);
+                        }
+                    } else {
+                        in.skipValue();
+                    }
+                }
+                in.endObject();
+                history = (history == null ? empty(tid) : history).append(day, price);
+            }
+            in.endArray();
+            // an empty history doesn't say which team it's for
+            return history == null ? empty(0) : history;
+        }
+    }
+}
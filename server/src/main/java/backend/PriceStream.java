@@ -0,0 +1,255 @@
+package backend;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketError;
+import org.eclipse.jetty.websocket.api.annotations.WebSocket;
+
+import com.google.gson.Gson;
+
+/**
+ * Pushes market events to the website over a WebSocket, so pages don't
+ * have to re-fetch /teams, /users and /users/:id to stay up to date.
+ *
+ * Clients connect to /stream, which anyone can do, so only public events
+ * are sent. A trade's result goes back in the /trade response instead.
+ * Messages look like:
+ *
+ *   {"type":"prices","data":[{"tid":1,"name":"...","price":45}, ...]}
+ *
+ * Events are serialized once and handed to a single broadcaster thread,
+ * which copies them into each client's queue. Sends are asynchronous, so an
+ * idle client holds no thread, and a client that falls too far behind is
+ * disconnected rather than buffered without limit.
+ */
+@WebSocket
+public class PriceStream {
+
+    /**
+     * Messages a client can have waiting before we give up on it
+     */
+    static final int CLIENT_BUFFER = 64;
+
+    /**
+     * Events waiting for the broadcaster. Publishing never blocks; if the
+     * broadcaster is this far behind, events are dropped.
+     */
+    private static final int EVENT_BUFFER = 1024;
+
+    /**
+     * How long the stream can go without an event before everyone is
+     * pinged, so proxies don't close idle connections
+     */
+    private static final long PING_MILLIS = 30000;
+
+    /**
+     * Stands for a ping in a client's queue. Compared by identity, so no
+     * event can be mistaken for it.
+     */
+    private static final String PING = new String("ping");
+
+    private static final ByteBuffer NO_DATA = ByteBuffer.allocate(0);
+
+    /**
+     * One message on the stream
+     */
+    static class Event {
+        final String type;
+        final Object data;
+
+        Event(String type, Object data) {
+            this.type = type; this.data = data;
+        }
+    }
+
+    /**
+     * One team's new price, as sent in a "prices" event
+     */
+    static class Price {
+        final int tid;
+        final String name;
+        final int price;
+
+        Price(int tid, String name, int price) {
+            this.tid = tid; this.name = name; this.price = price;
+        }
+    }
+
+    /**
+     * A connected page and the messages it hasn't been sent yet
+     */
+    private class Client implements WriteCallback {
+        final Session session;
+
+        private final ArrayDeque<String> mPending = new ArrayDeque<>();
+        private boolean mSending = false;
+
+        Client(Session session) {
+            this.session = session;
+        }
+
+        /**
+         * Queue a message, or PING, starting a send if none is in flight
+         */
+        void offer(String message) {
+            synchronized (this) {
+                if (mPending.size() >= CLIENT_BUFFER) {
+                    drop("too far behind");
+                    return;
+                }
+                mPending.add(message);
+                if (mSending) {
+                    return;
+                }
+                mSending = true;
+            }
+            sendNext();
+        }
+
+        private void sendNext() {
+            while (true) {
+                String next;
+                synchronized (this) {
+                    next = mPending.poll();
+                    if (next == null) {
+                        mSending = false;
+                        return;
+                    }
+                }
+                if (next != PING) {
+                    session.getRemote().sendString(next, this);
+                    return;
+                }
+                // Jetty queues the ping frame behind what we've sent and
+                // returns without waiting for it to be written
+                try {
+                    session.getRemote().sendPing(NO_DATA.duplicate());
+                } catch (Exception e) {
+                    drop(e.getMessage());
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void writeSuccess() {
+            sendNext();
+        }
+
+        @Override
+        public void writeFailed(Throwable x) {
+            drop(x.getMessage());
+        }
+
+        void drop(String reason) {
+            if (mClients.remove(session) != null && session.isOpen()) {
+                session.close(StatusCode.POLICY_VIOLATION, reason);
+            }
+        }
+    }
+
+    private final Gson mGson;
+
+    private final ConcurrentHashMap<Session, Client> mClients = new ConcurrentHashMap<>();
+
+    /**
+     * Serialized events waiting to be fanned out
+     */
+    private final LinkedBlockingQueue<String> mEvents = new LinkedBlockingQueue<>(EVENT_BUFFER);
+
+    PriceStream(Gson gson) {
+        mGson = gson;
+        Thread broadcaster = new Thread(this::broadcast, "price-stream");
+        broadcaster.setDaemon(true);
+        broadcaster.start();
+    }
+
+    @OnWebSocketConnect
+    public void onConnect(Session session) {
+        mClients.put(session, new Client(session));
+    }
+
+    @OnWebSocketClose
+    public void onClose(Session session, int statusCode, String reason) {
+        mClients.remove(session);
+    }
+
+    @OnWebSocketError
+    public void onError(Session session, Throwable error) {
+        mClients.remove(session);
+    }
+
+    /**
+     * Tell everyone about new team prices. Call this once the prices are
+     * committed to the database.
+     */
+    void publishPrices(Collection<TeamSummary> teams) {
+        if (teams.isEmpty()) {
+            return;
+        }
+        ArrayList<Price> prices = new ArrayList<>(teams.size());
+        for (TeamSummary t : teams) {
+            prices.add(new Price(t.tid, t.name, t.price));
+        }
+        publish(new Event("prices", prices));
+    }
+
+    private void publish(Event event) {
+        if (mClients.isEmpty()) {
+            return;
+        }
+        if (!mEvents.offer(mGson.toJson(event))) {
+            System.err.println("Price stream is behind, dropped a " + event.type + " event");
+        }
+    }
+
+    /**
+     * The broadcaster thread: hand each event to every client, and ping
+     * everyone when there hasn't been an event for PING_MILLIS. Pings go
+     * through each client's queue like events do, so a client that has
+     * stopped reading only holds up itself, and is dropped once its queue
+     * fills.
+     */
+    private void broadcast() {
+        long lastSent = System.currentTimeMillis();
+        while (true) {
+            String event;
+            try {
+                long wait = lastSent + PING_MILLIS - System.currentTimeMillis();
+                event = mEvents.poll(Math.max(wait, 0), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (event == null && System.currentTimeMillis() - lastSent < PING_MILLIS) {
+                continue;
+            }
+            lastSent = System.currentTimeMillis();
+            for (Client c : mClients.values()) {
+                c.offer(event == null ? PING : event);
+            }
+        }
+    }
+
+    /**
+     * @return the number of pages connected right now
+     */
+    int clients() {
+        return mClients.size();
+    }
+
+    @Override
+    public String toString() {
+        return "price stream: " + clients() + " clients, " + mEvents.size() + " events queued";
+    }
+}
@@ -0,0 +1,195 @@
+package backend;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.gson.Gson;
+
+import spark.Request;
+import spark.Response;
+
+/**
+ * Keeps the JSON for a GET route that rarely changes, already serialized
+ * and gzipped, so that most requests are answered without touching the
+ * database or Gson. The bytes are rebuilt the first time they are asked for
+ * after the version they were built from goes stale.
+ *
+ * Each body gets an ETag made from its contents, so a client that already
+ * has the current body is answered with an empty 304. The gzipped body's
+ * ETag ends in "-gz", since it is a different representation.
+ */
+public class ResponseCache {
+
+    /**
+     * One serialized body and the version of the data it was built from
+     */
+    static class Entry {
+        final long version;
+        final byte[] json, gzip;
+        final String etag, gzipEtag;
+
+        Entry(long version, byte[] json, byte[] gzip, String etag) {
+            this.version = version; this.json = json; this.gzip = gzip; this.etag = etag;
+            gzipEtag = etag.substring(0, etag.length() - 1) + "-gz\"";
+        }
+    }
+
+    /**
+     * Tells us what version the underlying data is at right now
+     */
+    private final LongSupplier mVersion;
+
+    /**
+     * Loads the data that goes in the response. Returning null means the
+     * load failed, and nothing is cached.
+     */
+    private final Supplier<Object> mLoader;
+
+    private final Gson mGson;
+
+    private volatile Entry mEntry;
+
+    ResponseCache(LongSupplier version, Supplier<Object> loader, Gson gson) {
+        mVersion = version; mLoader = loader; mGson = gson;
+    }
+
+    /**
+     * Get the body for the current version, building it if it is stale
+     *
+     * @return the cached body, or null if the data couldn't be loaded
+     */
+    Entry get() {
+        long version = mVersion.getAsLong();
+        Entry entry = mEntry;
+        if (entry != null && entry.version == version) {
+            return entry;
+        }
+        synchronized (this) {
+            entry = mEntry;
+            if (entry != null && entry.version == version) {
+                return entry;
+            }
+            // the version is read before loading, so if the data changes
+            // while we build, this entry is already stale and gets rebuilt
+            Object data = mLoader.get();
+            if (data == null) {
+                return null;
+            }
+            byte[] json = mGson.toJson(new StructuredResponse("ok", null, data)).getBytes(StandardCharsets.UTF_8);
+            entry = new Entry(version, json, gzip(json), etag(json));
+            mEntry = entry;
+            return entry;
+        }
+    }
+
+    /**
+     * Answer a request from the cache. Use this as the body of a Spark route.
+     *
+     * @return what the route should return to Spark. An "error" response if
+     *         the data couldn't be loaded.
+     */
+    Object serve(Request request, Response response) throws IOException {
+        response.type("application/json");
+        Entry entry = get();
+        if (entry == null) {
+            response.status(200);
+            return mGson.toJson(new StructuredResponse("error", "error loading data", null));
+        }
+
+        boolean gzip = acceptsGzip(request);
+        String etag = gzip ? entry.gzipEtag : entry.etag;
+        response.header("ETag", etag);
+        response.header("Cache-Control", "no-cache");
+        response.header("Vary", "Accept-Encoding");
+        if (matches(request.headers("If-None-Match"), etag)) {
+            response.status(304);
+            return "";
+        }
+        response.status(200);
+
+        if (!gzip) {
+            return entry.json;
+        }
+        return writeGzipped(response, entry.gzip);
+    }
+
+    /**
+     * @return true if the client said it can take a gzipped body
+     */
+    static boolean acceptsGzip(Request request) {
+        String accept = request.headers("Accept-Encoding");
+        return accept != null && accept.contains("gzip");
+    }
+
+    /**
+     * Send a body that is already gzipped. Spark gzips anything sent with
+     * Content-Encoding: gzip, so the bytes are written straight to the
+     * servlet response instead. Spark leaves a committed response alone.
+     *
+     * @return what the route should return to Spark
+     */
+    static Object writeGzipped(Response response, byte[] gzip) throws IOException {
+        HttpServletResponse raw = response.raw();
+        raw.setHeader("Content-Encoding", "gzip");
+        raw.setContentLength(gzip.length);
+        raw.getOutputStream().write(gzip);
+        raw.flushBuffer();
+        return "";
+    }
+
+    /**
+     * @return true if an If-None-Match header lists the etag
+     */
+    static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static byte[] gzip(byte[] bytes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 64);
+        try (GZIPOutputStream gz = new GZIPOutputStream(out)) {
+            gz.write(bytes);
+        } catch (IOException e) {
+            // can't happen when writing to memory
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * The etag depends only on the body, so it stays the same across
+     * restarts and rebuilds that don't change anything
+     */
+    static String etag(byte[] bytes) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(bytes);
+            StringBuilder sb = new StringBuilder("\"");
+            for (int i = 0; i < 8; i++) {
+                sb.append(String.format("%02x", digest[i]));
+            }
+            return sb.append('"').toString();
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM has SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -1,7 +1,10 @@
 package backend;
 
-import java.net.*;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.io.*;  
 
 public class StatCollector {
@@ -9,11 +12,52 @@ public class StatCollector {
     Database db;
     int leagueID; 
     long lastMatchID;
-    String apiKey;
 
-    public StatCollector(Database db, int l, long la, String a) {
+    /**
+     * How we reach Steam. Shared between runs, so connections are reused.
+     */
+    SteamClient steam;
+
+    /**
+     * Matches saved together in one transaction
+     */
+    static final int BATCH_SIZE = 100;
+
+    /**
+     * Times we try to read a match before giving up on it
+     */
+    static final int MAX_ATTEMPTS = 5;
+
+    /**
+     * The latest state of every team during an update() run. Results are 
+     * applied here first and written to the database a batch at a time.
+     */
+    HashMap<Integer, TeamSummary> teams = new HashMap<>();
+
+    /**
+     * Teams whose row changed during this batch
+     */
+    HashMap<Integer, TeamSummary> changedTeams = new HashMap<>();
+
+    /**
+     * The TeamHistory rows this batch will insert
+     */
+    ArrayList<TeamHistoryRow> newHistory = new ArrayList<>();
+
+    /**
+     * The matches in this batch that couldn't be read, with why
+     */
+    HashMap<Long, String> failedGames = new HashMap<>();
+
+    /**
+     * Where the new prices are announced once they're saved. May be null.
+     */
+    PriceStream stream;
+
+    public StatCollector(Database db, int l, long la, SteamClient c, PriceStream s) {
         this.db = db; leagueID = l;
-        lastMatchID = la; apiKey = a;
+        lastMatchID = la; steam = c;
+        stream = s;
     }
 
 
@@ -24,10 +68,6 @@ public class StatCollector {
         public GameToProcess(long l, boolean r, boolean d) {
             matchID = l; radiant = r; dire = d;
         }
-
-        public String getLink() {
-            return "https://api.steampowered.com/IDOTA2Match_570/GetMatchDetails/V001/?match_id="+matchID+"&key="+apiKey;
-        }
     }
 
     /**
@@ -36,161 +76,216 @@ public class StatCollector {
      * with games from teams that already exist in the databse, so we need to 
      * add teams before this.
      * 
+     * New matches are first queued in the CollectorMatches table, together
+     * with the new lastMatchID, so the league's history is only ever read
+     * once. Then every pending match is processed, oldest first, including
+     * ones that failed in earlier runs. Each batch of BATCH_SIZE matches is
+     * saved in one transaction that also marks its matches as done, so a
+     * crash loses at most the batch in progress, which is simply processed
+     * again, and no match is ever applied twice. A match that can't be read
+     * ends the run: the matches before it are saved, and it and every match
+     * after it are read again next time, so prices always change in match
+     * order. A match that fails MAX_ATTEMPTS times is given up on and left in
+     * the table to look at.
+     * 
+     * Match details are fetched in parallel by the SteamClient, but results
+     * are applied one at a time in match order, so a run always produces
+     * the same prices.
+     * 
      * @param db our database
      * @param leagueID the ID of the league so we can hit the steam API
      * @param lastMatchID the last match we looked at
-     * @return the amount of games we looked at, probably
+     * @return the amount of games we processed
      */
     public int update() {
-        String link = "https://api.steampowered.com/IDOTA2Match_570/GetMatchHistory/V001/?league_id="+leagueID+"&key="+apiKey;
-        ArrayList<GameToProcess> matches;
+        String link = steam.matchHistoryLink(leagueID);
+        ArrayList<GameToProcess> found;
         try {
-            matches = getLeagueMatches(db, link, lastMatchID);
+            found = getLeagueMatches(db, link, lastMatchID);
         } catch (Exception e) { 
             e.printStackTrace();
-            matches = new ArrayList<>(); 
+            found = new ArrayList<>(); 
+        }
+
+        if (found.size() > 0) {
+            ArrayList<CollectorMatchRow> queued = new ArrayList<>();
+            for (GameToProcess g : found) {
+                queued.add(new CollectorMatchRow(g.matchID, g.radiant, g.dire, CollectorMatchRow.PENDING, 0));
+            }
+            if (!db.queueCollectorMatches(queued, found.get(0).matchID)) {
+                System.out.println("Error queueing matches, they will be read again next time");
+                return 0;
+            }
+        }
+
+        ArrayList<CollectorMatchRow> pending = db.collectorMatchesPending();
+        if (pending == null || pending.size() == 0)
+            return 0;
+        ArrayList<GameToProcess> matches = new ArrayList<>();
+        for (CollectorMatchRow m : pending) {
+            matches.add(new GameToProcess(m.matchid, m.radiant, m.dire));
+        }
+
+        ArrayList<TeamSummary> current = db.teamSummariesSelectAll();
+        if (current == null)
+            return 0;
+        for (TeamSummary t : current) {
+            teams.put(t.tid, t);
         }
 
-        if (matches.size() > 0)
-            db.configUpdateOne(1, matches.get(0).matchID);
-            
-        for (GameToProcess i : matches) {
+        ArrayList<Future<SteamParser.MatchResult>> results = fetchResults(matches);
+        int processed = 0;
+        ArrayList<Long> done = new ArrayList<>();
+        for (int j = 0; j < matches.size(); j++) {
+            GameToProcess i = matches.get(j);
             System.out.println("Processing "+i.matchID + " with radiant:dire = "+i.radiant+":"+i.dire);
-            if (!processGameResult(i)) {
+            if (processGameResult(i, results.get(j))) {
+                done.add(i.matchID);
+            } else {
                 System.out.println("Error on game "+ i.matchID);
             }
-        }       
-        return matches.size();
+            if (Thread.currentThread().isInterrupted()) {
+                System.out.println("Interrupted, the rest of the matches will be processed next time");
+                cancel(results);
+                return processed;
+            }
+
+            boolean failed = !failedGames.isEmpty();
+            if (failed || done.size() == BATCH_SIZE || j == matches.size() - 1) {
+                if (!db.applyCollectorRun(newHistory, changedTeams.values(), done, failedGames, MAX_ATTEMPTS)) {
+                    System.out.println("Error saving results, they will be read again next time");
+                    cancel(results);
+                    return processed;
+                }
+                if (stream != null) {
+                    stream.publishPrices(changedTeams.values());
+                }
+                processed += done.size();
+                done.clear();
+                failedGames.clear();
+                newHistory.clear();
+                changedTeams.clear();
+                if (failed) {
+                    System.out.println("Stopping at game " + i.matchID + ", it and the rest will be read again next time");
+                    cancel(results);
+                    return processed;
+                }
+            }
+        }
+        return processed;
+    }
+
+    private static void cancel(ArrayList<Future<SteamParser.MatchResult>> results) {
+        for (Future<SteamParser.MatchResult> f : results) {
+            f.cancel(true);
+        }
     }
 
     public ArrayList<GameToProcess> getLeagueMatches(Database db, String link, long lastMatchID) throws Exception {
         ArrayList<GameToProcess> matches = new ArrayList<>();
-        ArrayList<Integer> teams = getTeamsInDB(db);
-
-        URL url = new URL(link); // creating a url object  
-        URLConnection urlConnection = url.openConnection(); // creating a urlconnection object  
-    
-        // wrapping the urlconnection in a bufferedreader  
-        BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(urlConnection.getInputStream()));  
-        String line;  
-        long matchID = 0;
-        int radID, direID, matchesRemaining;
-        boolean radTeam = false, direTeam = false;
-
-        while (!(line = bufferedReader.readLine()).startsWith("\"results_rem"))  { }
-        matchesRemaining = Integer.parseInt(line.substring(20, line.indexOf(",")));
-        System.out.println("Matches remaining: "+matchesRemaining);
-
-        while (true)  { 
-            line = bufferedReader.readLine();
-            if (line == null && matchesRemaining > 0) {
-                url = new URL(link+"&start_at_match_id="+(matchID-1)); 
-                urlConnection = url.openConnection();  
-                bufferedReader = new BufferedReader(new InputStreamReader(urlConnection.getInputStream())); 
-
-                while (!(line = bufferedReader.readLine()).startsWith("\"results_rem"))  { }
-                matchesRemaining = Integer.parseInt(line.substring(20, line.indexOf(",")));
-                System.out.println("Matches remaining: "+matchesRemaining);
-            } else if (line == null) {
-                System.out.println("Breaking");
-                break;
+        ArrayList<Integer> teamIDs = getTeamsInDB(db);
+        if (teamIDs == null)
+            return matches;
+        HashSet<Integer> teams = new HashSet<>(teamIDs);
+
+        // Steam sends the newest matches first, a page at a time
+        String page = link;
+        while (true) {
+            SteamParser.MatchPage result;
+            try (Reader in = steam.open(page)) {
+                result = SteamParser.parseMatchHistory(in, lastMatchID);
             }
-            if (line.startsWith("\"match_id")) {
-                matchID = Long.parseLong(line.substring(11, line.indexOf(",")));
-                if (matchID <= lastMatchID) 
-                    break;
-
-                while (!(line = bufferedReader.readLine()).startsWith("\"radiant_team_id"))  { }
-                radID = Integer.parseInt(line.substring(18, line.indexOf(",")));
-
-                while (!(line = bufferedReader.readLine()).startsWith("\"dire_team_id"))  { }
-                direID = Integer.parseInt(line.substring(15, line.indexOf(",")));
-
-                if (teams.contains(radID)) {
-                    radTeam = true;
-                } if (teams.contains(direID)) {
-                    direTeam = true;
-                } if (radTeam || direTeam) {
-                    matches.add(new GameToProcess(matchID, radTeam, direTeam));
+            System.out.println("Matches remaining: "+result.resultsRemaining);
+
+            for (SteamParser.MatchSummary m : result.matches) {
+                boolean radTeam = teams.contains(m.radiantID);
+                boolean direTeam = teams.contains(m.direID);
+                if (radTeam || direTeam) {
+                    matches.add(new GameToProcess(m.matchID, radTeam, direTeam));
                 }
-                radTeam = direTeam = false;
             }
+            if (result.reachedLast || result.resultsRemaining <= 0 || result.matches.isEmpty())
+                break;
+            page = link+"&start_at_match_id="+(result.oldestRead-1);
         }
-        bufferedReader.close();
         return matches;
     }
 
     public ArrayList<Integer> getTeamsInDB(Database db) {
-        ArrayList<TeamRow> teams = db.teamsSelectAll();
-        ArrayList<Integer> teamIDs = new ArrayList<>();
-        for (TeamRow t : teams) {
-            teamIDs.add(t.tid);
+        return db.teamIDsSelectAll();
+    }
+
+    /**
+     * Start fetching the result of every game at once
+     * @return the results, in the same order as the games
+     */
+    ArrayList<Future<SteamParser.MatchResult>> fetchResults(ArrayList<GameToProcess> games) {
+        ArrayList<Future<SteamParser.MatchResult>> results = new ArrayList<>(games.size());
+        for (GameToProcess game : games) {
+            results.add(steam.matchDetails(game.matchID));
         }
-        return teamIDs;
+        return results;
     }
 
     /**
-     * A disaster of a method to get the data we want from match results
-     * @param website the url of the data we want
-     * @return the results of the game as a GameResult object
+     * Wait for the result of a game from Steam and apply it to the teams we track
+     * @param game the game that was looked up
+     * @param pending its result, from fetchResults()
+     * @return true if the result was read
      */
-    public boolean processGameResult(GameToProcess game) { 
+    public boolean processGameResult(GameToProcess game, Future<SteamParser.MatchResult> pending) { 
 
         boolean radiantWin;
         int radiantScore, direScore, radiantID, direID;
 
-        try  {  
-            URL url = new URL(game.getLink()); // creating a url object  
-            URLConnection urlConnection = url.openConnection(); // creating a urlconnection object  
-        
-            // wrapping the urlconnection in a bufferedreader  
-            BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(urlConnection.getInputStream()));  
-            String line;  
-            // reading from the urlconnection using the bufferedreader  
-
-            while (!(line = bufferedReader.readLine()).startsWith("\"radiant_win"))  { }
-            radiantWin = line.startsWith("\"radiant_win\":t");
-
-            while (!(line = bufferedReader.readLine()).startsWith("\"radiant_score"))  { }
-            radiantScore = Integer.parseInt(line.substring(16, line.indexOf(",")));
-
-            while (!(line = bufferedReader.readLine()).startsWith("\"dire_score"))  { }
-            direScore = Integer.parseInt(line.substring(13, line.indexOf(",")));
-
-            while (!(line = bufferedReader.readLine()).startsWith("\"radiant_team_id"))  { }
-            radiantID = Integer.parseInt(line.substring(18, line.indexOf(",")));
-
-            while (!(line = bufferedReader.readLine()).startsWith("\"dire_team_id"))  { }
-            direID = Integer.parseInt(line.substring(15, line.indexOf(",")));
-
-            bufferedReader.close();
+        try {
+            SteamParser.MatchResult result = pending.get();
+            radiantWin = result.radiantWin;
+            radiantScore = result.radiantScore;
+            direScore = result.direScore;
+            radiantID = result.radiantID;
+            direID = result.direID;
         }
-        catch(Exception e)  {  
-            e.printStackTrace();  
+        catch(ExecutionException e)  {  
+            e.getCause().printStackTrace();  
+            failedGames.put(game.matchID, e.getCause().toString());
+            return false;
+        }  
+        catch(InterruptedException e)  {  
+            Thread.currentThread().interrupt();
             return false;
         }  
 
+        java.sql.Date today = new java.sql.Date(new java.util.Date().getTime());
         // If we care about how the radiant team did 
-        if (game.radiant) {
-            TeamRow radiantTeam = db.getTeam(radiantID);
+        if (game.radiant && teams.containsKey(radiantID)) {
+            TeamSummary radiantTeam = teams.get(radiantID);
             int newPrice = radiantTeam.getNewPrice(radiantWin, radiantScore, direScore);
             int newWins = radiantWin ? radiantTeam.wins + 1 : radiantTeam.wins;
             int newLosses = radiantWin ? radiantTeam.losses : radiantTeam.losses + 1;
-            db.TeamHistoryInsert(radiantTeam.tid, new java.sql.Date(new java.util.Date().getTime()), newPrice);
-            db.teamsUpdateOne(radiantTeam.tid, newPrice, newWins, newLosses, radiantTeam.pointsfor + radiantScore,
-                                 radiantTeam.pointsagainst + direScore);
+            newHistory.add(new TeamHistoryRow(radiantTeam.tid, newPrice, today));
+            updateTeam(new TeamSummary(radiantTeam.tid, radiantTeam.name, newPrice, newWins, newLosses, 
+                                 radiantTeam.pointsfor + radiantScore, radiantTeam.pointsagainst + direScore));
         }
         // If we care about how the dire team did
-        if (game.dire) {
-            TeamRow direTeam = db.getTeam(direID);
+        if (game.dire && teams.containsKey(direID)) {
+            TeamSummary direTeam = teams.get(direID);
             int newPrice = direTeam.getNewPrice(!radiantWin, direScore, radiantScore);
             int newWins = radiantWin ? direTeam.wins : direTeam.wins + 1;
             int newLosses = radiantWin ? direTeam.losses + 1 : direTeam.losses;
-            db.TeamHistoryInsert(direTeam.tid, new java.sql.Date(new java.util.Date().getTime()), newPrice);
-            db.teamsUpdateOne(direTeam.tid, newPrice, newWins, newLosses, direTeam.pointsfor + direScore,
-                                 direTeam.pointsagainst + radiantScore);
+            newHistory.add(new TeamHistoryRow(direTeam.tid, newPrice, today));
+            updateTeam(new TeamSummary(direTeam.tid, direTeam.name, newPrice, newWins, newLosses, 
+                                 direTeam.pointsfor + direScore, direTeam.pointsagainst + radiantScore));
         }
 
         return true;
     }
+
+    /**
+     * Record a team's new state, to be saved at the end of the run
+     */
+    void updateTeam(TeamSummary team) {
+        teams.put(team.tid, team);
+        changedTeams.put(team.tid, team);
+    }
 }
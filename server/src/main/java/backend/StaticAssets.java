@@ -0,0 +1,259 @@
+package backend;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import spark.Request;
+import spark.Response;
+
+/**
+ * Serves the website's files from memory in place of Spark's static file
+ * handler. Each file is read the first time it is asked for, and text files
+ * are gzipped once at that point rather than on every request. Files from a
+ * directory on disk, i.e. STATIC_LOCATION, are read again on every request
+ * instead, so edits show up without a restart.
+ *
+ * Every file gets a content hash. Pages have their links to local scripts
+ * and stylesheets rewritten to "script.js?v=<hash>", and a request carrying
+ * the current hash can be cached by the browser forever, because a new
+ * version of the file gets a new URL. Pages themselves are always
+ * revalidated, and anything else can be kept for a day. The gzipped and
+ * plain bytes of a file have different ETags, since they aren't the same
+ * representation.
+ */
+public class StaticAssets {
+
+    /**
+     * One file, ready to send
+     */
+    static class Asset {
+        final byte[] bytes;
+
+        /**
+         * The gzipped bytes, or null if the file doesn't get smaller
+         */
+        final byte[] gzip;
+
+        final String type, hash;
+
+        Asset(byte[] bytes, byte[] gzip, String type, String hash) {
+            this.bytes = bytes; this.gzip = gzip; this.type = type; this.hash = hash;
+        }
+    }
+
+    /**
+     * Content types by file extension. Only the text types are compressed,
+     * since images are compressed already.
+     */
+    private static final HashMap<String, String> TYPES = new HashMap<>();
+    private static final HashMap<String, Boolean> COMPRESSIBLE = new HashMap<>();
+    static {
+        type("html", "text/html; charset=utf-8", true);
+        type("js", "application/javascript; charset=utf-8", true);
+        type("css", "text/css; charset=utf-8", true);
+        type("txt", "text/plain; charset=utf-8", true);
+        type("json", "application/json", true);
+        type("svg", "image/svg+xml", true);
+        type("png", "image/png", false);
+        type("jpg", "image/jpeg", false);
+        type("ico", "image/x-icon", false);
+    }
+
+    private static void type(String ext, String type, boolean compressible) {
+        TYPES.put(ext, type);
+        COMPRESSIBLE.put(ext, compressible);
+    }
+
+    /**
+     * Local links in a page, e.g. src="script.js" or href="style.css"
+     */
+    private static final Pattern LINK = Pattern.compile("(src|href)=\"([^\"?#:]+)\"");
+
+    private static final String FOREVER = "public, max-age=31536000, immutable";
+    private static final String ONE_DAY = "public, max-age=86400";
+
+    /**
+     * Where files are read from: a directory on the classpath, or one on disk
+     */
+    private final String mClasspathDir;
+    private final File mDirectory;
+
+    /**
+     * Files that have been read so far, by path. Missing files aren't
+     * remembered, so random URLs can't fill up memory. Not used for a
+     * directory on disk.
+     */
+    private final ConcurrentHashMap<String, Asset> mAssets = new ConcurrentHashMap<>();
+
+    private StaticAssets(String classpathDir, File directory) {
+        mClasspathDir = classpathDir; mDirectory = directory;
+    }
+
+    /**
+     * @param dir a directory on the classpath, e.g. "/web"
+     */
+    static StaticAssets fromClasspath(String dir) {
+        return new StaticAssets(dir, null);
+    }
+
+    /**
+     * @param dir a directory on disk
+     */
+    static StaticAssets fromDirectory(String dir) {
+        return new StaticAssets(null, new File(dir));
+    }
+
+    /**
+     * Answer a request for a file. Use this as the body of a catch-all GET
+     * route that is declared after every other route.
+     *
+     * @return what the route should return to Spark. null if there's no such
+     *         file, which leaves the request to Jetty's other handlers, e.g.
+     *         the /stream web socket, and gets a 404 if none of them want it
+     */
+    Object serve(Request request, Response response) throws IOException {
+        String path = request.pathInfo();
+        if (path.endsWith("/")) {
+            path += "index.html";
+        }
+        Asset asset = get(path);
+        if (asset == null) {
+            return null;
+        }
+
+        boolean gzip = asset.gzip != null && ResponseCache.acceptsGzip(request);
+        String etag = "\"" + asset.hash + (gzip ? "-gz" : "") + "\"";
+        response.type(asset.type);
+        response.header("ETag", etag);
+        if (asset.hash.equals(request.queryParams("v"))) {
+            response.header("Cache-Control", FOREVER);
+        } else if (asset.type.startsWith("text/html")) {
+            response.header("Cache-Control", "no-cache");
+        } else {
+            response.header("Cache-Control", ONE_DAY);
+        }
+        if (asset.gzip != null) {
+            response.header("Vary", "Accept-Encoding");
+        }
+        if (ResponseCache.matches(request.headers("If-None-Match"), etag)) {
+            response.status(304);
+            return "";
+        }
+        response.status(200);
+
+        if (gzip) {
+            return ResponseCache.writeGzipped(response, asset.gzip);
+        }
+        return asset.bytes;
+    }
+
+    /**
+     * Get a file, reading it the first time it is asked for, or every time
+     * if it is on disk
+     *
+     * @return the file, or null if there isn't one at that path
+     */
+    Asset get(String path) {
+        if (mDirectory != null) {
+            return load(path);
+        }
+        Asset asset = mAssets.get(path);
+        if (asset == null) {
+            asset = load(path);
+            if (asset != null) {
+                mAssets.putIfAbsent(path, asset);
+            }
+        }
+        return asset;
+    }
+
+    private Asset load(String path) {
+        // only plain paths to files inside the directory. Anything without
+        // an extension is taken to be a directory
+        if (!path.startsWith("/") || path.contains("..") || path.contains("\\")
+                || path.lastIndexOf('.') < path.lastIndexOf('/')) {
+            return null;
+        }
+        byte[] bytes;
+        try {
+            bytes = read(path);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        if (bytes == null) {
+            return null;
+        }
+
+        String ext = path.substring(path.lastIndexOf('.') + 1).toLowerCase();
+        String type = TYPES.getOrDefault(ext, "application/octet-stream");
+        if (ext.equals("html")) {
+            bytes = versionLinks(path, bytes);
+        }
+        byte[] gzip = null;
+        if (COMPRESSIBLE.getOrDefault(ext, false)) {
+            gzip = ResponseCache.gzip(bytes);
+            if (gzip.length >= bytes.length) {
+                gzip = null;
+            }
+        }
+        String etag = ResponseCache.etag(bytes);
+        return new Asset(bytes, gzip, type, etag.substring(1, etag.length() - 1));
+    }
+
+    /**
+     * Add "?v=<hash>" to each link in a page that points at one of our files
+     */
+    private byte[] versionLinks(String path, byte[] page) {
+        String dir = path.substring(0, path.lastIndexOf('/') + 1);
+        Matcher m = LINK.matcher(new String(page, StandardCharsets.UTF_8));
+        StringBuffer sb = new StringBuffer();
+        while (m.find()) {
+            String link = m.group(2);
+            Asset linked = link.startsWith("/") ? get(link) : get(dir + link);
+            String replacement = m.group(0);
+            if (linked != null) {
+                replacement = m.group(1) + "=\"" + link + "?v=" + linked.hash + "\"";
+            }
+            m.appendReplacement(sb, Matcher.quoteReplacement(replacement));
+        }
+        m.appendTail(sb);
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the contents of the file, or null if it doesn't exist
+     */
+    private byte[] read(String path) throws IOException {
+        InputStream in;
+        if (mDirectory != null) {
+            File f = new File(mDirectory, path.substring(1));
+            if (!f.isFile()) {
+                return null;
+            }
+            in = new FileInputStream(f);
+        } else {
+            in = StaticAssets.class.getResourceAsStream(mClasspathDir + path);
+            if (in == null) {
+                return null;
+            }
+        }
+        try (InputStream is = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = is.read(buf)) > 0) {
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+}
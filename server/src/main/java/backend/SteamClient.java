@@ -0,0 +1,251 @@
+package backend;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Everything the StatCollector needs to talk to the Steam Web API: where it
+ * is, the key, and a small pool of threads that fetch match details in
+ * parallel. The client lives as long as the server, so its connections are
+ * kept alive from one collector run to the next.
+ *
+ * Requests to each host are spaced out by a rate limiter, so fetching in
+ * parallel never asks Steam for more than requestsPerSecond. Connections are
+ * reused by HttpURLConnection's keep-alive cache, which holds up to
+ * http.maxConnections (5 by default) idle connections per host.
+ *
+ * If the client has a MatchCache, match details are read from it when they
+ * can be, and every response Steam sends is saved in it.
+ */
+public class SteamClient {
+
+    static final String DEFAULT_BASE_URL = "https://api.steampowered.com";
+    static final int DEFAULT_CONCURRENCY = 4;
+    static final int DEFAULT_RATE_LIMIT = 10;
+
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+    private static final int READ_TIMEOUT_MS = 30000;
+
+    /**
+     * The most we'll read past what we need to keep a connection alive.
+     * Beyond this it's cheaper to let HttpURLConnection drop it.
+     */
+    private static final int MAX_DRAIN = 64 * 1024;
+
+    private final String mBaseUrl;
+    private final String mApiKey;
+    private final ThreadPoolExecutor mPool;
+    private final int mRequestsPerSecond;
+
+    /**
+     * One rate limiter per host:port
+     */
+    private final ConcurrentHashMap<String, RateLimiter> mLimiters = new ConcurrentHashMap<>();
+
+    /**
+     * Where match details are kept once we have them. May be null.
+     */
+    private volatile MatchCache mMatchCache;
+
+    /**
+     * @param baseUrl where the API is, e.g. DEFAULT_BASE_URL or a local stub
+     * @param apiKey our Steam Web API key
+     * @param concurrency the most requests to have in flight at once
+     * @param requestsPerSecond the most requests to start per second on each
+     *                          host, or 0 for no limit
+     */
+    SteamClient(String baseUrl, String apiKey, int concurrency, int requestsPerSecond) {
+        mBaseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        mApiKey = apiKey;
+        mRequestsPerSecond = requestsPerSecond;
+        AtomicInteger count = new AtomicInteger();
+        mPool = new ThreadPoolExecutor(concurrency, concurrency, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "steam-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        // the pool is idle between collector runs, so don't keep threads for it
+        mPool.allowCoreThreadTimeOut(true);
+    }
+
+    String matchHistoryLink(int leagueID) {
+        return mBaseUrl + "/IDOTA2Match_570/GetMatchHistory/V001/?league_id=" + leagueID + "&key=" + mApiKey;
+    }
+
+    String matchDetailsLink(long matchID) {
+        return mBaseUrl + "/IDOTA2Match_570/GetMatchDetails/V001/?match_id=" + matchID + "&key=" + mApiKey;
+    }
+
+    void setMatchCache(MatchCache cache) {
+        mMatchCache = cache;
+    }
+
+    /**
+     * Fetch and parse the details of a match on one of the client's threads,
+     * from the match cache if it's there
+     */
+    Future<SteamParser.MatchResult> matchDetails(long matchID) {
+        return submit(() -> {
+            MatchCache cache = mMatchCache;
+            if (cache == null) {
+                try (Reader in = open(matchDetailsLink(matchID))) {
+                    return SteamParser.parseMatchDetails(in);
+                }
+            }
+
+            try (Reader in = cache.open(matchID)) {
+                if (in != null) {
+                    return SteamParser.parseMatchDetails(in);
+                }
+            } catch (IOException e) {
+                // a damaged file, fetch the match again
+                e.printStackTrace();
+                cache.remove(matchID);
+            }
+
+            // we need the whole response to cache it
+            byte[] response;
+            try (InputStream in = request(matchDetailsLink(matchID))) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(32 * 1024);
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    out.write(buf, 0, n);
+                }
+                response = out.toByteArray();
+            }
+            SteamParser.MatchResult result = SteamParser.parseMatchDetails(
+                    new InputStreamReader(new ByteArrayInputStream(response), StandardCharsets.UTF_8));
+            // only a response with a result gets here, so errors are never cached
+            try {
+                cache.put(matchID, response);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return result;
+        });
+    }
+
+    <T> Future<T> submit(Callable<T> task) {
+        return mPool.submit(task);
+    }
+
+    /**
+     * Open an API url for reading, once its host's rate limit allows it.
+     * Callers close the reader as soon as they have what they need; closing
+     * it reads the rest of a short response so the connection can be reused.
+     *
+     * @throws IOException if the request fails or Steam doesn't answer 200
+     */
+    Reader open(String link) throws IOException {
+        return new InputStreamReader(request(link), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Like open(), for the raw bytes of the response
+     */
+    private InputStream request(String link) throws IOException {
+        URL url = new URL(link);
+        try {
+            mLimiters.computeIfAbsent(url.getHost() + ":" + url.getPort(), k -> new RateLimiter(mRequestsPerSecond))
+                    .acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting to call " + url.getPath());
+        }
+
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        conn.setReadTimeout(READ_TIMEOUT_MS);
+        int status = conn.getResponseCode();
+        if (status != HttpURLConnection.HTTP_OK) {
+            // reading the error body lets the connection be reused too
+            InputStream err = conn.getErrorStream();
+            if (err != null) {
+                new DrainingInputStream(err).close();
+            }
+            // the url has our key in it, so leave the query out
+            throw new IOException("Steam answered " + status + " for " + url.getPath());
+        }
+        return new DrainingInputStream(conn.getInputStream());
+    }
+
+    /**
+     * Reads what's left of the response when it's closed, since
+     * HttpURLConnection only reuses a connection whose response was read to
+     * the end
+     */
+    private static class DrainingInputStream extends FilterInputStream {
+        DrainingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                byte[] buf = new byte[8192];
+                int left = MAX_DRAIN, n;
+                while (left > 0 && (n = in.read(buf)) > 0) {
+                    left -= n;
+                }
+            } catch (IOException e) {
+                // the connection won't be reused, which is fine
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Spaces out permits evenly, at most perSecond of them a second
+     */
+    static class RateLimiter {
+        private final long mIntervalNanos;
+        private long mNext;
+
+        RateLimiter(int perSecond) {
+            mIntervalNanos = perSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / perSecond : 0;
+            mNext = System.nanoTime();
+        }
+
+        /**
+         * Wait for the next permit
+         */
+        void acquire() throws InterruptedException {
+            long wait;
+            synchronized (this) {
+                long now = System.nanoTime();
+                if (mNext - now < 0) {
+                    mNext = now;
+                }
+                wait = mNext - now;
+                mNext += mIntervalNanos;
+            }
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SteamClient{" + mBaseUrl + ", threads=" + mPool.getPoolSize() + ", active=" + mPool.getActiveCount()
+                + ", queued=" + mPool.getQueue().size() + ", completed=" + mPool.getCompletedTaskCount() + "}";
+    }
+}
@@ -0,0 +1,208 @@
+package backend;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+
+import com.google.gson.stream.JsonReader;
+
+/**
+ * Pulls the few fields the StatCollector needs out of Steam Web API
+ * responses. Responses are read as a stream of JSON tokens, so nothing we
+ * don't need is ever turned into objects, fields can come in any order and
+ * with any formatting, and we stop reading as soon as we have what we came
+ * for. Match details put the ten players first and the picks and bans last,
+ * so the picks and bans are never read at all.
+ */
+public class SteamParser {
+
+    /**
+     * What we need from one match in GetMatchHistory
+     */
+    static class MatchSummary {
+        final long matchID;
+
+        /**
+         * 0 if the side didn't play as a registered team
+         */
+        final int radiantID, direID;
+
+        MatchSummary(long matchID, int radiantID, int direID) {
+            this.matchID = matchID; this.radiantID = radiantID; this.direID = direID;
+        }
+    }
+
+    /**
+     * One page of GetMatchHistory, newest match first
+     */
+    static class MatchPage {
+        int resultsRemaining;
+
+        /**
+         * The matches newer than lastMatchID
+         */
+        final ArrayList<MatchSummary> matches = new ArrayList<>();
+
+        /**
+         * True if we got to lastMatchID and stopped, so there's no point
+         * asking for the next page
+         */
+        boolean reachedLast;
+
+        /**
+         * The oldest match on the page that we read, or 0 if there were none.
+         * The next page starts just before it.
+         */
+        long oldestRead;
+    }
+
+    /**
+     * What we need from GetMatchDetails
+     */
+    static class MatchResult {
+        final boolean radiantWin;
+        final int radiantScore, direScore, radiantID, direID;
+
+        MatchResult(boolean radiantWin, int radiantScore, int direScore, int radiantID, int direID) {
+            this.radiantWin = radiantWin; this.radiantScore = radiantScore; this.direScore = direScore;
+            this.radiantID = radiantID; this.direID = direID;
+        }
+    }
+
+    /*
+     * Bits for the match detail fields we have found so far
+     */
+    private static final int WIN = 1, RADIANT_SCORE = 2, DIRE_SCORE = 4, RADIANT_ID = 8, DIRE_ID = 16;
+    private static final int ALL = WIN | RADIANT_SCORE | DIRE_SCORE | RADIANT_ID | DIRE_ID;
+
+    /**
+     * Read one page of GetMatchHistory, stopping at the first match that is
+     * not newer than lastMatchID
+     *
+     * @throws IOException if the response can't be read or isn't JSON
+     */
+    static MatchPage parseMatchHistory(Reader in, long lastMatchID) throws IOException {
+        MatchPage page = new MatchPage();
+        JsonReader r = new JsonReader(in);
+        try {
+            if (!enterResult(r)) {
+                return page;
+            }
+            while (r.hasNext()) {
+                String name = r.nextName();
+                if (name.equals("results_remaining")) {
+                    page.resultsRemaining = r.nextInt();
+                } else if (name.equals("matches")) {
+                    r.beginArray();
+                    while (r.hasNext()) {
+                        MatchSummary m = readMatch(r, lastMatchID);
+                        page.oldestRead = m.matchID;
+                        if (m.matchID <= lastMatchID) {
+                            page.reachedLast = true;
+                            return page;
+                        }
+                        page.matches.add(m);
+                    }
+                    r.endArray();
+                } else {
+                    r.skipValue();
+                }
+            }
+            return page;
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("Unexpected match history: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Read one entry of the matches array. If the match turns out to be
+     * one we've seen, we stop there without reading the rest of it.
+     */
+    private static MatchSummary readMatch(JsonReader r, long lastMatchID) throws IOException {
+        long matchID = -1;
+        int radiantID = 0, direID = 0;
+        r.beginObject();
+        while (r.hasNext()) {
+            String name = r.nextName();
+            if (name.equals("match_id")) {
+                matchID = r.nextLong();
+                if (matchID <= lastMatchID) {
+                    return new MatchSummary(matchID, 0, 0);
+                }
+            } else if (name.equals("radiant_team_id")) {
+                radiantID = r.nextInt();
+            } else if (name.equals("dire_team_id")) {
+                direID = r.nextInt();
+            } else {
+                r.skipValue();
+            }
+        }
+        r.endObject();
+        if (matchID < 0) {
+            throw new IOException("Match without a match_id");
+        }
+        return new MatchSummary(matchID, radiantID, direID);
+    }
+
+    /**
+     * Read the result of a match from GetMatchDetails, stopping as soon as
+     * we have it
+     *
+     * @throws IOException if the response can't be read, isn't JSON, or
+     *                     doesn't have all of the fields (e.g. Steam sent an
+     *                     error instead)
+     */
+    static MatchResult parseMatchDetails(Reader in) throws IOException {
+        JsonReader r = new JsonReader(in);
+        boolean radiantWin = false;
+        int radiantScore = 0, direScore = 0, radiantID = 0, direID = 0;
+        int found = 0;
+        String error = null;
+        try {
+            if (enterResult(r)) {
+                while (r.hasNext()) {
+                    switch (r.nextName()) {
+                        case "radiant_win":
+                            radiantWin = r.nextBoolean(); found |= WIN; break;
+                        case "radiant_score":
+                            radiantScore = r.nextInt(); found |= RADIANT_SCORE; break;
+                        case "dire_score":
+                            direScore = r.nextInt(); found |= DIRE_SCORE; break;
+                        case "radiant_team_id":
+                            radiantID = r.nextInt(); found |= RADIANT_ID; break;
+                        case "dire_team_id":
+                            direID = r.nextInt(); found |= DIRE_ID; break;
+                        case "error":
+                            error = r.nextString(); break;
+                        default:
+                            r.skipValue();
+                    }
+                    if (found == ALL) {
+                        return new MatchResult(radiantWin, radiantScore, direScore, radiantID, direID);
+                    }
+                }
+            }
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("Unexpected match details: " + e.getMessage(), e);
+        }
+        throw new IOException(error != null ? "Steam error: " + error
+                : "Match details are missing fields (found " + Integer.toBinaryString(found) + ")");
+    }
+
+    /**
+     * Move the reader into the "result" object that wraps every response
+     *
+     * @return false if there isn't one
+     */
+    private static boolean enterResult(JsonReader r) throws IOException {
+        r.beginObject();
+        while (r.hasNext()) {
+            if (r.nextName().equals("result")) {
+                r.beginObject();
+                return true;
+            }
+            r.skipValue();
+        }
+        return false;
+    }
+}
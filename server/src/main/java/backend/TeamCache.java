@@ -0,0 +1,176 @@
+package backend;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An in-memory copy of every team's price, name and record, so that trades
+ * and portfolios don't have to query Teams. Prices only change when the
+ * StatCollector saves a run, which replaces the cached rows straight after
+ * its transaction commits.
+ *
+ * Readers never lock: the map is never modified once published, and
+ * writers swap in a new copy. The cached rows don't carry history.
+ */
+public class TeamCache {
+
+    /**
+     * Where teams are loaded from on a miss
+     */
+    private final Database mDb;
+
+    /**
+     * How many times reload() reads the teams before giving up
+     */
+    private static final int RELOAD_ATTEMPTS = 3;
+
+    /**
+     * The current teams, by tid. Replaced as a whole, never modified.
+     */
+    private volatile HashMap<Integer, TeamSummary> mTeams = new HashMap<>();
+
+    /**
+     * Bumped by every write, so a load that raced one can tell its rows may
+     * already be stale. Only read or written while holding the lock.
+     */
+    private long mWrites;
+
+    private final LongAdder mHits = new LongAdder(), mMisses = new LongAdder();
+
+    TeamCache(Database db) {
+        mDb = db;
+    }
+
+    /**
+     * Get a team, loading it from the database if it isn't cached yet
+     *
+     * @return the team, or null if it doesn't exist
+     */
+    TeamSummary get(int tid) {
+        TeamSummary team = mTeams.get(tid);
+        if (team != null) {
+            mHits.increment();
+            return team;
+        }
+        mMisses.increment();
+        long writes;
+        synchronized (this) {
+            writes = mWrites;
+        }
+        team = mDb.getTeamSummary(tid);
+        if (team != null) {
+            return putIfUnchanged(team, writes);
+        }
+        return team;
+    }
+
+    /**
+     * Cache a row read from the database, unless something wrote to the
+     * cache since the read began. A collector run or an invalidation in
+     * between may have been for this team, and the row we read would undo it.
+     *
+     * @return the cached row if there is one, otherwise the row we read
+     */
+    private synchronized TeamSummary putIfUnchanged(TeamSummary team, long writes) {
+        TeamSummary cached = mTeams.get(team.tid);
+        if (cached != null) {
+            return cached;
+        }
+        if (mWrites == writes) {
+            HashMap<Integer, TeamSummary> next = new HashMap<>(mTeams);
+            next.put(team.tid, team);
+            mTeams = next;
+        }
+        return team;
+    }
+
+    /**
+     * @return the team's current price, or -1 if it doesn't exist
+     */
+    int getPrice(int tid) {
+        TeamSummary team = get(tid);
+        return team == null ? -1 : team.price;
+    }
+
+    /**
+     * @return the team's name, or "null" if it doesn't exist
+     */
+    String getName(int tid) {
+        TeamSummary team = get(tid);
+        return team == null ? "null" : team.name;
+    }
+
+    /**
+     * Replace the cached rows for some teams. Readers see either all of the
+     * new rows or none of them.
+     */
+    synchronized void putAll(Collection<TeamSummary> teams) {
+        HashMap<Integer, TeamSummary> next = new HashMap<>(mTeams);
+        for (TeamSummary t : teams) {
+            next.put(t.tid, t);
+        }
+        mTeams = next;
+        mWrites++;
+    }
+
+    /**
+     * Forget a team, so the next read loads it from the database again
+     */
+    synchronized void invalidate(int tid) {
+        mWrites++;
+        if (mTeams.containsKey(tid)) {
+            HashMap<Integer, TeamSummary> next = new HashMap<>(mTeams);
+            next.remove(tid);
+            mTeams = next;
+        }
+    }
+
+    /**
+     * Load every team from the database, replacing whatever was cached. This
+     * also picks up changes made outside the server, e.g. by the admin app.
+     *
+     * If a collector run lands while the teams are being read, the read is
+     * thrown away and tried again, so it can't replace newer rows.
+     *
+     * @return true if the teams were loaded
+     */
+    boolean reload() {
+        for (int attempt = 0; attempt < RELOAD_ATTEMPTS; attempt++) {
+            long writes;
+            synchronized (this) {
+                writes = mWrites;
+            }
+            ArrayList<TeamSummary> teams = mDb.teamSummariesSelectAll();
+            if (teams == null) {
+                return false;
+            }
+            HashMap<Integer, TeamSummary> next = new HashMap<>();
+            for (TeamSummary t : teams) {
+                next.put(t.tid, t);
+            }
+            synchronized (this) {
+                if (mWrites == writes) {
+                    mTeams = next;
+                    mWrites++;
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    long hits() {
+        return mHits.sum();
+    }
+
+    long misses() {
+        return mMisses.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "team cache: " + mTeams.size() + " teams, " + hits() + " hits, " + misses() + " misses";
+    }
+}
@@ -0,0 +1,59 @@
+package backend;
+
+import java.sql.Date;
+import java.time.DayOfWeek;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+
+/**
+ * The TeamCandleRow to mimic a row from the TeamCandles table: a team's
+ * open, high, low and closing price over a day or a week, rolled up from
+ * its TeamHistory rows
+ */
+public class TeamCandleRow {
+
+    /**
+     * Resolutions, as the number of days in a candle. Weeks start on Monday.
+     */
+    static final int DAY = 1, WEEK = 7;
+
+    public final int tid, open, high, low, close, games;
+    public final Date start;
+
+    public TeamCandleRow(int tid, Date start, int open, int high, int low, int close, int games) {
+        this.tid = tid; this.start = start;
+        this.open = open; this.high = high; this.low = low; this.close = close; this.games = games;
+    }
+
+    /**
+     * @return the first day of the candle that date falls in
+     */
+    static Date start(Date date, int resolution) {
+        if (resolution == WEEK) {
+            return Date.valueOf(date.toLocalDate().with(DayOfWeek.MONDAY));
+        }
+        return date;
+    }
+
+    /**
+     * Roll history rows up into candles. Rows without a date are skipped.
+     *
+     * @param history rows in the order the games were played
+     *
+     * @return one candle per team and period, in the order each first appears
+     */
+    static ArrayList<TeamCandleRow> rollUp(Collection<TeamHistoryRow> history, int resolution) {
+        LinkedHashMap<String, TeamCandleRow> candles = new LinkedHashMap<>();
+        for (TeamHistoryRow h : history) {
+            if (h.date == null) {
+                continue;
+            }
+            Date start = start(h.date, resolution);
+            candles.merge(h.tid + "@" + start, new TeamCandleRow(h.tid, start, h.price, h.price, h.price, h.price, 1),
+                    (c, n) -> new TeamCandleRow(c.tid, c.start, c.open, Math.max(c.high, n.high),
+                            Math.min(c.low, n.low), n.close, c.games + n.games));
+        }
+        return new ArrayList<>(candles.values());
+    }
+}
@@ -1,44 +1,27 @@
 package backend;
 
-import java.util.ArrayList;
+/**
+ * A team with its whole price history. Use TeamSummary where the history
+ * isn't needed.
+ */
+public class TeamRow extends TeamSummary {
 
-public class TeamRow {
+    public final PriceHistory history;
 
-    public final int tid, price, wins, losses, pointsfor, pointsagainst;
-
-    public final String name;
-
-    public final ArrayList<TeamHistoryRow> history;
-
-    public final static int BASE_VALUE = 50;
-    public final static double RECENCY_WEIGHT = .75;
+    TeamRow(int tid, String name, int price, int wins, int losses, int pointsfor, int pointsagainst, PriceHistory history) {
+        super(tid, name, price, wins, losses, pointsfor, pointsagainst);
+        this.history = history;
+    }
 
-    TeamRow(int tid, String name, int price, int wins, int losses, int pointsfor, int pointsagainst, ArrayList<TeamHistoryRow> history) {
-        this.tid = tid; this.price = price; this.wins = wins;
-        this.losses = losses; this.pointsfor = pointsfor; 
-        this.pointsagainst = pointsagainst;
-        this.name = name; this.history = history;
+    TeamRow(TeamSummary team, PriceHistory history) {
+        this(team.tid, team.name, team.price, team.wins, team.losses, team.pointsfor, team.pointsagainst, history);
     }
 
     /**
-     * Essentially, we use total values to determine the new value,
-     * while giving more weight to the most recent result. BASE_VALUE
-     * will be multiplied by some constant multiple of the ratios
-     * (wins / losses) and (pointsfor / pointsagainst)
-     * 
-     * @param win did the team just win?
-     * @param pFor points scored this game
-     * @param pAgainst points the other team scored this game
-     * @return the new price
+     * @return the team without its history. Gson writes out the fields of
+     *         an object's own class, so a TeamRow can't stand in for this.
      */
-    public int getNewPrice(boolean win, double pFor, int pAgainst) {
-        double heavyWeight = (( ((double)wins + 1) / (losses + 1)) * ((double)(pointsfor+1) / (pointsagainst + 1))) * (RECENCY_WEIGHT * BASE_VALUE);
-        double lightWeight;
-        if (win)
-            lightWeight = (((double)pFor + 15) / (pAgainst+1)) * ((1-RECENCY_WEIGHT) * BASE_VALUE);
-        else 
-            lightWeight = (((double)pFor + 1) / (pAgainst+1)) * ((1-RECENCY_WEIGHT) * BASE_VALUE);
-        return (int) (heavyWeight + lightWeight);
-    }   
-
-}
\ No newline at end of file
+    TeamSummary summary() {
+        return new TeamSummary(tid, name, price, wins, losses, pointsfor, pointsagainst);
+    }
+}
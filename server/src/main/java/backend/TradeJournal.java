@@ -0,0 +1,671 @@
+package backend;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of trades, so a trade can be answered as soon as
+ * it is safely on disk instead of after its own database transaction.
+ * Trades are checked against an in-memory copy of each user's money and
+ * shares, written to the journal, and applied to Postgres in batches by a
+ * background thread.
+ *
+ * The journal is a directory of memory-mapped segment files of fixed-size
+ * records, named after the first sequence number in them. One thread syncs
+ * the current segment to disk over and over, and every trade written while
+ * a sync is running waits for the next one, so many trades share an fsync
+ * (group commit).
+ *
+ * The sequence number of the last trade applied to the database is kept in
+ * Config row CONFIG_APPLIED_SEQ, written in the same transaction as the
+ * trades. When the journal is opened, every trade after it is applied before
+ * the server takes new ones. A segment is deleted once all of its trades are
+ * applied.
+ *
+ * While the journal is on, every trade has to go through it. Money or shares
+ * changed some other way (e.g. in the admin app) aren't seen until the server
+ * restarts.
+ */
+public class TradeJournal implements AutoCloseable {
+
+    /**
+     * The Config row that holds the sequence number of the last applied trade
+     */
+    static final int CONFIG_APPLIED_SEQ = 4;
+
+    /**
+     * seq (8), uid (4), tid (4), amount (4), price (4), isBuy (1), padding
+     * (3), then the CRC32 of everything before it (4). A record of zeros is
+     * the end of the journal, since sequence numbers start at 1.
+     */
+    static final int RECORD_BYTES = 32;
+    private static final int CRC_OFFSET = 28;
+
+    static final int DEFAULT_SEGMENT_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * The most trades applied in one database transaction
+     */
+    static final int MAX_BATCH = 1000;
+
+    private static final long MIN_RETRY_MS = 100, MAX_RETRY_MS = 10000;
+    private static final long CLOSE_TIMEOUT_MS = 30000;
+
+    /**
+     * What loadAccount() returns for a user that doesn't exist
+     */
+    static final Account NO_SUCH_USER = new Account(0);
+
+    /**
+     * One trade, as it was made: amount is the number of shares that
+     * actually changed hands, at price each
+     */
+    static class Entry {
+        final long seq;
+        final int uid;
+        final int tid;
+        final int amount;
+        final int price;
+        final boolean isBuy;
+
+        Entry(long seq, int uid, int tid, int amount, int price, boolean isBuy) {
+            this.seq = seq;
+            this.uid = uid;
+            this.tid = tid;
+            this.amount = amount;
+            this.price = price;
+            this.isBuy = isBuy;
+        }
+
+        int moneyChange() {
+            return isBuy ? -amount * price : amount * price;
+        }
+
+        int shareChange() {
+            return isBuy ? amount : -amount;
+        }
+
+        byte[] encode() {
+            byte[] record = new byte[RECORD_BYTES];
+            ByteBuffer buf = ByteBuffer.wrap(record);
+            buf.putLong(seq);
+            buf.putInt(uid);
+            buf.putInt(tid);
+            buf.putInt(amount);
+            buf.putInt(price);
+            buf.put((byte) (isBuy ? 1 : 0));
+            buf.putInt(CRC_OFFSET, crc(record));
+            return record;
+        }
+
+        /**
+         * @return the entry in a record, or null if the record is empty or
+         *         was only partly written
+         */
+        static Entry decode(byte[] record) {
+            ByteBuffer buf = ByteBuffer.wrap(record);
+            long seq = buf.getLong();
+            if (seq <= 0 || buf.getInt(CRC_OFFSET) != crc(record)) {
+                return null;
+            }
+            return new Entry(seq, buf.getInt(), buf.getInt(), buf.getInt(), buf.getInt(), buf.get() == 1);
+        }
+
+        private static int crc(byte[] record) {
+            CRC32 crc = new CRC32();
+            crc.update(record, 0, CRC_OFFSET);
+            return (int) crc.getValue();
+        }
+    }
+
+    /**
+     * A user's money and shares, as of the last trade in the journal. Trades
+     * for the user are checked and made while holding its lock.
+     */
+    static class Account {
+        int money;
+        final HashMap<Integer, Integer> owned = new HashMap<>();
+
+        Account(int money) {
+            this.money = money;
+        }
+
+        int owned(int tid) {
+            Integer count = owned.get(tid);
+            return count == null ? 0 : count;
+        }
+
+        /**
+         * @return what the trade returns: shares now owned for a buy, money
+         *         gained for a sell
+         */
+        int apply(Entry e) {
+            money += e.moneyChange();
+            int count = owned(e.tid) + e.shareChange();
+            if (count > 0) {
+                owned.put(e.tid, count);
+            } else {
+                owned.remove(e.tid);
+            }
+            return e.isBuy ? count : e.moneyChange();
+        }
+    }
+
+    private static class Segment {
+        final Path path;
+        final long firstSeq;
+        final FileChannel channel;
+        final MappedByteBuffer buf;
+
+        private Segment(Path path, long firstSeq, FileChannel channel, MappedByteBuffer buf) {
+            this.path = path;
+            this.firstSeq = firstSeq;
+            this.channel = channel;
+            this.buf = buf;
+        }
+
+        /**
+         * Make a new, empty segment and make sure it will still be there
+         * after a crash
+         */
+        static Segment create(Path dir, long firstSeq, int bytes) throws IOException {
+            Path path = dir.resolve(String.format("trades-%020d.journal", firstSeq));
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+            channel.force(true);
+            syncDirectory(dir);
+            return new Segment(path, firstSeq, channel, buf);
+        }
+    }
+
+    private final Path mDir;
+    private final Database mDb;
+    private final int mSegmentBytes;
+
+    private final ConcurrentHashMap<Integer, Account> mAccounts = new ConcurrentHashMap<>();
+
+    // Guarded by this. mSegments is oldest first, ending with mCurrent
+    private final ArrayList<Segment> mSegments = new ArrayList<>();
+    private Segment mCurrent;
+    private long mNextSeq;
+    private ArrayList<Entry> mUnsynced = new ArrayList<>();
+    private volatile boolean mClosed;
+
+    /**
+     * Trades wait on this for mDurableSeq to reach theirs
+     */
+    private final Object mDurable = new Object();
+    private long mDurableSeq;
+    private volatile boolean mFailed;
+
+    private final LinkedBlockingQueue<Entry> mApplyQueue = new LinkedBlockingQueue<>();
+    private volatile long mAppliedSeq;
+
+    private final AtomicLong mSyncs = new AtomicLong();
+    private final AtomicLong mBatches = new AtomicLong();
+
+    private Thread mSyncer;
+    private Thread mApplier;
+
+    /**
+     * Open the journal in a directory, apply any trades in it that the
+     * database hasn't seen, and start taking new ones
+     *
+     * @throws IOException if the journal can't be read or its trades can't
+     *                     be applied. The server shouldn't take trades then.
+     */
+    static TradeJournal open(Path dir, Database db) throws IOException {
+        TradeJournal journal = new TradeJournal(dir, db, DEFAULT_SEGMENT_BYTES);
+        journal.recover();
+        return journal;
+    }
+
+    TradeJournal(Path dir, Database db, int segmentBytes) {
+        mDir = dir;
+        mDb = db;
+        mSegmentBytes = segmentBytes - segmentBytes % RECORD_BYTES;
+    }
+
+    /**
+     * Buy or sell shares of a team for a user. Returns once the trade is in
+     * the journal on disk; the database catches up shortly after.
+     *
+     * @return the same as Database.userPurchase() or userSell(): the number
+     *         of shares the user now owns for a buy, or the money gained
+     *         for a sell. 0 if the trade can't be made. -1 indicates an
+     *         error, and the trade wasn't made.
+     */
+    int trade(int uid, int tid, boolean isBuy, int amount) {
+        if (mFailed || mClosed) {
+            return -1;
+        }
+        Account account = account(uid);
+        if (account == null) {
+            return -1;
+        } else if (account == NO_SUCH_USER) {
+            return 0;
+        }
+        int price = price(tid);
+
+        Entry entry;
+        int result;
+        synchronized (account) {
+            int shares;
+            if (isBuy) {
+                if (amount <= 0 || price < 0 || (long) price * amount > Integer.MAX_VALUE
+                        || account.money < price * amount) {
+                    return 0;
+                }
+                shares = amount;
+            } else {
+                // selling more than the user owns sells everything they have
+                shares = Math.min(amount, account.owned(tid));
+                if (price < 0 || shares <= 0 || (long) account.money + (long) price * shares > Integer.MAX_VALUE) {
+                    return 0;
+                }
+            }
+            entry = append(uid, tid, shares, price, isBuy);
+            if (entry == null) {
+                return -1;
+            }
+            result = account.apply(entry);
+        }
+        // wait for the sync without the lock, so the user's next trade can
+        // join the same one
+        if (!awaitDurable(entry.seq)) {
+            return -1;
+        }
+        return result;
+    }
+
+    private Account account(int uid) {
+        Account account = mAccounts.get(uid);
+        if (account != null) {
+            return account;
+        }
+        account = loadAccount(uid);
+        if (account == null || account == NO_SUCH_USER) {
+            return account;
+        }
+        Account raced = mAccounts.putIfAbsent(uid, account);
+        return raced == null ? account : raced;
+    }
+
+    /**
+     * Read a user's money and shares from the database. Only called before
+     * the journal has any trades for the user that aren't applied yet.
+     *
+     * @return the account, NO_SUCH_USER, or null if there was an error
+     */
+    Account loadAccount(int uid) {
+        int money = mDb.getUserMoney(uid);
+        if (money == -2) {
+            return NO_SUCH_USER;
+        }
+        ArrayList<NamedOwnership> ownerships = money < 0 ? null : mDb.getUserOwnerships(uid);
+        if (ownerships == null) {
+            return null;
+        }
+        Account account = new Account(money);
+        for (NamedOwnership o : ownerships) {
+            account.owned.put(o.tid, o.count);
+        }
+        return account;
+    }
+
+    /**
+     * Show a trade in the in-memory market once it is on disk. Called by the
+     * syncer, in journal order, before the trade's caller is answered, so
+     * keep it short.
+     */
+    void made(Entry e) {
+        mDb.market().trade(e.uid, e.tid, e.shareChange(), e.price);
+    }
+
+    /**
+     * @return a team's current price. -1 if the team doesn't exist.
+     */
+    int price(int tid) {
+        return mDb.getTeamPrice(tid);
+    }
+
+    /**
+     * Apply a batch of trades to the database, in one transaction
+     */
+    boolean apply(List<Entry> batch) {
+        return mDb.applyJournaledTrades(batch);
+    }
+
+    /**
+     * @return the sequence number of the last trade in the database, 0 if
+     *         there is none. -1 indicates an error.
+     */
+    long appliedSeq() {
+        return mDb.getConfig(CONFIG_APPLIED_SEQ, 0);
+    }
+
+    /**
+     * Write a trade at the end of the journal, to be synced by the syncer
+     *
+     * @return the trade with its sequence number. null if the journal can't
+     *         take any more trades.
+     */
+    private synchronized Entry append(int uid, int tid, int amount, int price, boolean isBuy) {
+        if (mClosed || mFailed) {
+            return null;
+        }
+        if (mCurrent.buf.remaining() < RECORD_BYTES) {
+            try {
+                roll();
+            } catch (IOException e) {
+                e.printStackTrace();
+                fail();
+                return null;
+            }
+        }
+        Entry entry = new Entry(mNextSeq++, uid, tid, amount, price, isBuy);
+        mCurrent.buf.put(entry.encode());
+        mUnsynced.add(entry);
+        notifyAll();
+        return entry;
+    }
+
+    /**
+     * Move on to a new segment. The full one is synced first, so that the
+     * syncer only ever needs to sync the current segment.
+     */
+    private void roll() throws IOException {
+        mCurrent.buf.force();
+        mCurrent.channel.close();
+        mCurrent = Segment.create(mDir, mNextSeq, mSegmentBytes);
+        mSegments.add(mCurrent);
+    }
+
+    private boolean awaitDurable(long seq) {
+        synchronized (mDurable) {
+            while (mDurableSeq < seq && !mFailed) {
+                try {
+                    mDurable.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return mDurableSeq >= seq;
+        }
+    }
+
+    /**
+     * The journal can't be trusted to be on disk anymore, so stop taking
+     * trades. Whatever made it to disk is applied on the next start.
+     */
+    private void fail() {
+        mFailed = true;
+        // the accounts may hold trades that never reached the disk. Nothing
+        // reads them once the journal has failed, but don't keep them around
+        mAccounts.clear();
+        synchronized (mDurable) {
+            mDurable.notifyAll();
+        }
+    }
+
+    private void syncLoop() {
+        while (true) {
+            ArrayList<Entry> synced;
+            Segment segment;
+            synchronized (this) {
+                while (mUnsynced.isEmpty() && !mClosed && !mFailed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (mUnsynced.isEmpty() || mFailed) {
+                    return;
+                }
+                synced = mUnsynced;
+                mUnsynced = new ArrayList<>();
+                segment = mCurrent;
+            }
+
+            try {
+                segment.buf.force();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                fail();
+                return;
+            }
+            mSyncs.incrementAndGet();
+            // only now that they can't be lost, and in the order they were
+            // journaled, which for each user is the order they were made
+            for (Entry e : synced) {
+                made(e);
+            }
+            synchronized (mDurable) {
+                mDurableSeq = synced.get(synced.size() - 1).seq;
+                mDurable.notifyAll();
+            }
+            mApplyQueue.addAll(synced);
+        }
+    }
+
+    private void applyLoop() {
+        ArrayList<Entry> batch = new ArrayList<>();
+        long retryMs = MIN_RETRY_MS;
+        while (true) {
+            if (batch.isEmpty()) {
+                Entry first;
+                try {
+                    first = mApplyQueue.poll(100, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (first == null) {
+                    if (!mSyncer.isAlive() && mApplyQueue.isEmpty()) {
+                        return;
+                    }
+                    continue;
+                }
+                batch.add(first);
+                mApplyQueue.drainTo(batch, MAX_BATCH - 1);
+            }
+
+            if (apply(batch)) {
+                mBatches.incrementAndGet();
+                mAppliedSeq = batch.get(batch.size() - 1).seq;
+                batch.clear();
+                retryMs = MIN_RETRY_MS;
+                deleteAppliedSegments();
+            } else if (mClosed) {
+                // these stay in the journal, and are applied on the next start
+                return;
+            } else {
+                // close() wakes us for one last try
+                synchronized (this) {
+                    try {
+                        if (!mClosed) {
+                            wait(retryMs);
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                retryMs = Math.min(retryMs * 2, MAX_RETRY_MS);
+            }
+        }
+    }
+
+    private synchronized void deleteAppliedSegments() {
+        while (mSegments.size() > 1 && mSegments.get(1).firstSeq - 1 <= mAppliedSeq) {
+            try {
+                Files.deleteIfExists(mSegments.remove(0).path);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Apply every trade in the journal that the database hasn't seen, then
+     * start a new segment and the syncer and applier threads
+     */
+    void recover() throws IOException {
+        long applied = appliedSeq();
+        if (applied < 0) {
+            throw new IOException("Couldn't read the last applied trade from the database");
+        }
+        Files.createDirectories(mDir);
+        ArrayList<Path> files = segmentFiles(mDir);
+
+        // read up to the first record that isn't the next one. Anything after
+        // it was never synced, so no one was told it happened
+        ArrayList<Entry> unapplied = new ArrayList<>();
+        long last = applied;
+        long expected = -1;
+        byte[] record = new byte[RECORD_BYTES];
+        reading:
+        for (Path f : files) {
+            ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(f));
+            while (buf.remaining() >= RECORD_BYTES) {
+                buf.get(record);
+                Entry e = Entry.decode(record);
+                if (e == null || (expected > 0 && e.seq != expected)) {
+                    break reading;
+                }
+                if (expected < 0 && e.seq > applied + 1) {
+                    throw new IOException("The journal in " + mDir + " starts at trade " + e.seq
+                            + " but the database has only applied up to " + applied);
+                }
+                expected = e.seq + 1;
+                if (e.seq > applied) {
+                    unapplied.add(e);
+                }
+                last = Math.max(last, e.seq);
+            }
+        }
+
+        for (int i = 0; i < unapplied.size(); i += MAX_BATCH) {
+            List<Entry> batch = unapplied.subList(i, Math.min(i + MAX_BATCH, unapplied.size()));
+            if (!apply(batch)) {
+                throw new IOException("Couldn't apply journaled trades " + batch.get(0).seq + " to "
+                        + batch.get(batch.size() - 1).seq);
+            }
+        }
+        if (!unapplied.isEmpty()) {
+            System.out.println("Applied " + unapplied.size() + " trades from the journal");
+        }
+
+        // everything is in the database now
+        for (Path f : files) {
+            Files.delete(f);
+        }
+        mNextSeq = last + 1;
+        mDurableSeq = last;
+        mAppliedSeq = last;
+        mCurrent = Segment.create(mDir, mNextSeq, mSegmentBytes);
+        mSegments.add(mCurrent);
+
+        mSyncer = new Thread(this::syncLoop, "journal-sync");
+        mSyncer.setDaemon(true);
+        mSyncer.start();
+        mApplier = new Thread(this::applyLoop, "journal-apply");
+        mApplier.setDaemon(true);
+        mApplier.start();
+    }
+
+    /**
+     * @return the journal's segment files, oldest first
+     */
+    static ArrayList<Path> segmentFiles(Path dir) throws IOException {
+        ArrayList<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "trades-*.journal")) {
+            for (Path p : stream) {
+                files.add(p);
+            }
+        }
+        // the names are zero-padded, so this is by first sequence number
+        Collections.sort(files);
+        return files;
+    }
+
+    /**
+     * Sync a directory, so that files just created in it survive a crash.
+     * Not every platform can, and that's alright.
+     */
+    private static void syncDirectory(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // e.g. Windows, where directories can't be opened
+        }
+    }
+
+    /**
+     * @return trades that are in the journal but not yet in the database
+     */
+    long unapplied() {
+        synchronized (mDurable) {
+            return mDurableSeq - mAppliedSeq;
+        }
+    }
+
+    long syncs() {
+        return mSyncs.get();
+    }
+
+    long batches() {
+        return mBatches.get();
+    }
+
+    /**
+     * Stop taking trades, sync the ones already taken, and give the applier
+     * a while to get them into the database. Any it can't are applied on the
+     * next start.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            notifyAll();
+        }
+        try {
+            mSyncer.join();
+            mApplier.join(CLOSE_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            try {
+                mCurrent.channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TradeJournal{" + mDir + ", applied=" + mAppliedSeq + ", unapplied=" + unapplied() + ", syncs="
+                + syncs() + ", batches=" + batches() + ", accounts=" + mAccounts.size() + "}";
+    }
+}
@@ -9,13 +9,22 @@ public class UserRow {
 
     public final int uid, money, networth;
 
+    /**
+     * Place by networth, 1 for the richest. 0 where it isn't known.
+     */
+    public final int rank;
+
     public final String username;
 
     public final ArrayList<NamedOwnership> ownerships;
     public final ArrayList<TransactionsRow> transactions;
 
     UserRow(int uid, String username, int networth, int money, ArrayList<NamedOwnership> ownerships, ArrayList<TransactionsRow> transactions) {
-        this.uid = uid; this.money = money;
+        this(uid, username, networth, money, 0, ownerships, transactions);
+    }
+
+    UserRow(int uid, String username, int networth, int money, int rank, ArrayList<NamedOwnership> ownerships, ArrayList<TransactionsRow> transactions) {
+        this.uid = uid; this.money = money; this.rank = rank;
         this.username = username; this.networth = networth;
         this.ownerships = ownerships; this.transactions = transactions;
     }
@@ -0,0 +1,111 @@
+package backend;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+/**
+ * A Jetty thread pool that runs every task on its own virtual thread, so a
+ * request that is blocked on the database or a slow client costs a few
+ * hundred bytes instead of a platform thread. Requests are never queued
+ * waiting for a free thread; the connection pool's semaphore is what limits
+ * how many of them are inside the database at once.
+ *
+ * Virtual threads need Java 21, and the server is built for Java 8, so the
+ * executor is looked up by reflection. create() returns null on older JVMs.
+ */
+public class VirtualThreadPool extends AbstractLifeCycle implements ThreadPool {
+
+    /**
+     * Sets how many platform threads carry the virtual threads
+     */
+    private static final String PARALLELISM = "jdk.virtualThreadScheduler.parallelism";
+
+    private final ExecutorService mExecutor;
+
+    /**
+     * Tasks that are running right now
+     */
+    private final AtomicInteger mRunning = new AtomicInteger();
+
+    VirtualThreadPool(ExecutorService executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * Create the pool, if this JVM has virtual threads
+     *
+     * @param carriers the least number of carrier threads to schedule on. The
+     *                 JDBC driver and Jetty's selectors block while pinned to
+     *                 their carrier, so there must be more carriers than
+     *                 database connections, or they can stall everyone else.
+     *                 Ignored if -Djdk.virtualThreadScheduler.parallelism is set
+     *
+     * @return the pool, or null if virtual threads aren't available
+     */
+    static VirtualThreadPool create(int carriers) {
+        Method factory;
+        try {
+            factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+        // must be set before the first virtual thread starts
+        if (System.getProperty(PARALLELISM) == null) {
+            System.setProperty(PARALLELISM, Integer.toString(Math.max(carriers, Runtime.getRuntime().availableProcessors())));
+        }
+        try {
+            return new VirtualThreadPool((ExecutorService) factory.invoke(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // e.g. Java 19 and 20 without --enable-preview
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        mExecutor.execute(() -> {
+            mRunning.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                mRunning.decrementAndGet();
+            }
+        });
+    }
+
+    @Override
+    public void join() throws InterruptedException {
+        mExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int getThreads() {
+        return mRunning.get();
+    }
+
+    /**
+     * There are no idle threads: every task gets a new one
+     */
+    @Override
+    public int getIdleThreads() {
+        return 0;
+    }
+
+    @Override
+    public boolean isLowOnThreads() {
+        return false;
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        mExecutor.shutdown();
+        super.doStop();
+    }
+}
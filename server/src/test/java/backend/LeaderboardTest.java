@@ -0,0 +1,66 @@
+package backend;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * The networth ranking on its own
+ */
+public class LeaderboardTest extends TestCase {
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public LeaderboardTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(LeaderboardTest.class);
+    }
+
+    public void testRanks() {
+        Leaderboard board = Leaderboard.EMPTY;
+        // uid i is worth 1000 - 10 * (i % 50), so every networth is shared
+        for (int i = 0; i < 100; i++) {
+            board = board.with(i, 1000 - 10 * (i % 50));
+        }
+        assertEquals(100, board.size());
+        assertEquals(1, board.rank(0, 1000));
+        assertEquals(2, board.rank(50, 1000));
+        assertEquals(3, board.rank(1, 990));
+        assertEquals(100, board.rank(99, 510));
+        assertEquals(-1, board.rank(0, 990));
+
+        int[] top = board.top(5);
+        assertEquals(5, top.length);
+        assertEquals(0, top[0]);
+        assertEquals(50, top[1]);
+        assertEquals(1, top[2]);
+        assertEquals(51, top[3]);
+        assertEquals(2, top[4]);
+        assertEquals(100, board.top(1000).length);
+        assertEquals(0, board.top(0).length);
+    }
+
+    public void testChangesMakeNewLeaderboards() {
+        Leaderboard before = Leaderboard.EMPTY;
+        for (int i = 0; i < 10; i++) {
+            before = before.with(i, i * 100);
+        }
+        // uid 0 goes from last to first
+        Leaderboard after = before.without(0, 0).with(0, 5000);
+        assertEquals(1, after.rank(0, 5000));
+        assertEquals(2, after.rank(9, 900));
+        assertEquals(10, after.size());
+
+        assertEquals(10, before.rank(0, 0));
+        assertEquals(1, before.rank(9, 900));
+        assertEquals(-1, before.rank(0, 5000));
+    }
+}
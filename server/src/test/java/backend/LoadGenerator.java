@@ -0,0 +1,133 @@
+package backend;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hammers a running server with many concurrent clients and reports the
+ * throughput and latency it saw. This isn't a unit test; run it against a
+ * server with something like
+ *
+ *   mvn exec:java -Dexec.classpathScope=test -Dexec.mainClass=backend.LoadGenerator \
+ *       -Dexec.args="http://localhost:4567 /users/1,/teams 2000 30"
+ *
+ * Every client sends its requests one after another, round-robin over the
+ * paths, for the given number of seconds.
+ */
+public class LoadGenerator {
+
+    /**
+     * @param args base url, comma-separated paths, clients, seconds
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.out.println("usage: LoadGenerator <base url> <path,path,...> <clients> <seconds>");
+            return;
+        }
+        Result r = run(args[0], args[1].split(","), Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+        System.out.println(r);
+    }
+
+    /**
+     * What one run of the load generator measured
+     */
+    static class Result {
+        final int clients;
+        final long requests, errors, millis;
+
+        /**
+         * Latencies of the successful requests, in microseconds, sorted
+         */
+        final long[] latencies;
+
+        Result(int clients, long requests, long errors, long millis, long[] latencies) {
+            this.clients = clients; this.requests = requests; this.errors = errors;
+            this.millis = millis; this.latencies = latencies;
+        }
+
+        long percentile(double p) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            return latencies[Math.min(latencies.length - 1, (int) (latencies.length * p))];
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d clients: %d requests, %d errors, %.0f req/s, p50 %.1fms, p90 %.1fms, p99 %.1fms, max %.1fms",
+                    clients, requests, errors, requests * 1000.0 / millis, percentile(0.5) / 1000.0,
+                    percentile(0.9) / 1000.0, percentile(0.99) / 1000.0, percentile(1) / 1000.0);
+        }
+    }
+
+    static Result run(String base, String[] paths, int clients, int seconds) throws InterruptedException {
+        // keep one connection open per client instead of the default five
+        System.setProperty("http.maxConnections", Integer.toString(clients));
+
+        long deadline = System.currentTimeMillis() + seconds * 1000L;
+        AtomicLong errors = new AtomicLong();
+        ArrayList<long[]> perClient = new ArrayList<>();
+        long[] counts = new long[clients];
+        Thread[] threads = new Thread[clients];
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < clients; i++) {
+            final int me = i;
+            final long[][] mine = { new long[1024] };
+            perClient.add(null);
+            threads[i] = new Thread(null, () -> {
+                byte[] buf = new byte[8192];
+                int n = 0;
+                for (int k = me; System.currentTimeMillis() < deadline; k++) {
+                    long t = System.nanoTime();
+                    try {
+                        HttpURLConnection c = (HttpURLConnection) new URL(base + paths[k % paths.length]).openConnection();
+                        c.setRequestProperty("Accept-Encoding", "gzip");
+                        int status = c.getResponseCode();
+                        try (InputStream in = status < 400 ? c.getInputStream() : c.getErrorStream()) {
+                            while (in != null && in.read(buf) > 0) {
+                                // drain it, so the connection can be reused
+                            }
+                        }
+                        if (status != 200) {
+                            errors.incrementAndGet();
+                            continue;
+                        }
+                    } catch (Exception e) {
+                        errors.incrementAndGet();
+                        continue;
+                    }
+                    if (n == mine[0].length) {
+                        mine[0] = Arrays.copyOf(mine[0], n * 2);
+                    }
+                    mine[0][n++] = (System.nanoTime() - t) / 1000;
+                }
+                counts[me] = n;
+                synchronized (perClient) {
+                    perClient.set(me, mine[0]);
+                }
+            }, "load-" + i, 256 * 1024);
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        long millis = System.currentTimeMillis() - start;
+
+        long total = 0;
+        for (long c : counts) {
+            total += c;
+        }
+        long[] all = new long[(int) total];
+        int at = 0;
+        for (int i = 0; i < clients; i++) {
+            System.arraycopy(perClient.get(i), 0, all, at, (int) counts[i]);
+            at += counts[i];
+        }
+        Arrays.sort(all);
+        return new Result(clients, total + errors.get(), errors.get(), millis, all);
+    }
+}
@@ -0,0 +1,229 @@
+package backend;
+
+import java.sql.Date;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * The market built from rows in memory, without a database: users 1, 2 and
+ * 100, and teams 7 (price 10) and 8 (price 20)
+ */
+public class MarketTest extends TestCase {
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public MarketTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(MarketTest.class);
+    }
+
+    private Market mMarket;
+
+    @Override
+    protected void setUp() {
+        mMarket = new Market(null);
+        ArrayList<TeamHistoryRow> history = new ArrayList<>();
+        history.add(new TeamHistoryRow(7, 10, Date.valueOf("2022-01-01")));
+        mMarket.load(
+                Arrays.asList(user(1, 500), user(2, 100), user(100, 300)),
+                Arrays.asList(new OwnershipsRow(1, 7, 3), new OwnershipsRow(100, 8, 1)),
+                Arrays.asList(new TransactionsRow(1, 7, 3, 10)),
+                Arrays.asList(new TeamRow(7, "Seven", 10, 1, 0, 30, 20, PriceHistory.of(7, history)),
+                        new TeamRow(8, "Eight", 20, 0, 1, 20, 30, PriceHistory.empty(8))));
+    }
+
+    private static UserRow user(int uid, int money) {
+        return new UserRow(uid, "user" + uid, money, money, new ArrayList<>(), new ArrayList<>());
+    }
+
+    public void testReads() {
+        ArrayList<UserRow> users = mMarket.users();
+        assertEquals(3, users.size());
+        // by money
+        assertEquals(2, users.get(0).uid);
+        assertEquals(100, users.get(1).uid);
+        assertEquals(320, users.get(1).networth);
+        assertEquals(530, users.get(2).networth);
+
+        UserRow one = mMarket.user(1);
+        assertEquals("Seven", one.ownerships.get(0).name);
+        assertEquals(3, one.ownerships.get(0).count);
+        assertEquals(1, one.transactions.size());
+        assertNull(mMarket.user(3));
+        assertNull(mMarket.user(-1));
+        assertNull(mMarket.user(1 << 20));
+
+        // by networth: 1 (530), 100 (320), 2 (100)
+        assertEquals(1, users.get(2).rank);
+        assertEquals(2, users.get(1).rank);
+        assertEquals(3, users.get(0).rank);
+        assertEquals(1, one.rank);
+
+        ArrayList<UserRow> top = mMarket.top(2);
+        assertEquals(2, top.size());
+        assertEquals(1, top.get(0).uid);
+        assertEquals(1, top.get(0).rank);
+        assertEquals(100, top.get(1).uid);
+        assertEquals(3, mMarket.top(10).size());
+
+        assertEquals(7, mMarket.teams().get(0).tid);
+        assertEquals(1, mMarket.teams().get(0).history.size);
+        // summaries are plain TeamSummary objects, so Gson leaves history out
+        assertEquals(TeamSummary.class, mMarket.teamSummaries().get(0).getClass());
+        assertEquals(10, mMarket.teamSummaries().get(0).price);
+    }
+
+    public void testTradesMakeNewSnapshots() {
+        Market.Snapshot before = mMarket.snapshot();
+        mMarket.trade(1, 8, 2, 20);
+        mMarket.trade(1, 7, -3, 10);
+
+        // the old snapshot hasn't changed
+        assertEquals(500, before.user(1).money);
+        assertEquals(1, before.user(1).transactions.size);
+        assertEquals(before.version + 2, mMarket.version());
+
+        UserRow one = mMarket.user(1);
+        assertEquals(490, one.money);
+        assertEquals(530, one.networth);
+        assertEquals(1, one.ownerships.size());
+        assertEquals(8, one.ownerships.get(0).tid);
+        assertEquals(3, one.transactions.size());
+        assertEquals(-3, one.transactions.get(2).change);
+        // users that didn't trade are shared
+        assertSame(before.user(2), mMarket.snapshot().user(2));
+
+        // trades by unknown users are ignored
+        mMarket.trade(3, 7, 1, 10);
+        assertNull(mMarket.user(3));
+    }
+
+    public void testUserPages() {
+        Page<UserRow> page = mMarket.users(0, 2);
+        assertEquals(2, page.rows.size());
+        assertEquals(1, page.rows.get(0).uid);
+        assertEquals(2, page.rows.get(1).uid);
+        assertEquals(2L, (long) page.next);
+
+        // uid 100 is in the next chunk
+        page = mMarket.users(2, 2);
+        assertEquals(1, page.rows.size());
+        assertEquals(100, page.rows.get(0).uid);
+        assertEquals(2, page.rows.get(0).rank);
+        assertNull(page.next);
+
+        assertEquals(0, mMarket.users(100, 10).rows.size());
+        assertEquals(0, mMarket.users(Integer.MAX_VALUE, 10).rows.size());
+    }
+
+    public void testTransactionLogs() {
+        Market.TransactionLog base = Market.TransactionLog.EMPTY;
+        for (int i = 0; i < 5; i++) {
+            base = base.append(new TransactionsRow(1, 7, i, 10));
+        }
+        // two logs appended to the same one don't see each other's rows
+        Market.TransactionLog a = base.append(new TransactionsRow(1, 7, 100, 10));
+        Market.TransactionLog b = base.append(new TransactionsRow(1, 7, 200, 10));
+        assertEquals(5, base.toList().size());
+        assertEquals(100, a.toList().get(5).change);
+        assertEquals(200, b.toList().get(5).change);
+        assertEquals(4, b.toList().get(4).change);
+
+        assertEquals(2, a.newest(2).size());
+        assertEquals(4, a.newest(2).get(0).change);
+        assertEquals(100, a.newest(2).get(1).change);
+        assertEquals(6, a.newest(10).size());
+
+        // a long history keeps only its newest rows
+        Market.TransactionLog log = Market.TransactionLog.EMPTY;
+        for (int i = 0; i < 10 * Market.RECENT_TRANSACTIONS; i++) {
+            log = log.append(new TransactionsRow(1, 7, i, 10));
+            assertTrue(log.size <= 2 * Market.RECENT_TRANSACTIONS);
+        }
+        List<TransactionsRow> recent = log.newest(Market.RECENT_TRANSACTIONS);
+        assertEquals(Market.RECENT_TRANSACTIONS, recent.size());
+        assertEquals(9 * Market.RECENT_TRANSACTIONS, recent.get(0).change);
+        assertEquals(10 * Market.RECENT_TRANSACTIONS - 1, recent.get(recent.size() - 1).change);
+    }
+
+    public void testCollectorRun() {
+        Market.Snapshot before = mMarket.snapshot();
+        TeamSummary seven = new TeamSummary(7, "Seven", 15, 2, 0, 60, 30);
+        mMarket.putTeams(Collections.singletonList(seven),
+                Collections.singletonList(new TeamHistoryRow(7, 15, Date.valueOf("2022-01-02"))));
+
+        assertEquals(10, before.teams.get(7).price);
+        TeamRow team = mMarket.snapshot().teams.get(7);
+        assertEquals(15, team.price);
+        assertEquals(2, team.history.size);
+        assertEquals(15, team.history.price(1));
+        assertEquals(Date.valueOf("2022-01-02"), team.history.date(1));
+        // the old snapshot's history still ends where it did
+        assertEquals(1, before.teams.get(7).history.size);
+        // networth follows the price, for holders only
+        assertEquals(545, mMarket.user(1).networth);
+        assertSame(before.user(100), mMarket.snapshot().user(100));
+        assertSame(before.user(2), mMarket.snapshot().user(2));
+    }
+
+    public void testDayCandles() {
+        ArrayList<TeamHistoryRow> history = new ArrayList<>();
+        history.add(new TeamHistoryRow(7, 14, Date.valueOf("2022-01-02")));
+        history.add(new TeamHistoryRow(7, 12, Date.valueOf("2022-01-02")));
+        history.add(new TeamHistoryRow(8, 25, Date.valueOf("2022-01-02")));
+        mMarket.putTeams(Arrays.asList(new TeamSummary(7, "Seven", 12, 3, 0, 90, 45),
+                new TeamSummary(8, "Eight", 25, 1, 1, 40, 40)), history);
+
+        // by team, then by day
+        List<TeamCandleRow> candles = mMarket.dayCandles();
+        assertEquals(3, candles.size());
+        assertEquals(7, candles.get(0).tid);
+        assertEquals(Date.valueOf("2022-01-01"), candles.get(0).start);
+        TeamCandleRow day = candles.get(1);
+        assertEquals(7, day.tid);
+        assertEquals(14, day.open);
+        assertEquals(14, day.high);
+        assertEquals(12, day.low);
+        assertEquals(12, day.close);
+        assertEquals(2, day.games);
+        assertEquals(8, candles.get(2).tid);
+    }
+
+    public void testRanksFollowTradesAndPrices() {
+        // user 2 buys 5 of team 8 at 20: networth stays 100
+        mMarket.trade(2, 8, 5, 20);
+        assertEquals(100, mMarket.user(2).networth);
+        assertEquals(3, mMarket.user(2).rank);
+
+        // team 8 goes to 100: 2 is worth 500, 100 is worth 400
+        TeamSummary eight = new TeamSummary(8, "Eight", 100, 1, 1, 60, 60);
+        mMarket.putTeams(Collections.singletonList(eight), new ArrayList<>());
+        assertEquals(500, mMarket.user(2).networth);
+        assertEquals(400, mMarket.user(100).networth);
+        assertEquals(1, mMarket.user(1).rank);
+        assertEquals(2, mMarket.user(2).rank);
+        assertEquals(3, mMarket.user(100).rank);
+
+        // selling everything takes 2 off team 8's holders
+        mMarket.trade(2, 8, -5, 100);
+        TeamSummary cheap = new TeamSummary(8, "Eight", 1, 1, 2, 60, 90);
+        mMarket.putTeams(Collections.singletonList(cheap), new ArrayList<>());
+        assertEquals(500, mMarket.user(2).networth);
+        assertEquals(301, mMarket.user(100).networth);
+        assertEquals(2, mMarket.user(2).rank);
+    }
+}
@@ -0,0 +1,111 @@
+package backend;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class MatchCacheTest extends TestCase {
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public MatchCacheTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(MatchCacheTest.class);
+    }
+
+    private Path mDir;
+
+    @Override
+    protected void setUp() throws IOException {
+        mDir = Files.createTempDirectory("match-cache");
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(mDir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    private static String read(Reader in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        char[] buf = new char[1024];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            sb.append(buf, 0, n);
+        }
+        in.close();
+        return sb.toString();
+    }
+
+    /**
+     * A response that doesn't compress, so its size on disk is predictable
+     */
+    private static byte[] response(long seed) {
+        byte[] b = new byte[10000];
+        new Random(seed).nextBytes(b);
+        return b;
+    }
+
+    public void testRoundTrip() throws IOException {
+        MatchCache cache = new MatchCache(mDir, 1 << 20);
+        assertNull(cache.open(1));
+        cache.put(1, "{\"result\":{\"radiant_win\":true}}".getBytes(StandardCharsets.UTF_8));
+        assertEquals("{\"result\":{\"radiant_win\":true}}", read(cache.open(1)));
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+
+        // a new cache picks up what's on disk
+        MatchCache again = new MatchCache(mDir, 1 << 20);
+        assertEquals(cache.bytes(), again.bytes());
+        assertEquals("{\"result\":{\"radiant_win\":true}}", read(again.open(1)));
+    }
+
+    public void testEvictsLeastRecentlyUsed() throws IOException {
+        // room for about 5 responses
+        MatchCache cache = new MatchCache(mDir, 55000);
+        long old = System.currentTimeMillis() - 100000;
+        for (long id = 1; id <= 5; id++) {
+            cache.put(id, response(id));
+            Files.setLastModifiedTime(mDir.resolve(id + ".json.gz"), FileTime.fromMillis(old + id * 1000));
+        }
+        // reading the oldest makes it the most recently used
+        read(cache.open(1));
+
+        cache.put(6, response(6));
+        assertTrue(cache.bytes() <= 55000 / 10 * 9);
+        assertNotNull(cache.open(1));
+        assertNull(cache.open(2));
+        assertNotNull(cache.open(6));
+        // no temporary files are left behind
+        for (String f : mDir.toFile().list()) {
+            assertTrue(f, f.endsWith(".json.gz"));
+        }
+    }
+
+    public void testRemove() throws IOException {
+        MatchCache cache = new MatchCache(mDir, 1 << 20);
+        cache.put(7, response(7));
+        cache.remove(7);
+        assertEquals(0, cache.bytes());
+        assertNull(cache.open(7));
+    }
+}
@@ -0,0 +1,78 @@
+package backend;
+
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.ArrayList;
+
+import com.google.gson.Gson;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * The columnar history and how it is written as JSON
+ */
+public class PriceHistoryTest extends TestCase {
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public PriceHistoryTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(PriceHistoryTest.class);
+    }
+
+    public void testAppends() {
+        PriceHistory base = PriceHistory.empty(3);
+        for (int i = 0; i < 20; i++) {
+            base = base.append(i, 100 + i);
+        }
+        // two histories appended to the same one don't see each other's games
+        PriceHistory a = base.append(20, 1), b = base.append(20, 2);
+        assertEquals(20, base.size);
+        assertEquals(1, a.price(20));
+        assertEquals(2, b.price(20));
+        assertEquals(119, b.price(19));
+        assertEquals(3, b.tid);
+    }
+
+    public void testSameJsonAsRows() {
+        // two years, a few games a day, and one game with no date
+        ArrayList<TeamHistoryRow> rows = new ArrayList<>();
+        for (int d = 0; d < 730; d++) {
+            for (int g = 0; g < 3; g++) {
+                rows.add(new TeamHistoryRow(9, d * 3 + g, Date.valueOf(LocalDate.of(2022, 1, 1).plusDays(d))));
+            }
+        }
+        rows.add(new TeamHistoryRow(9, 5, null));
+        PriceHistory history = PriceHistory.of(9, rows);
+
+        assertEquals(new Gson().toJson(rows), App.gson().toJson(history));
+        assertEquals(new Gson().toJson(rows), new Gson().toJson(history.toList()));
+        assertEquals("[]", App.gson().toJson(PriceHistory.empty(9)));
+    }
+
+    public void testReadsWhatItWrites() {
+        ArrayList<TeamHistoryRow> rows = new ArrayList<>();
+        for (int d = 0; d < 40; d++) {
+            rows.add(new TeamHistoryRow(4, 60 + d, Date.valueOf(LocalDate.of(2023, 12, 20).plusDays(d / 2))));
+        }
+        rows.add(new TeamHistoryRow(4, 7, null));
+        String json = App.gson().toJson(PriceHistory.of(4, rows));
+
+        PriceHistory read = App.gson().fromJson(json, PriceHistory.class);
+        assertEquals(41, read.size);
+        assertEquals(4, read.tid);
+        assertEquals(json, App.gson().toJson(read));
+        assertEquals(json, App.gson().toJson(new Gson().fromJson(json, TeamHistoryRow[].class)));
+        assertEquals(0, App.gson().fromJson("[]", PriceHistory.class).size);
+    }
+}
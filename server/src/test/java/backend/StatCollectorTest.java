@@ -0,0 +1,249 @@
+package backend;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Fetching match details from a stub of the Steam API on localhost. The
+ * stub answers GetMatchDetails for match N with radiant_score N, after a
+ * delay that is longest for the lowest match IDs, so the earliest matches
+ * finish last.
+ */
+public class StatCollectorTest extends TestCase {
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public StatCollectorTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(StatCollectorTest.class);
+    }
+
+    private static final int MATCHES = 8;
+
+    private HttpServer mServer;
+    private final AtomicInteger mInFlight = new AtomicInteger();
+    private final AtomicInteger mMostInFlight = new AtomicInteger();
+    private final AtomicInteger mRequests = new AtomicInteger();
+    private final Set<Integer> mClientPorts = Collections.synchronizedSet(new HashSet<>());
+
+    /**
+     * Matches that the stub fails with a 503
+     */
+    private final Set<Long> mFailing = Collections.synchronizedSet(new HashSet<>());
+
+    @Override
+    protected void setUp() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        mServer.setExecutor(Executors.newCachedThreadPool());
+        mServer.createContext("/IDOTA2Match_570/GetMatchDetails/V001/", exchange -> {
+            int now = mInFlight.incrementAndGet();
+            mMostInFlight.accumulateAndGet(now, Math::max);
+            mRequests.incrementAndGet();
+            mClientPorts.add(exchange.getRemoteAddress().getPort());
+            try {
+                String query = exchange.getRequestURI().getQuery();
+                long matchID = Long.parseLong(query.substring(query.indexOf("match_id=") + 9, query.indexOf('&')));
+                Thread.sleep((MATCHES + 1 - matchID) * 10);
+                byte[] body = ("{\"result\":{\"players\":[],\"radiant_win\":true,\"radiant_score\":" + matchID
+                        + ",\"dire_score\":0,\"radiant_team_id\":1,\"dire_team_id\":2,\"picks_bans\":[]}}")
+                        .getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(mFailing.contains(matchID) ? 503 : 200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                mInFlight.decrementAndGet();
+            }
+        });
+        mServer.start();
+    }
+
+    @Override
+    protected void tearDown() {
+        mServer.stop(0);
+    }
+
+    private StatCollector collector(int concurrency, int requestsPerSecond) {
+        SteamClient steam = new SteamClient("http://localhost:" + mServer.getAddress().getPort(), "key",
+                concurrency, requestsPerSecond);
+        return new StatCollector(null, 1, 0, steam, null);
+    }
+
+    private static ArrayList<StatCollector.GameToProcess> games(StatCollector sc) {
+        ArrayList<StatCollector.GameToProcess> games = new ArrayList<>();
+        for (long id = 1; id <= MATCHES; id++) {
+            games.add(sc.new GameToProcess(id, true, false));
+        }
+        return games;
+    }
+
+    public void testResultsInMatchOrder() throws Exception {
+        StatCollector sc = collector(4, 0);
+        ArrayList<Future<SteamParser.MatchResult>> results = sc.fetchResults(games(sc));
+        for (int i = 0; i < MATCHES; i++) {
+            assertEquals(i + 1, results.get(i).get().radiantScore);
+        }
+        assertTrue(mMostInFlight.get() > 1);
+        assertTrue(mMostInFlight.get() <= 4);
+    }
+
+    public void testResultsAppliedInMatchOrder() {
+        StatCollector sc = collector(4, 0);
+        sc.teams.put(1, new TeamSummary(1, "Radiant", 50, 0, 0, 0, 0));
+        ArrayList<StatCollector.GameToProcess> games = games(sc);
+        ArrayList<Future<SteamParser.MatchResult>> results = sc.fetchResults(games);
+        for (int i = 0; i < MATCHES; i++) {
+            assertTrue(sc.processGameResult(games.get(i), results.get(i)));
+        }
+        TeamSummary team = sc.teams.get(1);
+        assertEquals(MATCHES, team.wins);
+        assertEquals(MATCHES * (MATCHES + 1) / 2, team.pointsfor);
+        assertEquals(MATCHES, sc.newHistory.size());
+        assertEquals(team.price, sc.newHistory.get(MATCHES - 1).price);
+    }
+
+    public void testConnectionsReused() throws Exception {
+        StatCollector sc = collector(1, 0);
+        for (Future<SteamParser.MatchResult> f : sc.fetchResults(games(sc))) {
+            f.get();
+        }
+        assertEquals(MATCHES, mRequests.get());
+        assertEquals(1, mClientPorts.size());
+    }
+
+    public void testRateLimit() throws Exception {
+        StatCollector sc = collector(4, 50);
+        long start = System.nanoTime();
+        for (Future<SteamParser.MatchResult> f : sc.fetchResults(games(sc))) {
+            f.get();
+        }
+        // 8 requests spaced 20ms apart
+        assertTrue((System.nanoTime() - start) / 1000000 >= (MATCHES - 1) * 20);
+    }
+
+    public void testCachedMatches() throws Exception {
+        Path dir = Files.createTempDirectory("match-cache");
+        try {
+            mFailing.add(3L);
+            StatCollector sc = collector(4, 0);
+            sc.steam.setMatchCache(new MatchCache(dir, 1 << 20));
+            for (Future<SteamParser.MatchResult> f : sc.fetchResults(games(sc))) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    // match 3
+                }
+            }
+            assertEquals(MATCHES, mRequests.get());
+
+            // only the failed match is fetched again
+            ArrayList<Future<SteamParser.MatchResult>> results = sc.fetchResults(games(sc));
+            for (int i = 0; i < MATCHES; i++) {
+                try {
+                    assertEquals(i + 1, results.get(i).get().radiantScore);
+                } catch (ExecutionException e) {
+                    assertEquals(2, i);
+                }
+            }
+            assertEquals(MATCHES + 1, mRequests.get());
+        } finally {
+            for (File f : dir.toFile().listFiles()) {
+                f.delete();
+            }
+            Files.delete(dir);
+        }
+    }
+
+    public void testPagingThroughStub() throws Exception {
+        int[] tracked = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 };
+        ArrayList<SteamApiStub.Match> matches = SteamApiStub.synthetic(1000, tracked, 5000000000L, 42);
+        try (SteamApiStub stub = new SteamApiStub(0, matches)) {
+            StatCollector sc = new StatCollector(null, 1, 0, new SteamClient(stub.url(), "key", 4, 0), null) {
+                @Override
+                public ArrayList<Integer> getTeamsInDB(Database db) {
+                    ArrayList<Integer> ids = new ArrayList<>();
+                    for (int t : tracked) {
+                        ids.add(t);
+                    }
+                    return ids;
+                }
+            };
+
+            // every page until the last match we saw, newest first
+            long last = matches.get(249).matchID;
+            ArrayList<StatCollector.GameToProcess> games = sc.getLeagueMatches(null, sc.steam.matchHistoryLink(1), last);
+            assertEquals(750, games.size());
+            assertEquals(matches.get(999).matchID, games.get(0).matchID);
+            assertEquals(matches.get(250).matchID, games.get(749).matchID);
+            assertEquals(8, stub.historyRequests());
+
+            // and every page there is
+            games = sc.getLeagueMatches(null, sc.steam.matchHistoryLink(1), 0);
+            assertEquals(1000, games.size());
+            assertEquals(18, stub.historyRequests());
+
+            // details agree with the history
+            SteamApiStub.Match m = matches.get(500);
+            SteamParser.MatchResult r = sc.steam.matchDetails(m.matchID).get();
+            assertEquals(m.radiantID, r.radiantID);
+            assertEquals(m.direID, r.direID);
+            assertEquals(m.radiantWin, r.radiantWin);
+            assertEquals(m.radiantScore, r.radiantScore);
+
+            try {
+                sc.steam.matchDetails(1).get();
+                fail("expected an unknown match to fail");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause().getMessage().contains("Match ID not found"));
+            }
+        }
+    }
+
+    public void testFailedMatch() throws Exception {
+        mFailing.add(3L);
+        StatCollector sc = collector(4, 0);
+        ArrayList<Future<SteamParser.MatchResult>> results = sc.fetchResults(games(sc));
+        for (int i = 0; i < MATCHES; i++) {
+            if (i == 2) {
+                try {
+                    results.get(i).get();
+                    fail("expected the match to fail");
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof IOException);
+                    assertFalse(e.getCause().getMessage().contains("key"));
+                }
+            } else {
+                assertEquals(i + 1, results.get(i).get().radiantScore);
+            }
+        }
+    }
+}
@@ -0,0 +1,406 @@
+package backend;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A stand-in for the parts of the Steam Web API that the StatCollector
+ * uses, so it can be tested and load tested without a network or a key.
+ * It lives with the tests so it stays out of the server's jar. Point the
+ * server at it with STEAM_API_URL, or run it on its own:
+ *
+ *   mvn exec:java -Dexec.classpathScope=test -Dexec.mainClass=backend.SteamApiStub \
+ *       -Dexec.args="8090 5000 100 20 0.01"
+ *
+ * serves 5000 synthetic matches between teams 1 to 100, answering after
+ * 20ms and failing 1% of requests with a 503. Give a directory instead of
+ * a match count to serve recorded GetMatchDetails responses, e.g. a
+ * MATCH_CACHE_DIR.
+ *
+ * GetMatchHistory is paged like Steam's, newest match first, with
+ * start_at_match_id, matches_requested and results_remaining. Responses
+ * are laid out the way Steam lays them out, one field per line.
+ */
+public class SteamApiStub implements AutoCloseable {
+
+    static final int PAGE_SIZE = 100;
+
+    static {
+        // The JDK's server writes headers and body separately, so without
+        // this every kept-alive request waits ~40ms on a delayed ACK. It's
+        // read once, when the first server is created.
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    /**
+     * One match the stub knows about
+     */
+    static class Match {
+        final long matchID;
+        final int radiantID, direID, radiantScore, direScore;
+        final boolean radiantWin;
+
+        /**
+         * The recorded GetMatchDetails response, or null to make one up
+         */
+        final byte[] details;
+
+        Match(long matchID, int radiantID, int direID, boolean radiantWin, int radiantScore, int direScore, byte[] details) {
+            this.matchID = matchID; this.radiantID = radiantID; this.direID = direID;
+            this.radiantWin = radiantWin; this.radiantScore = radiantScore; this.direScore = direScore;
+            this.details = details;
+        }
+    }
+
+    private final HttpServer mServer;
+    private final ExecutorService mExecutor;
+
+    /**
+     * The matches, oldest first, and their IDs for searching
+     */
+    private final Match[] mMatches;
+    private final long[] mIDs;
+    private final HashMap<Long, Match> mByID = new HashMap<>();
+
+    private volatile int mLatencyMs;
+    private volatile double mErrorRate;
+
+    private final AtomicLong mHistoryRequests = new AtomicLong();
+    private final AtomicLong mDetailsRequests = new AtomicLong();
+    private final AtomicLong mErrors = new AtomicLong();
+
+    /**
+     * Start serving the matches on localhost
+     *
+     * @param port the port to listen on, or 0 for any free port
+     */
+    SteamApiStub(int port, List<Match> matches) throws IOException {
+        mMatches = matches.toArray(new Match[0]);
+        Arrays.sort(mMatches, (a, b) -> Long.compare(a.matchID, b.matchID));
+        mIDs = new long[mMatches.length];
+        for (int i = 0; i < mMatches.length; i++) {
+            mIDs[i] = mMatches[i].matchID;
+            mByID.put(mIDs[i], mMatches[i]);
+        }
+
+        mServer = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        mExecutor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "steam-stub");
+            t.setDaemon(true);
+            return t;
+        });
+        mServer.setExecutor(mExecutor);
+        mServer.createContext("/IDOTA2Match_570/GetMatchHistory/V001/", e -> handle(e, true));
+        mServer.createContext("/IDOTA2Match_570/GetMatchDetails/V001/", e -> handle(e, false));
+        mServer.start();
+    }
+
+    /**
+     * Answer every request after this many milliseconds
+     */
+    void setLatency(int ms) {
+        mLatencyMs = ms;
+    }
+
+    /**
+     * Fail this fraction of requests, chosen at random, with a 503
+     */
+    void setErrorRate(double rate) {
+        mErrorRate = rate;
+    }
+
+    /**
+     * @return the base url to give a SteamClient
+     */
+    String url() {
+        return "http://localhost:" + mServer.getAddress().getPort();
+    }
+
+    long historyRequests() {
+        return mHistoryRequests.get();
+    }
+
+    long detailsRequests() {
+        return mDetailsRequests.get();
+    }
+
+    long errors() {
+        return mErrors.get();
+    }
+
+    /**
+     * Make up matches between the given teams, with IDs that count up from
+     * firstMatchID. One match in ten is between teams we don't track.
+     *
+     * @param seed the same seed always makes the same matches
+     */
+    static ArrayList<Match> synthetic(int count, int[] teamIDs, long firstMatchID, long seed) {
+        Random r = new Random(seed);
+        ArrayList<Match> matches = new ArrayList<>(count);
+        long id = firstMatchID;
+        for (int i = 0; i < count; i++) {
+            int radiant = r.nextInt(10) == 0 ? 0 : teamIDs[r.nextInt(teamIDs.length)];
+            int dire = teamIDs[r.nextInt(teamIDs.length)];
+            if (dire == radiant) {
+                dire = 0;
+            }
+            boolean radiantWin = r.nextBoolean();
+            int winner = 20 + r.nextInt(30), loser = 5 + r.nextInt(25);
+            matches.add(new Match(id, radiant, dire, radiantWin, radiantWin ? winner : loser,
+                    radiantWin ? loser : winner, null));
+            id += 1 + r.nextInt(5000);
+        }
+        return matches;
+    }
+
+    /**
+     * Load recorded GetMatchDetails responses from a directory. Each file is
+     * named after its match ID, as <id>.json or gzipped as <id>.json.gz, the
+     * way a MatchCache stores them.
+     */
+    static ArrayList<Match> fromFixtures(Path dir) throws IOException {
+        ArrayList<Match> matches = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.{json,json.gz}")) {
+            for (Path f : files) {
+                String name = f.getFileName().toString();
+                long matchID = Long.parseLong(name.substring(0, name.indexOf('.')));
+                byte[] details;
+                try (InputStream in = name.endsWith(".gz") ? new GZIPInputStream(Files.newInputStream(f))
+                        : Files.newInputStream(f)) {
+                    details = readAll(in);
+                }
+                SteamParser.MatchResult m = SteamParser.parseMatchDetails(
+                        new InputStreamReader(new ByteArrayInputStream(details), StandardCharsets.UTF_8));
+                matches.add(new Match(matchID, m.radiantID, m.direID, m.radiantWin, m.radiantScore, m.direScore, details));
+            }
+        }
+        return matches;
+    }
+
+    private void handle(HttpExchange exchange, boolean history) throws IOException {
+        try {
+            (history ? mHistoryRequests : mDetailsRequests).incrementAndGet();
+            if (mLatencyMs > 0) {
+                Thread.sleep(mLatencyMs);
+            }
+            if (mErrorRate > 0 && ThreadLocalRandom.current().nextDouble() < mErrorRate) {
+                mErrors.incrementAndGet();
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+            HashMap<String, String> query = new HashMap<>();
+            String q = exchange.getRequestURI().getRawQuery();
+            if (q != null) {
+                for (String kv : q.split("&")) {
+                    int eq = kv.indexOf('=');
+                    if (eq > 0) {
+                        query.put(kv.substring(0, eq), kv.substring(eq + 1));
+                    }
+                }
+            }
+            byte[] body = history ? matchHistory(query) : matchDetails(query);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            exchange.sendResponseHeaders(500, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private byte[] matchHistory(HashMap<String, String> query) {
+        int pageSize = PAGE_SIZE;
+        if (query.containsKey("matches_requested")) {
+            pageSize = Math.max(1, Math.min(PAGE_SIZE, Integer.parseInt(query.get("matches_requested"))));
+        }
+        // the newest match at or before start_at_match_id
+        int newest = mIDs.length - 1;
+        if (query.containsKey("start_at_match_id")) {
+            int i = Arrays.binarySearch(mIDs, Long.parseLong(query.get("start_at_match_id")));
+            newest = i >= 0 ? i : -i - 2;
+        }
+        int count = Math.max(0, Math.min(pageSize, newest + 1));
+
+        StringBuilder sb = new StringBuilder(count * 1200 + 200);
+        sb.append("{\n\"result\":{\n\"status\":1,\n\"num_results\":").append(count)
+                .append(",\n\"total_results\":").append(mIDs.length)
+                .append(",\n\"results_remaining\":").append(newest + 1 - count)
+                .append(",\n\"matches\":[\n");
+        for (int i = newest; i > newest - count; i--) {
+            Match m = mMatches[i];
+            Random r = new Random(m.matchID);
+            sb.append("{\n\"series_id\":0,\n\"series_type\":0,\n\"match_id\":").append(m.matchID)
+                    .append(",\n\"match_seq_num\":").append(m.matchID + 1000000000L)
+                    .append(",\n\"start_time\":").append(1600000000 + m.matchID % 100000000)
+                    .append(",\n\"lobby_type\":1,\n");
+            if (m.radiantID != 0) {
+                sb.append("\"radiant_team_id\":").append(m.radiantID).append(",\n");
+            }
+            if (m.direID != 0) {
+                sb.append("\"dire_team_id\":").append(m.direID).append(",\n");
+            }
+            sb.append("\"players\":[\n");
+            for (int p = 0; p < 10; p++) {
+                sb.append("{\n\"account_id\":").append(10000000 + r.nextInt(300000000))
+                        .append(",\n\"player_slot\":").append(p < 5 ? p : 123 + p)
+                        .append(",\n\"hero_id\":").append(1 + r.nextInt(130))
+                        .append("\n}").append(p < 9 ? ",\n" : "\n");
+            }
+            sb.append("]\n}").append(i > newest - count + 1 ? ",\n" : "\n");
+        }
+        sb.append("]\n}\n}\n");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] matchDetails(HashMap<String, String> query) {
+        Match m = null;
+        try {
+            m = mByID.get(Long.parseLong(query.get("match_id")));
+        } catch (NumberFormatException e) {
+            // Steam answers the same way
+        }
+        if (m == null) {
+            return "{\n\"result\":{\n\"error\":\"Match ID not found\"\n}\n}\n".getBytes(StandardCharsets.UTF_8);
+        }
+        if (m.details != null) {
+            return m.details;
+        }
+
+        // players first and picks and bans last, like Steam
+        Random r = new Random(m.matchID);
+        StringBuilder sb = new StringBuilder(8192);
+        sb.append("{\n\"result\":{\n\"players\":[\n");
+        for (int p = 0; p < 10; p++) {
+            sb.append("{\n\"account_id\":").append(10000000 + r.nextInt(300000000))
+                    .append(",\n\"player_slot\":").append(p < 5 ? p : 123 + p)
+                    .append(",\n\"hero_id\":").append(1 + r.nextInt(130));
+            for (int item = 0; item < 6; item++) {
+                sb.append(",\n\"item_").append(item).append("\":").append(r.nextInt(300));
+            }
+            sb.append(",\n\"kills\":").append(r.nextInt(15))
+                    .append(",\n\"deaths\":").append(r.nextInt(12))
+                    .append(",\n\"assists\":").append(r.nextInt(25))
+                    .append(",\n\"last_hits\":").append(r.nextInt(600))
+                    .append(",\n\"denies\":").append(r.nextInt(30))
+                    .append(",\n\"gold_per_min\":").append(200 + r.nextInt(600))
+                    .append(",\n\"xp_per_min\":").append(250 + r.nextInt(650))
+                    .append(",\n\"level\":25,\n\"ability_upgrades\":[\n");
+            for (int l = 1; l <= 25; l++) {
+                sb.append("{\n\"ability\":").append(5000 + r.nextInt(3000))
+                        .append(",\n\"time\":").append(100 + 110 * l)
+                        .append(",\n\"level\":").append(l).append("\n}").append(l < 25 ? ",\n" : "\n");
+            }
+            sb.append("]\n}").append(p < 9 ? ",\n" : "\n");
+        }
+        sb.append("],\n\"radiant_win\":").append(m.radiantWin)
+                .append(",\n\"duration\":").append(1500 + r.nextInt(2500))
+                .append(",\n\"start_time\":").append(1600000000 + m.matchID % 100000000)
+                .append(",\n\"match_id\":").append(m.matchID)
+                .append(",\n\"match_seq_num\":").append(m.matchID + 1000000000L)
+                .append(",\n\"lobby_type\":1,\n\"game_mode\":2")
+                .append(",\n\"radiant_score\":").append(m.radiantScore)
+                .append(",\n\"dire_score\":").append(m.direScore)
+                .append(",\n\"radiant_team_id\":").append(m.radiantID)
+                .append(",\n\"radiant_name\":\"Team ").append(m.radiantID)
+                .append("\",\n\"dire_team_id\":").append(m.direID)
+                .append(",\n\"dire_name\":\"Team ").append(m.direID)
+                .append("\",\n\"picks_bans\":[\n");
+        for (int i = 0; i < 24; i++) {
+            sb.append("{\n\"is_pick\":").append(i % 3 != 2)
+                    .append(",\n\"hero_id\":").append(1 + r.nextInt(130))
+                    .append(",\n\"team\":").append(i % 2)
+                    .append(",\n\"order\":").append(i).append("\n}").append(i < 23 ? ",\n" : "\n");
+        }
+        sb.append("]\n}\n}\n");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public void close() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return "SteamApiStub{" + url() + ", matches=" + mMatches.length + ", history requests=" + mHistoryRequests.get()
+                + ", details requests=" + mDetailsRequests.get() + ", errors=" + mErrors.get() + "}";
+    }
+
+    /**
+     * @param args port, then either a match count and a team count or a
+     *             directory of responses, then optionally latency in ms and
+     *             error rate
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("usage: SteamApiStub <port> (<matches> <teams> | <fixture dir>) [latency ms] [error rate]");
+            return;
+        }
+        int port = Integer.parseInt(args[0]);
+        ArrayList<Match> matches;
+        int next;
+        if (args[1].matches("\\d+")) {
+            int[] teams = new int[Integer.parseInt(args[2])];
+            for (int i = 0; i < teams.length; i++) {
+                teams[i] = i + 1;
+            }
+            matches = synthetic(Integer.parseInt(args[1]), teams, 6000000000L, 1);
+            next = 3;
+        } else {
+            matches = fromFixtures(Paths.get(args[1]));
+            next = 2;
+        }
+        SteamApiStub stub = new SteamApiStub(port, matches);
+        if (args.length > next) {
+            stub.setLatency(Integer.parseInt(args[next]));
+        }
+        if (args.length > next + 1) {
+            stub.setErrorRate(Double.parseDouble(args[next + 1]));
+        }
+        System.out.println("Serving " + matches.size() + " matches, set STEAM_API_URL=" + stub.url());
+        // serve until killed
+        Thread.currentThread().join();
+    }
+}
@@ -0,0 +1,100 @@
+package backend;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class SteamParserTest extends TestCase {
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public SteamParserTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(SteamParserTest.class);
+    }
+
+    /**
+     * Laid out the way Steam sends it: one field per line, players first
+     */
+    private static final String DETAILS = "{\n\"result\":{\n\"players\":[\n{\n\"account_id\":1,\n\"hero_id\":5,\n" +
+            "\"ability_upgrades\":[\n{\n\"ability\":5001,\n\"time\":100,\n\"level\":1\n}\n]\n}\n],\n" +
+            "\"radiant_win\":false,\n\"duration\":2400,\n\"match_id\":7000000001,\n" +
+            "\"radiant_score\":21,\n\"dire_score\":34,\n\"radiant_team_id\":8965114,\n" +
+            "\"radiant_name\":\"Some \\\"Team\\\"\",\n\"dire_team_id\":3886358,\n";
+
+    public void testMatchDetails() throws IOException {
+        // everything after dire_team_id is broken, so this only passes if
+        // the parser stops as soon as it has what it needs
+        SteamParser.MatchResult r = SteamParser.parseMatchDetails(new StringReader(DETAILS + "\"picks_bans\":[ not json"));
+        assertFalse(r.radiantWin);
+        assertEquals(21, r.radiantScore);
+        assertEquals(34, r.direScore);
+        assertEquals(8965114, r.radiantID);
+        assertEquals(3886358, r.direID);
+    }
+
+    public void testMatchDetailsInAnyOrder() throws IOException {
+        SteamParser.MatchResult r = SteamParser.parseMatchDetails(new StringReader(
+                "{\"result\":{\"dire_team_id\":2,\"dire_score\":3,\"radiant_team_id\":1,\"radiant_score\":4,\"radiant_win\":true}}"));
+        assertTrue(r.radiantWin);
+        assertEquals(4, r.radiantScore);
+        assertEquals(3, r.direScore);
+        assertEquals(1, r.radiantID);
+        assertEquals(2, r.direID);
+    }
+
+    public void testMatchDetailsError() {
+        try {
+            SteamParser.parseMatchDetails(new StringReader("{\"result\":{\"error\":\"Match ID not found\"}}"));
+            fail("expected an IOException");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("Match ID not found"));
+        }
+        try {
+            SteamParser.parseMatchDetails(new StringReader("<html>Service Unavailable</html>"));
+            fail("expected an IOException");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testMatchHistory() throws IOException {
+        String page = "{\n\"result\":{\n\"status\":1,\n\"num_results\":3,\n\"results_remaining\":40,\n\"matches\":[\n" +
+                "{\n\"match_id\":30,\n\"radiant_team_id\":1,\n\"dire_team_id\":2,\n\"players\":[{\"account_id\":1}]\n},\n" +
+                "{\n\"match_id\":20,\n\"players\":[{\"account_id\":1}]\n},\n" +
+                "{\n\"match_id\":10,\n\"radiant_team_id\":3, not json";
+        SteamParser.MatchPage p = SteamParser.parseMatchHistory(new StringReader(page), 10);
+        assertEquals(40, p.resultsRemaining);
+        assertTrue(p.reachedLast);
+        assertEquals(2, p.matches.size());
+        assertEquals(30, p.matches.get(0).matchID);
+        assertEquals(1, p.matches.get(0).radiantID);
+        assertEquals(2, p.matches.get(0).direID);
+        // a side without a registered team
+        assertEquals(0, p.matches.get(1).radiantID);
+        assertEquals(10, p.oldestRead);
+    }
+
+    public void testMatchHistoryLastPage() throws IOException {
+        SteamParser.MatchPage p = SteamParser.parseMatchHistory(new StringReader(
+                "{\"result\":{\"matches\":[{\"match_id\":5,\"radiant_team_id\":1}],\"results_remaining\":0}}"), 0);
+        assertFalse(p.reachedLast);
+        assertEquals(0, p.resultsRemaining);
+        assertEquals(1, p.matches.size());
+        assertEquals(5, p.oldestRead);
+
+        p = SteamParser.parseMatchHistory(new StringReader("{\"result\":{\"status\":15,\"statusDetail\":\"denied\"}}"), 0);
+        assertEquals(0, p.matches.size());
+    }
+}
@@ -0,0 +1,62 @@
+package backend;
+
+import java.sql.Date;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Rolling history up into candles
+ */
+public class TeamCandleRowTest extends TestCase {
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public TeamCandleRowTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(TeamCandleRowTest.class);
+    }
+
+    private static TeamHistoryRow h(int tid, int price, String date) {
+        return new TeamHistoryRow(tid, price, date == null ? null : Date.valueOf(date));
+    }
+
+    public void testRollUp() {
+        // 2023-01-01 is a Sunday, so the 2nd starts a new week
+        ArrayList<TeamHistoryRow> history = new ArrayList<>(Arrays.asList(
+                h(1, 50, "2023-01-01"), h(2, 10, "2023-01-01"), h(1, 40, "2023-01-01"), h(1, 45, "2023-01-01"),
+                h(1, 60, "2023-01-02"), h(1, 30, "2023-01-04"), h(1, 99, null)));
+
+        ArrayList<TeamCandleRow> days = TeamCandleRow.rollUp(history, TeamCandleRow.DAY);
+        assertEquals(4, days.size());
+        TeamCandleRow first = days.get(0);
+        assertEquals(1, first.tid);
+        assertEquals(Date.valueOf("2023-01-01"), first.start);
+        assertEquals(50, first.open);
+        assertEquals(50, first.high);
+        assertEquals(40, first.low);
+        assertEquals(45, first.close);
+        assertEquals(3, first.games);
+        assertEquals(2, days.get(1).tid);
+
+        ArrayList<TeamCandleRow> weeks = TeamCandleRow.rollUp(history, TeamCandleRow.WEEK);
+        assertEquals(3, weeks.size());
+        assertEquals(Date.valueOf("2022-12-26"), weeks.get(0).start);
+        TeamCandleRow week = weeks.get(2);
+        assertEquals(Date.valueOf("2023-01-02"), week.start);
+        assertEquals(60, week.open);
+        assertEquals(30, week.close);
+        assertEquals(2, week.games);
+    }
+}
@@ -0,0 +1,239 @@
+package backend;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * The journal with the database swapped for a list in memory: user 1
+ * started with 1000 money, there is no user 2, and team N costs N.
+ */
+public class TradeJournalTest extends TestCase {
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public TradeJournalTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(TradeJournalTest.class);
+    }
+
+    private Path mDir;
+
+    /**
+     * Every trade the "database" has applied, in order
+     */
+    private final List<TradeJournal.Entry> mApplied = Collections.synchronizedList(new ArrayList<>());
+    private volatile boolean mDatabaseDown;
+
+    /**
+     * Where made trades are shown, if anywhere
+     */
+    private Market mMarket;
+
+    @Override
+    protected void setUp() throws IOException {
+        mDir = Files.createTempDirectory("trade-journal");
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(mDir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    /**
+     * A journal with room for 10 trades per segment
+     */
+    private TradeJournal journal() throws IOException {
+        TradeJournal journal = new TradeJournal(mDir, null, 10 * TradeJournal.RECORD_BYTES) {
+            @Override
+            Account loadAccount(int uid) {
+                if (uid != 1) {
+                    return NO_SUCH_USER;
+                }
+                Account account = new Account(1000);
+                synchronized (mApplied) {
+                    for (Entry e : mApplied) {
+                        account.apply(e);
+                    }
+                }
+                return account;
+            }
+
+            @Override
+            void made(Entry e) {
+                if (mMarket != null) {
+                    mMarket.trade(e.uid, e.tid, e.shareChange(), e.price);
+                }
+            }
+
+            @Override
+            int price(int tid) {
+                return tid > 0 ? tid : -1;
+            }
+
+            @Override
+            boolean apply(List<Entry> batch) {
+                if (mDatabaseDown) {
+                    return false;
+                }
+                mApplied.addAll(batch);
+                return true;
+            }
+
+            @Override
+            long appliedSeq() {
+                return mApplied.isEmpty() ? 0 : mApplied.get(mApplied.size() - 1).seq;
+            }
+        };
+        journal.recover();
+        return journal;
+    }
+
+    public void testTrades() throws IOException {
+        TradeJournal journal = journal();
+        assertEquals(5, journal.trade(1, 10, true, 5));
+        assertEquals(7, journal.trade(1, 10, true, 2));
+        // can't afford it
+        assertEquals(0, journal.trade(1, 10, true, 100));
+        // sells everything
+        assertEquals(70, journal.trade(1, 10, false, 50));
+        assertEquals(0, journal.trade(1, 10, false, 1));
+        assertEquals(0, journal.trade(2, 10, true, 1));
+        assertEquals(0, journal.trade(1, -1, true, 1));
+        journal.close();
+
+        assertEquals(3, mApplied.size());
+        for (int i = 0; i < mApplied.size(); i++) {
+            assertEquals(i + 1, mApplied.get(i).seq);
+        }
+        assertEquals(-7, mApplied.get(2).shareChange());
+        assertEquals(0, journal.unapplied());
+        assertEquals(-1, journal.trade(1, 10, true, 1));
+    }
+
+    public void testConcurrentTradesShareSyncs() throws Exception {
+        TradeJournal journal = journal();
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        ArrayList<Future<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            results.add(pool.submit(() -> journal.trade(1, 1, true, 1)));
+        }
+        ArrayList<Integer> owned = new ArrayList<>();
+        for (Future<Integer> f : results) {
+            owned.add(f.get());
+        }
+        pool.shutdown();
+        journal.close();
+
+        // every buy saw the one before it
+        Collections.sort(owned);
+        for (int i = 0; i < 200; i++) {
+            assertEquals(i + 1, (int) owned.get(i));
+        }
+        assertEquals(200, mApplied.size());
+        assertTrue(journal.syncs() <= 200);
+        // applied segments are deleted as the applier goes
+        assertEquals(1, TradeJournal.segmentFiles(mDir).size());
+    }
+
+    public void testMarketSeesTradesInOrder() throws Exception {
+        mMarket = new Market(null);
+        mMarket.load(Collections.singletonList(new UserRow(1, "one", 1000, 1000, new ArrayList<>(), new ArrayList<>())),
+                new ArrayList<>(), new ArrayList<>(),
+                Collections.singletonList(new TeamRow(1, "One", 1, 0, 0, 0, 0, PriceHistory.empty(1))));
+        TradeJournal journal = journal();
+        // buys and sells of the same team by the same user, interleaved. A
+        // sell shown before the buy it depends on would lose shares
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        ArrayList<Future<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            boolean isBuy = i % 2 == 0;
+            results.add(pool.submit(() -> journal.trade(1, 1, isBuy, 1)));
+        }
+        for (Future<Integer> f : results) {
+            f.get();
+        }
+        pool.shutdown();
+        journal.close();
+
+        int owned = 0, money = 1000;
+        for (TradeJournal.Entry e : mApplied) {
+            owned += e.shareChange();
+            money += e.moneyChange();
+        }
+        Market.Trader trader = mMarket.snapshot().user(1);
+        assertEquals(owned, (int) trader.owned.getOrDefault(1, 0));
+        assertEquals(money, trader.money);
+        List<TransactionsRow> kept = trader.transactions.newest(Market.RECENT_TRANSACTIONS);
+        assertEquals(Math.min(mApplied.size(), Market.RECENT_TRANSACTIONS), kept.size());
+        assertEquals(mApplied.get(mApplied.size() - 1).shareChange(), kept.get(kept.size() - 1).change);
+    }
+
+    public void testRecovery() throws IOException {
+        mDatabaseDown = true;
+        TradeJournal journal = journal();
+        for (int i = 0; i < 25; i++) {
+            assertEquals(i + 1, journal.trade(1, 1, true, 1));
+        }
+        journal.close();
+        assertEquals(0, mApplied.size());
+        assertEquals(3, TradeJournal.segmentFiles(mDir).size());
+
+        // everything is applied before the journal opens again
+        mDatabaseDown = false;
+        journal = journal();
+        assertEquals(25, mApplied.size());
+        assertEquals(25, mApplied.get(24).seq);
+        assertEquals(26, journal.trade(1, 1, true, 1));
+        journal.close();
+        assertEquals(26, mApplied.get(25).seq);
+
+        // and nothing is applied twice
+        journal = journal();
+        journal.close();
+        assertEquals(26, mApplied.size());
+    }
+
+    public void testTornWrite() throws IOException {
+        mDatabaseDown = true;
+        TradeJournal journal = journal();
+        for (int i = 0; i < 5; i++) {
+            journal.trade(1, 1, true, 1);
+        }
+        journal.close();
+
+        // the last trade only partly made it to disk
+        Path segment = TradeJournal.segmentFiles(mDir).get(0);
+        try (FileChannel ch = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            ch.truncate(4 * TradeJournal.RECORD_BYTES + 10);
+        }
+
+        mDatabaseDown = false;
+        journal().close();
+        assertEquals(4, mApplied.size());
+    }
+}
@@ -17,6 +17,9 @@ async function postData(url = '', data = {}) {
     return response.json(); // parses JSON response into native JavaScript objects
   }
 
+// Pushes new prices, see openStream()
+var stream = null;
+
 // Function Executes on click of login button.
 function validate(){
   var username = document.getElementById("username").value;
@@ -28,6 +31,7 @@ function validate(){
         getPortfolio(uid);
         getTeams(uid);
         getUsers();
+        openStream();
         document.getElementById("tabs").style.display = "block"
         document.getElementById("login").style.display = "none"
       }
@@ -78,6 +82,26 @@ async function trade(uid, tid, isBuy, count=1) {
     })
 }
 
+// Listen for new prices instead of re-fetching everything. Reconnects if
+// the connection drops
+function openStream() {
+  stream = new WebSocket('wss://dota-stonks.herokuapp.com/stream');
+  stream.onmessage = (msg) => {
+    const event = JSON.parse(msg.data);
+    if (event.type == "prices") {
+      for (const team of event.data) {
+        for (const h of document.querySelectorAll('h3[data-tid="'+team.tid+'"]')) {
+          h.innerHTML = team.name + "     $ " + team.price;
+        }
+      }
+      getUsers();
+    }
+  };
+  stream.onclose = () => {
+    setTimeout(() => openStream(), 5000);
+  };
+}
+
 //function to refresh our data
 async function getPortfolio(uid, show=true) {
     console.log("fetching users/"+uid)
@@ -117,6 +141,7 @@ async function getPortfolio(uid, show=true) {
                 teamtext.innerHTML = teaminfo;
                 
                 var teamname = document.createElement("h3");
+                teamname.setAttribute("data-tid", tid);
                 teamname.innerHTML = data.mData.ownerships[i].name +"     $ " + data.mData.ownerships[i].price;
 
                 insert.appendChild(teamname);
@@ -132,10 +157,18 @@ async function getPortfolio(uid, show=true) {
 }
 
 async function getTeams(uid) {
-    fetch('https://dota-stonks.herokuapp.com/teams')
-        .then((response) => response.json())
-        .then((data) => {
+    // every team's day candles come in one request, a point a day is plenty
+    // for a chart this size
+    Promise.all([
+        fetch('https://dota-stonks.herokuapp.com/teams/summary').then((response) => response.json()),
+        fetch('https://dota-stonks.herokuapp.com/teams/candles').then((response) => response.json())
+    ])
+        .then(([data, candles]) => {
             var left = true
+            const history = {}
+            for (const c of candles.mData || []) {
+              (history[c.tid] = history[c.tid] || []).push(c)
+            }
 
             for (i = 0; i < data.mData.length; i++) {
                 const tid = data.mData[i].tid;
@@ -152,25 +185,27 @@ async function getTeams(uid) {
                 buy5Button.onclick = function ()  { trade(uid, tid , true, 5) }
                 
                 var teamname = document.createElement("h3");
+                teamname.setAttribute("data-tid", tid);
                 teamname.innerHTML = data.mData[i].name +"     $ " + data.mData[i].price;
 
-                for (j = 0; j < data.mData[i].history.length; j++) {
-                  data.mData[i].history[j].index = j;
+                var chart = document.createElement("div");
+                chart.style.float="right";
+                const days = history[tid] || [];
+                for (j = 0; j < days.length; j++) {
+                  days[j].index = j;
                 }
-
-                var svg = LineChart(data.mData[i].history, {
+                chart.appendChild(LineChart(days, {
                   x: d => d.index,
-                  y: d => d.price,
+                  y: d => d.close,
                   yLabel: "Price ($)",
                   height: 200,
                   color: "steelblue",
                   strokeWidth: 4,
                   xType: d3.scaleLinear
-                })
-                svg.style.float="right";
+                }))
 
                 insert.appendChild(teamname);
-                insert.appendChild(svg)
+                insert.appendChild(chart)
                 insert.appendChild(buyButton);
                 insert.appendChild(buy5Button);
                 if (left)
@@ -200,7 +235,7 @@ async function getUsers() {
                   marginLeft: 100
                 })
 
-                document.getElementById("leaderboard").appendChild(bc)
+                document.getElementById("leaderboard").replaceChildren(bc)
         })
 }
 